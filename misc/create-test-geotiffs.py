@@ -0,0 +1,329 @@
+#!/usr/bin/env python3
+#
+# Create the GeoTIFF fixtures used by GeoTiffReaderTest (src/test/resources/TestGeoTiff-*.tif) and their reference values as ESRI ASCII grids
+# (src/test/resources/TestGeoTiff-*.asc, same layout than the output of "gdal_translate -of AAIGrid").
+#
+# The files are encoded by this script (only the standard library is needed) so each variant of the format is produced exactly. When GDAL is
+# installed the references can be checked against it:
+#
+#   for f in src/test/resources/TestGeoTiff-*.tif; do gdal_translate -q -of AAIGrid $f /tmp/$(basename $f .tif).asc; done
+#
+# GDAL writes the values with its own number formatting, so the grids must be compared as numbers (not as text).
+
+import math
+import os
+import struct
+import sys
+import zlib
+
+OUTPUT_DIR = os.path.join(os.path.dirname(os.path.abspath(__file__)), '..', 'src', 'test', 'resources')
+
+NODATA = -9999
+
+
+class Random:
+    """Linear congruential generator, so the fixtures are the same on every run."""
+
+    def __init__(self, seed):
+        self.state = seed
+
+    def next(self):
+        self.state = (self.state * 1103515245 + 12345) & 0x7FFFFFFF
+        return self.state / 0x7FFFFFFF
+
+
+def to_float32(value):
+    return struct.unpack('<f', struct.pack('<f', value))[0]
+
+
+def format_float32(value):
+    # Shortest representation which is parsed back to the same float32
+    for precision in range(1, 18):
+        text = '%.*g' % (precision, value)
+        if to_float32(float(text)) == value:
+            return text
+    return repr(value)
+
+
+################################################################################
+# Values
+################################################################################
+
+def smooth_floats(width, height, seed):
+    random = Random(seed)
+    values = []
+    for y in range(height):
+        for x in range(width):
+            value = 120 + 30 * math.sin(x / 6.0) * math.cos(y / 4.0) + random.next()
+            values.append(to_float32(value))
+    # A few pixels without data
+    for i in range(0, len(values), 97):
+        values[i] = float(NODATA)
+    return values
+
+
+def noisy_floats(width, height, seed):
+    # Random values are hard to compress so the LZW table is cleared several times
+    random = Random(seed)
+    return [to_float32(-50 + 4000 * random.next()) for i in range(width * height)]
+
+
+def smooth_shorts(width, height, seed, minimum, maximum):
+    random = Random(seed)
+    values = []
+    for y in range(height):
+        for x in range(width):
+            value = minimum + (maximum - minimum) * (0.5 + 0.5 * math.sin((x + 2 * y) / 9.0)) + 40 * random.next()
+            values.append(max(minimum, min(maximum, int(value))))
+    return values
+
+
+################################################################################
+# Encoding
+################################################################################
+
+def encode_samples(values, sample_format, order):
+    if sample_format == 'float32':
+        return struct.pack(order + '%df' % len(values), *values)
+    if sample_format == 'int16':
+        return struct.pack(order + '%dh' % len(values), *values)
+    return struct.pack(order + '%dH' % len(values), *values)
+
+
+def apply_horizontal_predictor(values, width, rows, sample_format):
+    # Differences between the consecutive samples of each row (modulo 2^16)
+    result = list(values)
+    for row in range(rows):
+        for i in range(row * width + width - 1, row * width, -1):
+            difference = (values[i] - values[i - 1]) & 0xFFFF
+            if sample_format == 'int16' and difference >= 0x8000:
+                difference -= 0x10000
+            result[i] = difference
+    return result
+
+
+def apply_floating_point_predictor(data, width, rows):
+    # Bytes of each row are stored by planes (most significant bytes first), then the differences between the bytes are computed
+    result = bytearray()
+    for row in range(rows):
+        samples = [data[(row * width + i) * 4:(row * width + i + 1) * 4] for i in range(width)]
+        planes = bytearray()
+        for b in range(4):
+            planes.extend(sample[b] for sample in samples)
+        for i in range(len(planes) - 1, 0, -1):
+            planes[i] = (planes[i] - planes[i - 1]) & 0xFF
+        result.extend(planes)
+    return bytes(result)
+
+
+class BitWriter:
+
+    def __init__(self):
+        self.bytes = bytearray()
+        self.buffer = 0
+        self.count = 0
+
+    def write(self, code, width):
+        self.buffer = (self.buffer << width) | code
+        self.count += width
+        while self.count >= 8:
+            self.count -= 8
+            self.bytes.append((self.buffer >> self.count) & 0xFF)
+        self.buffer &= (1 << self.count) - 1
+
+    def flush(self):
+        if self.count > 0:
+            self.bytes.append((self.buffer << (8 - self.count)) & 0xFF)
+            self.count = 0
+        return bytes(self.bytes)
+
+
+def encode_lzw(data):
+    # Same algorithm than libtiff: codes are written MSB first, the width increases when the next free code doesn't fit anymore and the table is
+    # cleared when it reaches 4094 entries (so the decoder, which is one entry late, increases the width one code earlier)
+    clear_code, end_code = 256, 257
+    writer = BitWriter()
+    width = 9
+    writer.write(clear_code, width)
+    table = dict((bytes([i]), i) for i in range(256))
+    next_code = 258
+    current = b''
+    for value in data:
+        candidate = current + bytes([value])
+        if candidate in table:
+            current = candidate
+            continue
+        writer.write(table[current], width)
+        table[candidate] = next_code
+        next_code += 1
+        if next_code == 4094:
+            writer.write(clear_code, width)
+            table = dict((bytes([i]), i) for i in range(256))
+            next_code = 258
+            width = 9
+        elif next_code > (1 << width) - 1:
+            width += 1
+        current = bytes([value])
+    if current:
+        writer.write(table[current], width)
+        next_code += 1
+        if next_code > (1 << width) - 1 and width < 12:
+            width += 1
+    writer.write(end_code, width)
+    return writer.flush()
+
+
+def encode_block(values, width, rows, options):
+    order = options['order']
+    sample_format = options['sample_format']
+    if options['predictor'] == 2:
+        values = apply_horizontal_predictor(values, width, rows, sample_format)
+    if options['predictor'] == 3:
+        # Byte planes don't depend on the byte order of the file
+        data = apply_floating_point_predictor(encode_samples(values, sample_format, '>'), width, rows)
+    else:
+        data = encode_samples(values, sample_format, order)
+    if options['compression'] == 5:
+        return encode_lzw(data)
+    if options['compression'] == 8:
+        return zlib.compress(data, 9)
+    return data
+
+
+def split_blocks(values, width, height, options):
+    """Returns the values of each block (tiles are padded with zeros, the last strip can be shorter)."""
+    blocks = []
+    if 'tile_size' in options:
+        tile_width, tile_height = options['tile_size']
+        for y0 in range(0, height, tile_height):
+            for x0 in range(0, width, tile_width):
+                block = []
+                for y in range(y0, y0 + tile_height):
+                    for x in range(x0, x0 + tile_width):
+                        block.append(values[y * width + x] if x < width and y < height else 0)
+                blocks.append((block, tile_width, tile_height))
+    else:
+        rows_per_strip = options['rows_per_strip']
+        for y0 in range(0, height, rows_per_strip):
+            rows = min(rows_per_strip, height - y0)
+            blocks.append((values[y0 * width:(y0 + rows) * width], width, rows))
+    return blocks
+
+
+################################################################################
+# TIFF writing
+################################################################################
+
+TYPE_ASCII, TYPE_SHORT, TYPE_LONG, TYPE_DOUBLE = 2, 3, 4, 12
+
+TYPE_FORMATS = {TYPE_ASCII: 'B', TYPE_SHORT: 'H', TYPE_LONG: 'I', TYPE_DOUBLE: 'd'}
+
+
+def write_tiff(path, width, height, values, options):
+    order = options['order']
+    blocks = [encode_block(block, block_width, rows, options) for block, block_width, rows in split_blocks(values, width, height, options)]
+    bits, sample_format = {'float32': (32, 3), 'int16': (16, 2), 'uint16': (16, 1)}[options['sample_format']]
+    # Blocks are written just after the header
+    offsets = []
+    position = 8
+    for block in blocks:
+        offsets.append(position)
+        position += len(block) + len(block) % 2
+    tags = [(256, TYPE_LONG, [width]), (257, TYPE_LONG, [height]), (258, TYPE_SHORT, [bits]), (259, TYPE_SHORT, [options['compression']]),
+            (262, TYPE_SHORT, [1]), (277, TYPE_SHORT, [1]), (284, TYPE_SHORT, [1]), (339, TYPE_SHORT, [sample_format])]
+    if options['predictor'] != 1:
+        tags.append((317, TYPE_SHORT, [options['predictor']]))
+    if 'tile_size' in options:
+        tags += [(322, TYPE_SHORT, [options['tile_size'][0]]), (323, TYPE_SHORT, [options['tile_size'][1]]),
+                 (324, TYPE_LONG, offsets), (325, TYPE_LONG, [len(block) for block in blocks])]
+    else:
+        tags += [(273, TYPE_LONG, offsets), (278, TYPE_LONG, [options['rows_per_strip']]), (279, TYPE_LONG, [len(block) for block in blocks])]
+    x_corner, y_corner, pixel_size = options['georeferencing']
+    raster_type = 2 if options.get('pixel_is_point') else 1
+    if options.get('pixel_is_point'):
+        # Coordinates are related to the center of the first pixel
+        x_origin, y_origin = x_corner + pixel_size / 2, y_corner - pixel_size / 2
+    else:
+        x_origin, y_origin = x_corner, y_corner
+    if options.get('transformation'):
+        tags.append((34264, TYPE_DOUBLE, [pixel_size, 0, 0, x_origin, 0, -pixel_size, 0, y_origin, 0, 0, 0, 0, 0, 0, 0, 1]))
+    else:
+        tags.append((33550, TYPE_DOUBLE, [pixel_size, pixel_size, 0]))
+        tags.append((33922, TYPE_DOUBLE, [0, 0, 0, x_origin, y_origin, 0]))
+    # GTModelTypeGeoKey (projected), GTRasterTypeGeoKey and ProjectedCSTypeGeoKey (Lambert 93)
+    tags.append((34735, TYPE_SHORT, [1, 1, 0, 3, 1024, 0, 1, 1, 1025, 0, 1, raster_type, 3072, 0, 1, 2154]))
+    if options.get('nodata'):
+        tags.append((42113, TYPE_ASCII, list(b'%d\0' % NODATA)))
+    tags.sort()
+    # Values which don't fit in the entries are written after the IFD
+    ifd_position = position
+    extra_position = ifd_position + 2 + 12 * len(tags) + 4
+    entries = bytearray(struct.pack(order + 'H', len(tags)))
+    extra = bytearray()
+    for tag, field_type, field_values in tags:
+        packed = struct.pack(order + '%d%s' % (len(field_values), TYPE_FORMATS[field_type]), *field_values)
+        entries += struct.pack(order + 'HHI', tag, field_type, len(field_values))
+        if len(packed) <= 4:
+            entries += packed + b'\0' * (4 - len(packed))
+        else:
+            entries += struct.pack(order + 'I', extra_position + len(extra))
+            extra += packed + b'\0' * (len(packed) % 2)
+    entries += struct.pack(order + 'I', 0)
+    with open(path, 'wb') as f:
+        f.write((b'II' if order == '<' else b'MM') + struct.pack(order + 'HI', 42, ifd_position))
+        for block in blocks:
+            f.write(block + b'\0' * (len(block) % 2))
+        f.write(entries)
+        f.write(extra)
+
+
+def write_ascii_grid(path, width, height, values, options):
+    x_corner, y_corner, pixel_size = options['georeferencing']
+    with open(path, 'w', newline='\n') as f:
+        f.write('ncols        %d\n' % width)
+        f.write('nrows        %d\n' % height)
+        f.write('xllcorner    %.12f\n' % x_corner)
+        f.write('yllcorner    %.12f\n' % (y_corner - height * pixel_size))
+        f.write('cellsize     %.12f\n' % pixel_size)
+        if options.get('nodata'):
+            f.write('NODATA_value  %d\n' % NODATA)
+        for y in range(height):
+            row = values[y * width:(y + 1) * width]
+            f.write(' ' + ' '.join(format_float32(v) if options['sample_format'] == 'float32' else str(v) for v in row) + '\n')
+
+
+################################################################################
+# Fixtures
+################################################################################
+
+FIXTURES = [
+    ('StripNone', 37, 23, lambda w, h: smooth_floats(w, h, 1),
+     dict(order='<', sample_format='float32', compression=1, predictor=1, rows_per_strip=5, nodata=True,
+          georeferencing=(652000.0, 6862000.0, 0.5))),
+    ('StripLzw', 64, 64, lambda w, h: noisy_floats(w, h, 2),
+     dict(order='>', sample_format='float32', compression=5, predictor=1, rows_per_strip=64, pixel_is_point=True,
+          georeferencing=(770000.0, 6280000.0, 1.0))),
+    ('StripLzwHorizontal', 41, 30, lambda w, h: smooth_shorts(w, h, 3, -300, 2900),
+     dict(order='<', sample_format='int16', compression=5, predictor=2, rows_per_strip=8,
+          georeferencing=(2.25, 48.75, 0.00025))),
+    ('StripDeflateFloatingPoint', 37, 23, lambda w, h: smooth_floats(w, h, 4),
+     dict(order='>', sample_format='float32', compression=8, predictor=3, rows_per_strip=4, nodata=True, transformation=True,
+          georeferencing=(652000.0, 6862000.0, 0.5))),
+    ('TiledDeflateFloatingPoint', 37, 23, lambda w, h: smooth_floats(w, h, 5),
+     dict(order='<', sample_format='float32', compression=8, predictor=3, tile_size=(16, 16), nodata=True,
+          georeferencing=(652000.0, 6862000.0, 0.5))),
+    ('TiledLzwHorizontal', 37, 23, lambda w, h: smooth_shorts(w, h, 6, 30000, 50000),
+     dict(order='>', sample_format='uint16', compression=5, predictor=2, tile_size=(16, 16), pixel_is_point=True, transformation=True,
+          georeferencing=(770000.0, 6280000.0, 2.0))),
+    ('TiledNone', 37, 23, lambda w, h: smooth_shorts(w, h, 7, -100, 400),
+     dict(order='<', sample_format='int16', compression=1, predictor=1, tile_size=(16, 32),
+          georeferencing=(652000.0, 6862000.0, 5.0))),
+]
+
+if __name__ == '__main__':
+    for name, width, height, generate, options in FIXTURES:
+        values = generate(width, height)
+        base = os.path.join(OUTPUT_DIR, 'TestGeoTiff-' + name)
+        write_tiff(base + '.tif', width, height, values, options)
+        write_ascii_grid(base + '.asc', width, height, values, options)
+        sys.stdout.write('Created %s.tif\n' % base)
@@ -12,29 +12,45 @@ public class StatsGenerator {
 	static protected final Logger LOGGER_FOR_STATS = Logger.getLogger("LoggerForStats");
 
 	public void displayRepartitionOfMatchingScore(Collection<AbstractElement> elements) {
-		LOGGER_FOR_STATS.info("Repartitions of elements by matching scores:");
 		int[] matchedElementsNbrByScore = new int[10];
 		for (AbstractElement element : elements) {
-			Float score = element.getMatchingScore();
-			for (int i = 0; i < 10; i++) {
-				if (score <= (i + 1) * 0.1) {
-					matchedElementsNbrByScore[i]++;
-					break;
-				}
+			int range = getMatchingScoreRange(element.getMatchingScore());
+			if (range >= 0) {
+				matchedElementsNbrByScore[range]++;
 			}
 		}
+		this.displayRepartitionOfMatchingScore(matchedElementsNbrByScore, elements.size());
+	}
+
+	/**
+	 * Same as above but the elements have already been counted by range of 10% (see getMatchingScoreRange()), so they don't have to be kept.
+	 */
+	public void displayRepartitionOfMatchingScore(int[] matchedElementsNbrByScore, int total) {
+		LOGGER_FOR_STATS.info("Repartitions of elements by matching scores:");
 		for (int i = 0; i < 10; i++) {
 			StringBuilder sb = new StringBuilder();
 			sb.append(" - score between " + i * 10 + "% and " + (i + 1) * 10 + "% : ");
 			sb.append(matchedElementsNbrByScore[i]);
-			if (elements.size() > 0) {
-				sb.append(" (" + 100 * matchedElementsNbrByScore[i] / elements.size() + "%)");
+			if (total > 0) {
+				sb.append(" (" + 100 * matchedElementsNbrByScore[i] / total + "%)");
 			}
 			sb.append(" elements");
 			LOGGER_FOR_STATS.info(sb);
 		}
 	}
 
+	/**
+	 * Returns the index of the range of 10% which contains the score, or -1 if the score is above 100%.
+	 */
+	static public int getMatchingScoreRange(float score) {
+		for (int i = 0; i < 10; i++) {
+			if (score <= (i + 1) * 0.1) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
 	public void displayRepartitionByValues(Collection<AbstractElement> elements) {
 		LOGGER_FOR_STATS.info("Repartitions of elements by values:");
 		// TODO
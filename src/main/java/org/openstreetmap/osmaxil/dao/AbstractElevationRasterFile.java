@@ -0,0 +1,330 @@
+package org.openstreetmap.osmaxil.dao;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openstreetmap.osmaxil.model.ElevationImport;
+import org.openstreetmap.osmaxil.model.misc.ElevationPointBuffer;
+import org.openstreetmap.osmaxil.util.ElevationPyramid;
+import org.openstreetmap.osmaxil.util.PolygonRasterizer;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.io.ParseException;
+
+/**
+ * Base class of the elevation data sources which are backed by a georeferenced raster file (with a single band and a north-up geotransform).
+ *
+ * Subclasses only have to open the file, to set the georeferencing fields and to implement {@link #readRaster(int, int, int, int, float[])}. Point
+ * lookups are served by a cache of raster blocks aligned to the natural block size of the file.
+ */
+public abstract class AbstractElevationRasterFile implements ElevationDataSource {
+
+	protected String filePath;
+
+	protected int srid;
+
+	protected double xUpperLeft, yUpperLeft;
+
+	protected double xPixelSize, yPixelSize;
+
+	protected int xSize, ySize;
+
+	protected Double noDataValue;
+
+	protected int blockWidth, blockHeight;
+
+	private long cacheSize;
+
+	private Map<Long, float[]> blockCache;
+
+	// Lock of the cache and of its counters, it's not the instance itself since subclasses can serialize their reads with it
+	private final Object blockCacheLock = new Object();
+
+	private long counterForCacheHits;
+
+	private long counterForCacheMisses;
+
+	static public final int DEFAULT_CACHE_SIZE = 64;
+
+	/**
+	 * The size of the cache of raster blocks is limited to the specified amount of megabytes (a size of 0 disables the cache).
+	 */
+	protected AbstractElevationRasterFile(int cacheSizeInMB) {
+		this.cacheSize = cacheSizeInMB * 1024L * 1024L;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Public overrided methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public int getSrid() {
+		return srid;
+	}
+
+	@Override
+	public ElevationImport findElevationByCoordinates(float x, float y, float valueScale, int srid) {
+		int xFile = (int) Math.round((x - xUpperLeft) / this.xPixelSize);
+		int yFile = (int) Math.round((yUpperLeft - y) / this.yPixelSize);
+		if (xFile < 0 || yFile < 0 || xFile >= this.xSize || yFile >= this.ySize) {
+			LOGGER.warn("Coordinates (" + x + ", " + y + ") are outside the raster");
+			return null;
+		}
+		float value;
+		if (this.cacheSize > 0) {
+			value = this.readPixelFromCache(xFile, yFile);
+		} else {
+			float[] data = new float[1];
+			this.readRaster(xFile, yFile, 1, 1, data);
+			value = data[0];
+		}
+		ElevationImport result = new ElevationImport(x, y, value * valueScale);
+		return result;
+	}
+
+	/**
+	 * Pixels are sorted by block so each block is read only once (even if the cache is disabled), nodata pixels are returned as NaN.
+	 */
+	@Override
+	public void findElevationsByCoordinates(float[] x, float[] y, int count, float valueScale, int srid, float[] result) {
+		// Each key is made of the block index (high bits) and of the point index (low bits)
+		long[] keys = new long[count];
+		int size = 0;
+		for (int i = 0; i < count; i++) {
+			result[i] = Float.NaN;
+			int xFile = (int) Math.round((x[i] - xUpperLeft) / this.xPixelSize);
+			int yFile = (int) Math.round((yUpperLeft - y[i]) / this.yPixelSize);
+			if (xFile < 0 || yFile < 0 || xFile >= this.xSize || yFile >= this.ySize) {
+				continue;
+			}
+			keys[size++] = (this.getBlockKey(xFile / this.blockWidth, yFile / this.blockHeight) << 32) | i;
+		}
+		Arrays.sort(keys, 0, size);
+		long currentKey = -1;
+		float[] block = null;
+		int width = 0;
+		for (int k = 0; k < size; k++) {
+			int i = (int) keys[k];
+			int xFile = (int) Math.round((x[i] - xUpperLeft) / this.xPixelSize);
+			int yFile = (int) Math.round((yUpperLeft - y[i]) / this.yPixelSize);
+			int xBlock = xFile / this.blockWidth;
+			int yBlock = yFile / this.blockHeight;
+			if (keys[k] >>> 32 != currentKey) {
+				currentKey = keys[k] >>> 32;
+				block = this.getBlock(xBlock, yBlock);
+				width = Math.min(this.blockWidth, this.xSize - xBlock * this.blockWidth);
+			}
+			float value = block[(yFile - yBlock * this.blockHeight) * width + xFile - xBlock * this.blockWidth];
+			if (!this.isNoData(value)) {
+				result[i] = value * valueScale;
+			}
+		}
+		LOGGER.info("Elevations of " + count + " coordinates have been read from " + this.filePath);
+	}
+
+	@Override
+	public List<ElevationImport> findAllElevationsByGeometry(String includingGeomAsWKT, String excludingGeomAsWKT, float valueScale, float shrinkRadius,
+			int geomSrid) {
+		ElevationPointBuffer points = new ElevationPointBuffer();
+		this.findAllElevationsByGeometry(includingGeomAsWKT, excludingGeomAsWKT, valueScale, shrinkRadius, geomSrid, points);
+		return points.toElevationImports();
+	}
+
+	/**
+	 * Find all pixels whose center is inside the including geometry and outside the excluding geometry (useful for multipolygon buildings with
+	 * "hole"). Both geometries are shrunk by the specified radius.
+	 *
+	 * The raster window which covers the envelope of the including geometry is read at once, then the pixels are selected row by row with a
+	 * scanline: only the spans between the crossings of the row with the rings of the geometry are kept. If the points are decimated only one
+	 * pixel out of the decimation step of the result is read, the steps go on from one span to the next one.
+	 */
+	@Override
+	public void findAllElevationsByGeometry(String includingGeomAsWKT, String excludingGeomAsWKT, float valueScale, float shrinkRadius, int geomSrid,
+			ElevationPointBuffer result) {
+		result.clear();
+		if (geomSrid != this.srid) {
+			LOGGER.error("Geometry SRID (" + geomSrid + ") doesn't match the raster SRID (" + this.srid + ")");
+			return;
+		}
+		PolygonRasterizer including, excluding = null;
+		try {
+			including = PolygonRasterizer.fromWKT(includingGeomAsWKT, shrinkRadius);
+			if (excludingGeomAsWKT != null) {
+				excluding = PolygonRasterizer.fromWKT(excludingGeomAsWKT, shrinkRadius);
+			}
+		} catch (ParseException e) {
+			LOGGER.error("Unable to parse geometry: " + e.getMessage());
+			return;
+		}
+		if (including == null) {
+			LOGGER.debug("Including geometry is empty once it has been shrunk");
+			return;
+		}
+		// Compute the raster window which covers the envelope of the geometry
+		Envelope envelope = including.getEnvelope();
+		int xMin = Math.max(0, (int) Math.floor((envelope.getMinX() - this.xUpperLeft) / this.xPixelSize));
+		int xMax = Math.min(this.xSize - 1, (int) Math.floor((envelope.getMaxX() - this.xUpperLeft) / this.xPixelSize));
+		int yMin = Math.max(0, (int) Math.floor((this.yUpperLeft - envelope.getMaxY()) / this.yPixelSize));
+		int yMax = Math.min(this.ySize - 1, (int) Math.floor((this.yUpperLeft - envelope.getMinY()) / this.yPixelSize));
+		if (xMin > xMax || yMin > yMax) {
+			return;
+		}
+		int width = xMax - xMin + 1;
+		float[] window = new float[width * (yMax - yMin + 1)];
+		this.readRaster(xMin, yMin, width, yMax - yMin + 1, window);
+		// Scan each row of the window
+		double[] crossings = new double[including.getEdgeCount()];
+		int step = result.getDecimationStep(), next = 0;
+		for (int row = yMin; row <= yMax; row++) {
+			double y = this.yUpperLeft - (row + 0.5) * this.yPixelSize;
+			int count = including.getCrossings(y, crossings);
+			for (int i = 0; i + 1 < count; i += 2) {
+				int start = Math.max(xMin, (int) Math.ceil((crossings[i] - this.xUpperLeft) / this.xPixelSize - 0.5));
+				int end = Math.min(xMax, (int) Math.floor((crossings[i + 1] - this.xUpperLeft) / this.xPixelSize - 0.5));
+				if (start > end) {
+					continue;
+				}
+				int column;
+				for (column = start + next; column <= end; column += step) {
+					float value = window[(row - yMin) * width + column - xMin];
+					if (this.isNoData(value)) {
+						continue;
+					}
+					double x = this.xUpperLeft + (column + 0.5) * this.xPixelSize;
+					if (excluding != null && excluding.contains(x, y)) {
+						continue;
+					}
+					result.add((float) x, (float) y, value * valueScale);
+				}
+				next = column - end - 1;
+			}
+		}
+	}
+
+	/**
+	 * The raster is read by strips of blocks (or of a few rows if the blocks are very large).
+	 */
+	@Override
+	public ElevationPyramid buildPyramid(double cellSize) {
+		if (this.xSize == 0 || this.ySize == 0) {
+			return null;
+		}
+		ElevationPyramid pyramid = new ElevationPyramid(this.xUpperLeft, this.yUpperLeft - this.ySize * this.yPixelSize,
+				this.xUpperLeft + this.xSize * this.xPixelSize, this.yUpperLeft, cellSize);
+		int stripHeight = Math.max(1, Math.min(this.blockHeight, (1 << 22) / this.xSize));
+		float[] strip = new float[this.xSize * stripHeight];
+		for (int yStrip = 0; yStrip < this.ySize; yStrip += stripHeight) {
+			int height = Math.min(stripHeight, this.ySize - yStrip);
+			this.readRaster(0, yStrip, this.xSize, height, strip);
+			for (int row = 0; row < height; row++) {
+				double y = this.yUpperLeft - (yStrip + row + 0.5) * this.yPixelSize;
+				for (int column = 0; column < this.xSize; column++) {
+					float value = strip[row * this.xSize + column];
+					if (!this.isNoData(value)) {
+						pyramid.add(this.xUpperLeft + (column + 0.5) * this.xPixelSize, y, value);
+					}
+				}
+			}
+		}
+		pyramid.build();
+		return pyramid;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Public (not overrided) methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	public long getCounterForCacheHits() {
+		synchronized (this.blockCacheLock) {
+			return counterForCacheHits;
+		}
+	}
+
+	public long getCounterForCacheMisses() {
+		synchronized (this.blockCacheLock) {
+			return counterForCacheMisses;
+		}
+	}
+
+	public boolean isNoData(float value) {
+		return Float.isNaN(value) || (this.noDataValue != null && value == this.noDataValue.floatValue());
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Protected methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Read a window of the raster into the specified array (row by row), the window must be inside the raster.
+	 */
+	abstract protected void readRaster(int x, int y, int width, int height, float[] data);
+
+	/**
+	 * Must be called by the subclasses once the sizes of the raster and of its blocks are known.
+	 */
+	protected void initCache() {
+		final long maxBlocks = Math.max(1, this.cacheSize / (4L * this.blockWidth * this.blockHeight));
+		this.blockCache = new LinkedHashMap<Long, float[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, float[]> eldest) {
+				return this.size() > maxBlocks;
+			}
+		};
+		LOGGER.info("Block sizes are: " + this.blockWidth + " " + this.blockHeight + " (up to " + maxBlocks + " blocks can be cached)");
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Private methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Read a pixel from the block which contains it, the block is read from the file only if it's not yet in the cache.
+	 */
+	private float readPixelFromCache(int xFile, int yFile) {
+		int xBlock = xFile / this.blockWidth;
+		int yBlock = yFile / this.blockHeight;
+		int width = Math.min(this.blockWidth, this.xSize - xBlock * this.blockWidth);
+		float[] block = this.getBlock(xBlock, yBlock);
+		return block[(yFile - yBlock * this.blockHeight) * width + xFile - xBlock * this.blockWidth];
+	}
+
+	/**
+	 * Returns the pixels of a block, the block is read from the file only if it's not yet in the cache (or if the cache is disabled).
+	 */
+	private float[] getBlock(int xBlock, int yBlock) {
+		long key = this.getBlockKey(xBlock, yBlock);
+		float[] block = null;
+		if (this.cacheSize > 0) {
+			synchronized (this.blockCacheLock) {
+				block = this.blockCache.get(key);
+				if (block == null) {
+					this.counterForCacheMisses++;
+				} else {
+					this.counterForCacheHits++;
+				}
+			}
+		}
+		if (block == null) {
+			// Block is read outside of the lock of the cache so a slow read doesn't block the cache hits of the other threads
+			int width = Math.min(this.blockWidth, this.xSize - xBlock * this.blockWidth);
+			int height = Math.min(this.blockHeight, this.ySize - yBlock * this.blockHeight);
+			block = new float[width * height];
+			this.readRaster(xBlock * this.blockWidth, yBlock * this.blockHeight, width, height, block);
+			if (this.cacheSize > 0) {
+				synchronized (this.blockCacheLock) {
+					this.blockCache.put(key, block);
+				}
+			}
+		}
+		return block;
+	}
+
+	private long getBlockKey(int xBlock, int yBlock) {
+		return (long) yBlock * (this.xSize / this.blockWidth + 1) + xBlock;
+	}
+
+}
@@ -0,0 +1,366 @@
+package org.openstreetmap.osmaxil.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openstreetmap.osmaxil.model.ElevationImport;
+import org.openstreetmap.osmaxil.model.misc.ElevationPointBuffer;
+import org.openstreetmap.osmaxil.util.ElevationPyramid;
+import org.openstreetmap.osmaxil.util.PolygonRasterizer;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.io.ParseException;
+
+/**
+ * Point cloud stored in a local binary file made of spatial chunks located by a quadtree, the points are memory-mapped and the quadtree is loaded in
+ * memory.
+ *
+ * Layout of the file:
+ * <ul>
+ * <li>a header (magic, version, SRID, node count, point count, offsets and scales of the coordinates, position of the directory)</li>
+ * <li>the points, chunk after chunk, as 3 integers (x, y and z quantized with the offsets and scales of the header)</li>
+ * <li>the directory: the nodes of the quadtree (the root first, then the children of each node are contiguous), each node has the bounds of its
+ * points, its children and its range of points</li>
+ * </ul>
+ * Each leaf of the quadtree is a chunk. Since chunks are written in the depth-first order of the quadtree, the points of any node are contiguous.
+ */
+public class ElevationCloudFile implements ElevationDataSource {
+
+	static public final int MAGIC = 0x4F454346; // "OECF"
+
+	static public final int VERSION = 1;
+
+	static public final int HEADER_SIZE = 96;
+
+	static public final int POINT_SIZE = 12;
+
+	static public final int NODE_SIZE = 40;
+
+	// Points are mapped by segments because a single mapping cannot exceed 2GB
+	static public final int POINTS_BY_SEGMENT = 1 << 26;
+
+	private String filePath;
+
+	private int srid;
+
+	private long pointCount;
+
+	private double xOffset, yOffset, zOffset;
+
+	private double xyScale, zScale;
+
+	private int[] nodeMinX, nodeMinY, nodeMaxX, nodeMaxY;
+
+	private int[] nodeFirstChild, nodeChildCount;
+
+	private long[] nodePointStart, nodePointCount;
+
+	private MappedByteBuffer[] segments;
+
+	public ElevationCloudFile(String source, int srid) {
+		this.init(source, srid);
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Public overrided methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public void init(String source, int srid) {
+		this.filePath = source;
+		this.srid = srid;
+		this.segments = null;
+		if (!new File(this.filePath).exists()) {
+			LOGGER.warn("Cloud file " + this.filePath + " doesn't exist yet, it needs to be loaded");
+			return;
+		}
+		LOGGER.info("Opening " + this.filePath);
+		try (RandomAccessFile file = new RandomAccessFile(this.filePath, "r"); FileChannel channel = file.getChannel()) {
+			MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+				throw new IOException("File is not a cloud file (or its version is not supported)");
+			}
+			int fileSrid = header.getInt(8);
+			if (fileSrid != this.srid) {
+				LOGGER.warn("SRID of the cloud file is " + fileSrid + " but SRID " + this.srid + " is expected");
+			}
+			int nodeCount = header.getInt(12);
+			this.pointCount = header.getLong(16);
+			this.xOffset = header.getDouble(24);
+			this.yOffset = header.getDouble(32);
+			this.zOffset = header.getDouble(40);
+			this.xyScale = header.getDouble(48);
+			this.zScale = header.getDouble(56);
+			long directoryPosition = header.getLong(64);
+			// Load the directory
+			MappedByteBuffer directory = channel.map(MapMode.READ_ONLY, directoryPosition, (long) nodeCount * NODE_SIZE);
+			this.nodeMinX = new int[nodeCount];
+			this.nodeMinY = new int[nodeCount];
+			this.nodeMaxX = new int[nodeCount];
+			this.nodeMaxY = new int[nodeCount];
+			this.nodeFirstChild = new int[nodeCount];
+			this.nodeChildCount = new int[nodeCount];
+			this.nodePointStart = new long[nodeCount];
+			this.nodePointCount = new long[nodeCount];
+			for (int i = 0; i < nodeCount; i++) {
+				int position = i * NODE_SIZE;
+				this.nodeMinX[i] = directory.getInt(position);
+				this.nodeMinY[i] = directory.getInt(position + 4);
+				this.nodeMaxX[i] = directory.getInt(position + 8);
+				this.nodeMaxY[i] = directory.getInt(position + 12);
+				this.nodeFirstChild[i] = directory.getInt(position + 16);
+				this.nodeChildCount[i] = directory.getInt(position + 20);
+				this.nodePointStart[i] = directory.getLong(position + 24);
+				this.nodePointCount[i] = directory.getLong(position + 32);
+			}
+			this.segments = mapSegments(channel, MapMode.READ_ONLY, HEADER_SIZE, this.pointCount);
+			LOGGER.info("Cloud has " + this.pointCount + " points and " + nodeCount + " quadtree nodes");
+		} catch (IOException e) {
+			LOGGER.error("Unable to open cloud file " + this.filePath + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public int getSrid() {
+		return this.srid;
+	}
+
+	/**
+	 * Returns the closest point of the cloud, the quadtree is traversed by skipping the nodes which are farther than the closest point found so far.
+	 */
+	@Override
+	public ElevationImport findElevationByCoordinates(float x, float y, float valueScale, int srid) {
+		if (!this.checkAvailability(srid)) {
+			return null;
+		}
+		long closest = this.findClosestPoint(x, y);
+		if (closest < 0) {
+			LOGGER.warn("No point has been found around coordinates (" + x + ", " + y + ")");
+			return null;
+		}
+		return new ElevationImport(x, y, (float) this.getZ(closest) * valueScale);
+	}
+
+	@Override
+	public void findElevationsByCoordinates(float[] x, float[] y, int count, float valueScale, int srid, float[] result) {
+		Arrays.fill(result, 0, count, Float.NaN);
+		if (!this.checkAvailability(srid)) {
+			return;
+		}
+		for (int i = 0; i < count; i++) {
+			long closest = this.findClosestPoint(x[i], y[i]);
+			if (closest >= 0) {
+				result[i] = (float) this.getZ(closest) * valueScale;
+			}
+		}
+		LOGGER.info("Elevations of " + count + " coordinates have been read from " + this.filePath);
+	}
+
+	@Override
+	public List<ElevationImport> findAllElevationsByGeometry(String includingGeomAsWKT, String excludingGeomAsWKT, float valueScale,
+			float shrinkRadius, int geomSrid) {
+		ElevationPointBuffer points = new ElevationPointBuffer();
+		this.findAllElevationsByGeometry(includingGeomAsWKT, excludingGeomAsWKT, valueScale, shrinkRadius, geomSrid, points);
+		return points.toElevationImports();
+	}
+
+	/**
+	 * Find all points which are inside the including geometry and outside the excluding geometry (useful for multipolygon buildings with "hole").
+	 * Only the chunks whose bounds intersect the envelope of the shrunk including geometry are read. If the points are decimated only one point out
+	 * of the decimation step of the result is read, the steps go on from one chunk to the next one.
+	 */
+	@Override
+	public void findAllElevationsByGeometry(String includingGeomAsWKT, String excludingGeomAsWKT, float valueScale, float shrinkRadius, int geomSrid,
+			ElevationPointBuffer result) {
+		result.clear();
+		if (!this.checkAvailability(geomSrid)) {
+			return;
+		}
+		PolygonRasterizer including, excluding = null;
+		try {
+			including = PolygonRasterizer.fromWKT(includingGeomAsWKT, shrinkRadius);
+			if (excludingGeomAsWKT != null) {
+				excluding = PolygonRasterizer.fromWKT(excludingGeomAsWKT, shrinkRadius);
+			}
+		} catch (ParseException e) {
+			LOGGER.error("Unable to parse geometry: " + e.getMessage());
+			return;
+		}
+		if (including == null) {
+			LOGGER.debug("Including geometry is empty once it has been shrunk");
+			return;
+		}
+		// Quantize the envelope (rounded outward)
+		Envelope envelope = including.getEnvelope();
+		long minX = (long) Math.floor((envelope.getMinX() - this.xOffset) / this.xyScale);
+		long minY = (long) Math.floor((envelope.getMinY() - this.yOffset) / this.xyScale);
+		long maxX = (long) Math.ceil((envelope.getMaxX() - this.xOffset) / this.xyScale);
+		long maxY = (long) Math.ceil((envelope.getMaxY() - this.yOffset) / this.xyScale);
+		// Traverse the quadtree from the root
+		int step = result.getDecimationStep();
+		long next = 0;
+		int[] stack = new int[64];
+		int size = 0;
+		stack[size++] = 0;
+		while (size > 0) {
+			int node = stack[--size];
+			if (this.nodeMaxX[node] < minX || this.nodeMinX[node] > maxX || this.nodeMaxY[node] < minY || this.nodeMinY[node] > maxY) {
+				continue;
+			}
+			if (this.nodeChildCount[node] > 0) {
+				if (size + this.nodeChildCount[node] > stack.length) {
+					stack = Arrays.copyOf(stack, stack.length * 2);
+				}
+				for (int i = 0; i < this.nodeChildCount[node]; i++) {
+					stack[size++] = this.nodeFirstChild[node] + i;
+				}
+				continue;
+			}
+			long end = this.nodePointStart[node] + this.nodePointCount[node];
+			long p;
+			for (p = this.nodePointStart[node] + next; p < end; p += step) {
+				double x = this.getX(p);
+				double y = this.getY(p);
+				if (including.contains(x, y) && (excluding == null || !excluding.contains(x, y))) {
+					result.add((float) x, (float) y, (float) this.getZ(p) * valueScale);
+				}
+			}
+			next = p - end;
+		}
+	}
+
+	@Override
+	public ElevationPyramid buildPyramid(double cellSize) {
+		if (!this.checkAvailability(this.srid)) {
+			return null;
+		}
+		// Bounds of the root node are the bounds of the cloud
+		ElevationPyramid pyramid = new ElevationPyramid(this.xOffset + this.nodeMinX[0] * this.xyScale, this.yOffset + this.nodeMinY[0] * this.xyScale,
+				this.xOffset + this.nodeMaxX[0] * this.xyScale, this.yOffset + this.nodeMaxY[0] * this.xyScale, cellSize);
+		for (long p = 0; p < this.pointCount; p++) {
+			pyramid.add(this.getX(p), this.getY(p), (float) this.getZ(p));
+		}
+		pyramid.build();
+		return pyramid;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Public (not overrided) methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	public boolean isLoaded() {
+		return this.segments != null;
+	}
+
+	public String getFilePath() {
+		return this.filePath;
+	}
+
+	public static MappedByteBuffer[] mapSegments(FileChannel channel, MapMode mode, long position, long pointCount) throws IOException {
+		int segmentCount = (int) ((pointCount + POINTS_BY_SEGMENT - 1) / POINTS_BY_SEGMENT);
+		MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			long size = Math.min(POINTS_BY_SEGMENT, pointCount - (long) i * POINTS_BY_SEGMENT) * POINT_SIZE;
+			segments[i] = channel.map(mode, position + (long) i * POINTS_BY_SEGMENT * POINT_SIZE, size);
+		}
+		return segments;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Private methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	private boolean checkAvailability(int geomSrid) {
+		if (this.segments == null) {
+			LOGGER.error("Cloud file " + this.filePath + " is not loaded");
+			return false;
+		}
+		if (geomSrid != this.srid) {
+			LOGGER.error("Geometry SRID (" + geomSrid + ") doesn't match the cloud SRID (" + this.srid + ")");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the closest point of the coordinates, or -1 if the cloud is empty.
+	 */
+	private long findClosestPoint(double x, double y) {
+		double qx = (x - this.xOffset) / this.xyScale;
+		double qy = (y - this.yOffset) / this.xyScale;
+		long closest = -1;
+		double closestDistance = Double.MAX_VALUE;
+		int[] stack = new int[64];
+		int size = 0;
+		stack[size++] = 0;
+		while (size > 0) {
+			int node = stack[--size];
+			if (this.getNodeDistance(node, qx, qy) >= closestDistance) {
+				continue;
+			}
+			if (this.nodeChildCount[node] > 0) {
+				if (size + this.nodeChildCount[node] > stack.length) {
+					stack = Arrays.copyOf(stack, stack.length * 2);
+				}
+				// Children are pushed from the farthest to the closest (insertion sort), so the closest one is popped first and its points allow
+				// to skip the farther nodes
+				int first = size;
+				for (int i = 0; i < this.nodeChildCount[node]; i++) {
+					int child = this.nodeFirstChild[node] + i;
+					double distance = this.getNodeDistance(child, qx, qy);
+					int j = size++;
+					while (j > first && this.getNodeDistance(stack[j - 1], qx, qy) < distance) {
+						stack[j] = stack[j - 1];
+						j--;
+					}
+					stack[j] = child;
+				}
+				continue;
+			}
+			long end = this.nodePointStart[node] + this.nodePointCount[node];
+			for (long p = this.nodePointStart[node]; p < end; p++) {
+				double px = this.getQuantized(p, 0) - qx;
+				double py = this.getQuantized(p, 4) - qy;
+				double distance = px * px + py * py;
+				if (distance < closestDistance) {
+					closestDistance = distance;
+					closest = p;
+				}
+			}
+		}
+		return closest;
+	}
+
+	/**
+	 * Returns the squared distance (in quantized units) between the coordinates and the bounds of the node.
+	 */
+	private double getNodeDistance(int node, double qx, double qy) {
+		double dx = Math.max(0, Math.max(this.nodeMinX[node] - qx, qx - this.nodeMaxX[node]));
+		double dy = Math.max(0, Math.max(this.nodeMinY[node] - qy, qy - this.nodeMaxY[node]));
+		return dx * dx + dy * dy;
+	}
+
+	// Absolute getters are used so the mapped buffers can be shared by several threads
+	private int getQuantized(long point, int offset) {
+		return this.segments[(int) (point / POINTS_BY_SEGMENT)].getInt((int) (point % POINTS_BY_SEGMENT) * POINT_SIZE + offset);
+	}
+
+	private double getX(long point) {
+		return this.xOffset + this.getQuantized(point, 0) * this.xyScale;
+	}
+
+	private double getY(long point) {
+		return this.yOffset + this.getQuantized(point, 4) * this.xyScale;
+	}
+
+	private double getZ(long point) {
+		return this.zOffset + this.getQuantized(point, 8) * this.zScale;
+	}
+
+}
@@ -5,11 +5,13 @@ import java.util.List;
 import org.apache.log4j.Logger;
 import org.openstreetmap.osmaxil.Application;
 import org.openstreetmap.osmaxil.model.ElevationImport;
+import org.openstreetmap.osmaxil.model.misc.ElevationPointBuffer;
+import org.openstreetmap.osmaxil.util.ElevationPyramid;
 
 public interface ElevationDataSource {
 
 	public enum Type {
-		DB, FILE
+		DB, FILE, GRID, TIFF, CLOUD
 	};
 
 	public enum Use {
@@ -24,7 +26,24 @@ public interface ElevationDataSource {
 
 	abstract public ElevationImport findElevationByCoordinates(float x, float y, float valueScale, int srid);
 
+	/**
+	 * Find the elevations of several coordinates at once, missing elevations are set to NaN. The coordinates can be processed in any order, so the
+	 * data source is free to sort them in order to read its data in a single pass.
+	 */
+	abstract public void findElevationsByCoordinates(float[] x, float[] y, int count, float valueScale, int srid, float[] result);
+
 	abstract public List<ElevationImport> findAllElevationsByGeometry(String includingGeomAsWKT, String excludingGeomAsWKT, float valueScale,
 			float shrinkRadius, int geomSrid);
 
+	/**
+	 * Same as above but the points are stored into a buffer (which is cleared first) instead of being returned as imports.
+	 */
+	abstract public void findAllElevationsByGeometry(String includingGeomAsWKT, String excludingGeomAsWKT, float valueScale, float shrinkRadius,
+			int geomSrid, ElevationPointBuffer result);
+
+	/**
+	 * Build the min/max pyramid of all the elevations (values are not scaled), returns null if the data source is not available.
+	 */
+	abstract public ElevationPyramid buildPyramid(double cellSize);
+
 }
@@ -1,13 +1,38 @@
 package org.openstreetmap.osmaxil.dao;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.BasicDataSource;
 import org.openstreetmap.osmaxil.model.ElevationImport;
-import org.openstreetmap.osmaxil.model.misc.Coordinates;
+import org.openstreetmap.osmaxil.model.misc.ElevationPointBuffer;
+import org.openstreetmap.osmaxil.util.ElevationPyramid;
+import org.openstreetmap.osmaxil.util.Quantization;
+import org.postgresql.PGConnection;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.io.WKTReader;
 
 //@Service("ElevationDatabase") @Scope("prototype") @Lazy
 public class ElevationDatabase implements ElevationDataSource {
@@ -15,13 +40,54 @@ public class ElevationDatabase implements ElevationDataSource {
 	// @Autowired @Qualifier("elevationPostgisJdbcTemplate")
 	private JdbcTemplate jdbcTemplate;
 
+	private TransactionTemplate transactionTemplate;
+
 	public int srid;
 
 	private String tableName;
 
+	/**
+	 * If enabled the geometries are shrunk by JTS, the database filters the points by the bounding box of the including geometry only and the exact
+	 * test is done locally on prepared geometries. It requires geometries which are already in the SRID of the points. Both modes shrink the
+	 * geometries and exclude the points of the excluding geometry in the same way, so they return the same points.
+	 */
+	private boolean clientSideGeometries;
+
+	/**
+	 * Max distance between coordinates and their closest point (in units of the SRID of the database), coordinates without any point closer than it
+	 * have no elevation.
+	 */
+	private double maxDistance = DEFAULT_MAX_DISTANCE;
+
+	// True if the table is partitioned by tile (see TILES_SUFFIX), it's checked at the first query
+	private volatile Boolean partitioned;
+
+	// Quantization of the coordinates (null if they are stored as numeric), it's checked at the first query
+	private Quantization quantization;
+
+	private volatile boolean quantizationChecked;
+
+	private GeometryFactory geometryFactory = new GeometryFactory();
+
+	// Max number of coordinates sent by query
+	static private final int CHUNK_SIZE = 10000;
+
+	static public final double DEFAULT_MAX_DISTANCE = 10;
+
+	/**
+	 * Suffix of the table which stores the extents of the tiles of a partitioned table (each tile is a partition whose key is its tile ID).
+	 */
+	static public final String TILES_SUFFIX = "_tiles";
+
+	/**
+	 * Suffix of the table which stores the quantization of a table whose coordinates are stored as integers (see {@link Quantization}).
+	 */
+	static public final String METADATA_SUFFIX = "_metadata";
+
 	public ElevationDatabase(String tableName, int srid, JdbcTemplate jdbcTemplate) {
 		this.init(tableName, srid);
 		this.jdbcTemplate = jdbcTemplate;
+		this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
 	}
 
 	////////////////////////////////////////////////////////////////////////////////
@@ -36,8 +102,48 @@ public class ElevationDatabase implements ElevationDataSource {
 
 	@Override
 	public ElevationImport findElevationByCoordinates(float x, float y, float valueScale, int srid) {
-		// TODO Auto-generated method stub
-		return null;
+		float[] result = new float[1];
+		this.findElevationsByCoordinates(new float[] { x }, new float[] { y }, 1, valueScale, srid, result);
+		if (Float.isNaN(result[0])) {
+			return null;
+		}
+		return new ElevationImport(x, y, result[0]);
+	}
+
+	/**
+	 * The closest point of each coordinates is found by a KNN query, coordinates are sent by chunks as arrays so there's only one query by chunk.
+	 *
+	 * The candidate points are limited to the max distance (and to the tiles around the coordinates if the table is partitioned), so coordinates
+	 * outside of the data have no elevation instead of the elevation of a distant point. It's also what keeps the lookups usable on a table indexed
+	 * with BRIN: BRIN has no KNN support, so the points are only filtered by the index with the max distance and then sorted by their distance
+	 * (the max distance has to stay small in that case).
+	 */
+	@Override
+	public void findElevationsByCoordinates(float[] x, float[] y, int count, final float valueScale, int srid, final float[] result) {
+		Arrays.fill(result, 0, count, Float.NaN);
+		final Quantization quantization = this.getQuantization();
+		String point = "ST_Transform(ST_SetSRID(ST_MakePoint(p.x, p.y), " + srid + "), " + this.srid + ")";
+		String query = "SELECT p.i, n.z FROM unnest(?::float8[], ?::float8[]) WITH ORDINALITY AS p(x, y, i) CROSS JOIN LATERAL (SELECT " + point
+				+ " AS geom) q CROSS JOIN LATERAL (SELECT z FROM " + this.tableName + " WHERE ST_DWithin(geom, q.geom, " + this.maxDistance + ")"
+				+ this.buildTileCondition("ST_Expand(q.geom, " + this.maxDistance + ")") + " ORDER BY geom <-> q.geom LIMIT 1) n";
+		LOGGER.debug("Used query is: " + query);
+		for (int start = 0; start < count; start += CHUNK_SIZE) {
+			final int offset = start;
+			int end = Math.min(count, start + CHUNK_SIZE);
+			StringBuilder xArray = new StringBuilder("{");
+			StringBuilder yArray = new StringBuilder("{");
+			for (int i = start; i < end; i++) {
+				xArray.append(i > start ? "," : "").append(x[i]);
+				yArray.append(i > start ? "," : "").append(y[i]);
+			}
+			this.jdbcTemplate.query(query, new RowCallbackHandler() {
+				public void processRow(ResultSet rs) throws SQLException {
+					// Ordinality starts at 1
+					result[offset + rs.getInt(1) - 1] = (float) getZ(rs, 2, quantization) * valueScale;
+				}
+			}, xArray.append("}").toString(), yArray.append("}").toString());
+		}
+		LOGGER.info("Elevations of " + count + " coordinates have been read from " + this.tableName);
 	}
 
 	/**
@@ -45,28 +151,78 @@ public class ElevationDatabase implements ElevationDataSource {
 	 * That method use a radius as argument in order to skrink the including and excluding geometries.
 	 */
 	@Override
-	public List<ElevationImport> findAllElevationsByGeometry(String includingGeomAsWKT, String excludingGeomAsWKT, float valueScale, float shrinkRadius,
-			int geomSrid) {
-		final String includingGeom = "ST_GeomFromText('" + includingGeomAsWKT + "', " + geomSrid + ")";
-		String query = "SELECT x, y, z FROM " + this.tableName;
-		String condition = "ST_Transform(ST_Buffer(" + includingGeom + ", -" + shrinkRadius + "), " + srid + ")";
-		query += " WHERE ST_Intersects(geom, " + condition + ")";
-		// Do the same for excluding geom (need cleanup before)
-		if (excludingGeomAsWKT != null) {
-			final String excludingGeom = "ST_GeomFromText('" + excludingGeomAsWKT + "', " + geomSrid + ")";
-			condition += " AND ST_Disjoint(geom, ST_Transform(ST_Buffer(" + excludingGeom + ", -" + shrinkRadius + "), " + srid + "))";
+	public List<ElevationImport> findAllElevationsByGeometry(String includingGeomAsWKT, String excludingGeomAsWKT, final float valueScale,
+			float shrinkRadius, int geomSrid) {
+		if (this.clientSideGeometries && geomSrid == this.srid) {
+			ElevationPointBuffer points = new ElevationPointBuffer();
+			this.findAllElevationsByGeometry(includingGeomAsWKT, excludingGeomAsWKT, valueScale, shrinkRadius, geomSrid, points);
+			return points.toElevationImports();
 		}
-		LOGGER.debug("Used query is: " + query);
+		final Quantization quantization = this.getQuantization();
+		Object[] args = this.buildQueryParameters(includingGeomAsWKT, excludingGeomAsWKT);
+		if (args == null) {
+			return new ArrayList<>();
+		}
+		String query = this.buildQueryByGeometry(excludingGeomAsWKT != null, shrinkRadius, geomSrid, 1);
 		List<ElevationImport> results = this.jdbcTemplate.query(query, new RowMapper<ElevationImport>() {
 			public ElevationImport mapRow(ResultSet rs, int rowNum) throws SQLException {
-				ElevationImport elevation = new ElevationImport(Float.parseFloat(rs.getString("x")), Float.parseFloat(rs.getString("y")),
-						Float.parseFloat(rs.getString("z")) * valueScale);
+				ElevationImport elevation = new ElevationImport((float) getX(rs, 1, quantization), (float) getY(rs, 2, quantization),
+						(float) getZ(rs, 3, quantization) * valueScale);
 				return elevation;
 			}
-		});
+		}, args);
 		return results;
 	}
 
+	@Override
+	public void findAllElevationsByGeometry(String includingGeomAsWKT, String excludingGeomAsWKT, final float valueScale, float shrinkRadius,
+			int geomSrid, final ElevationPointBuffer result) {
+		result.clear();
+		if (this.clientSideGeometries && geomSrid == this.srid) {
+			this.findAllElevationsByPreparedGeometry(includingGeomAsWKT, excludingGeomAsWKT, valueScale, shrinkRadius, result);
+			return;
+		}
+		final Quantization quantization = this.getQuantization();
+		Object[] args = this.buildQueryParameters(includingGeomAsWKT, excludingGeomAsWKT);
+		if (args == null) {
+			return;
+		}
+		String query = this.buildQueryByGeometry(excludingGeomAsWKT != null, shrinkRadius, geomSrid, result.getDecimationStep());
+		this.jdbcTemplate.query(query, new RowCallbackHandler() {
+			public void processRow(ResultSet rs) throws SQLException {
+				result.add((float) getX(rs, 1, quantization), (float) getY(rs, 2, quantization), (float) getZ(rs, 3, quantization) * valueScale);
+			}
+		}, args);
+	}
+
+	/**
+	 * The finest level of the pyramid is computed by the database with a single aggregation query, on the coordinates in the SRID of the database
+	 * (like the envelopes of the elements which query it).
+	 */
+	@Override
+	public ElevationPyramid buildPyramid(final double cellSize) {
+		String x = this.getColumnExpression("x"), y = this.getColumnExpression("y"), z = this.getColumnExpression("z");
+		final double[] envelope = this.jdbcTemplate.queryForObject("SELECT min(" + x + "), min(" + y + "), max(" + x + "), max(" + y + ") FROM "
+				+ this.tableName,
+				new RowMapper<double[]>() {
+					public double[] mapRow(ResultSet rs, int rowNum) throws SQLException {
+						return new double[] { rs.getDouble(1), rs.getDouble(2), rs.getDouble(3), rs.getDouble(4) };
+					}
+				});
+		final ElevationPyramid pyramid = new ElevationPyramid(envelope[0], envelope[1], envelope[2], envelope[3], cellSize);
+		// Cell size may have been increased by the pyramid
+		String query = "SELECT floor((" + x + " - " + envelope[0] + ") / " + pyramid.getCellSize() + "), floor((" + y + " - " + envelope[1] + ") / "
+				+ pyramid.getCellSize() + "), min(" + z + "), max(" + z + "), count(*) FROM " + this.tableName + " GROUP BY 1, 2";
+		LOGGER.debug("Used query is: " + query);
+		this.jdbcTemplate.query(query, new RowCallbackHandler() {
+			public void processRow(ResultSet rs) throws SQLException {
+				pyramid.addCell(rs.getInt(1), rs.getInt(2), rs.getFloat(3), rs.getFloat(4), rs.getLong(5));
+			}
+		});
+		pyramid.build();
+		return pyramid;
+	}
+
 	@Override
 	public int getSrid() {
 		return this.srid;
@@ -76,43 +232,265 @@ public class ElevationDatabase implements ElevationDataSource {
 	// Public (not overrided) methods
 	////////////////////////////////////////////////////////////////////////////////
 
+	/**
+	 * Returns true if the table is partitioned by tile.
+	 */
+	public boolean isPartitioned() {
+		if (this.partitioned == null) {
+			this.partitioned = this.testTableExistence(this.tableName + TILES_SUFFIX);
+		}
+		return this.partitioned;
+	}
+
+	/**
+	 * Returns the quantization of the coordinates if they are stored as integers, or null if they are stored as numeric.
+	 */
+	public Quantization getQuantization() {
+		if (!this.quantizationChecked) {
+			Quantization result = null;
+			if (this.testTableExistence(this.tableName + METADATA_SUFFIX)) {
+				result = this.jdbcTemplate.queryForObject("SELECT x_offset, y_offset, z_offset, xy_scale, z_scale FROM " + this.tableName
+						+ METADATA_SUFFIX, new RowMapper<Quantization>() {
+							public Quantization mapRow(ResultSet rs, int rowNum) throws SQLException {
+								return new Quantization(rs.getDouble(1), rs.getDouble(2), rs.getDouble(3), rs.getDouble(4), rs.getDouble(5));
+							}
+						});
+				LOGGER.info("Coordinates of " + this.tableName + " are quantized (scales are " + result.getXYScale() + " and " + result.getZScale() + ")");
+			}
+			this.quantization = result;
+			this.quantizationChecked = true;
+		}
+		return this.quantization;
+	}
+
+	public <T> T queryForObject(String query, Class<T> requiredType) {
+		LOGGER.debug("Query: " + query);
+		return this.jdbcTemplate.queryForObject(query, requiredType);
+	}
+
+	public boolean isClientSideGeometries() {
+		return clientSideGeometries;
+	}
+
+	public void setClientSideGeometries(boolean clientSideGeometries) {
+		this.clientSideGeometries = clientSideGeometries;
+	}
+
+	public double getMaxDistance() {
+		return maxDistance;
+	}
+
+	public void setMaxDistance(double maxDistance) {
+		if (maxDistance <= 0) {
+			throw new IllegalArgumentException("Max distance of the closest points must be positive (" + maxDistance + ")");
+		}
+		this.maxDistance = maxDistance;
+	}
+
 	public void executeSQL(String query) {
 		LOGGER.debug("Exec: " + query);
 		this.jdbcTemplate.execute(query);
 	}
 
+	/**
+	 * Execute a statement with parameters, returns the number of affected rows (or of copied rows for a COPY statement).
+	 */
+	public int executeUpdate(String query, Object... args) {
+		LOGGER.debug("Exec: " + query);
+		return this.jdbcTemplate.update(query, args);
+	}
+
+	public <T> List<T> queryForList(String query, Class<T> elementType) {
+		LOGGER.debug("Query: " + query);
+		return this.jdbcTemplate.queryForList(query, elementType);
+	}
+
+	/**
+	 * Execute the callback in a transaction: all the statements executed meanwhile by that database (on the same thread) use the same connection
+	 * and they are rolled back if the callback throws a runtime exception.
+	 */
+	public <T> T executeInTransaction(TransactionCallback<T> callback) {
+		return this.transactionTemplate.execute(callback);
+	}
+
+	/**
+	 * Execute a COPY ... FROM STDIN statement whose data are read from the specified stream, so the data don't need to be on the database server.
+	 * Returns the number of copied rows.
+	 */
+	public long copyIn(final String query, final InputStream in) {
+		LOGGER.debug("Exec: " + query);
+		return this.jdbcTemplate.execute(new ConnectionCallback<Long>() {
+			public Long doInConnection(Connection connection) throws SQLException {
+				try {
+					return connection.unwrap(PGConnection.class).getCopyAPI().copyIn(query, in);
+				} catch (IOException e) {
+					throw new SQLException("Unable to read the data to copy: " + e.getMessage(), e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the max number of connections of the pool of the database, or 0 if it's unknown or unlimited.
+	 */
+	public int getMaxConnections() {
+		DataSource dataSource = this.jdbcTemplate.getDataSource();
+		return (dataSource instanceof BasicDataSource ? Math.max(0, ((BasicDataSource) dataSource).getMaxActive()) : 0);
+	}
+
 	public boolean testTableExistence(String tableName) {
-		return this.jdbcTemplate.queryForObject("select count(tablename) = 1 from pg_tables where tablename = '" + tableName + "'", Boolean.class);
+		return this.jdbcTemplate.queryForObject("select count(tablename) = 1 from pg_tables where tablename = ?", Boolean.class, tableName);
 	}
 
+	public boolean testIndexExistence(String indexName) {
+		return this.jdbcTemplate.queryForObject("select count(indexname) = 1 from pg_indexes where indexname = ?", Boolean.class, indexName);
+	}
+
+	public boolean testColumnExistence(String tableName, String columnName) {
+		return this.jdbcTemplate.queryForObject("select count(column_name) = 1 from information_schema.columns where table_name = ? and column_name = ?",
+				Boolean.class, tableName, columnName);
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Private methods
+	////////////////////////////////////////////////////////////////////////////////
+
 	/**
-	 * Find all points which intersect the including geometry and disjoint the excluding geometry (useful for multipolygon buildings with "hole").
-	 * That method use a factor as argument in order to scale the including and excluding geometries.
-	 * 
-	 * TODO: use JTS instead of PostGis functions (ST_Scale and ST_Translate) to perform the scale/skrink process because this implementation is
-	 * working but it takes 15 minutes to execute !
-	 */
-	public List<Coordinates> findAllPointsByGeometry(String includingGeomAsWKT, String excludingGeomAsWKT, float scaleFactor, int geomSrid) {
-		final String geom = "ST_Transform(ST_GeomFromText('" + includingGeomAsWKT + "', " + geomSrid + "), " + this.srid + ")";
-		String query = "SELECT x, y, z FROM " + this.tableName + ", " + geom + " as includingGeom";
-		String condition = "ST_Scale(includingGeom, " + scaleFactor + ", " + scaleFactor + ")";
-		condition = "ST_Translate(" + condition + ", " + "-" + scaleFactor
-				+ "*(ST_Xmin(includingGeom)+ST_XMax(includingGeom))/2 + ((ST_Xmin(includingGeom)+ST_XMax(includingGeom))/2), " + "-" + scaleFactor
-				+ "*(ST_Ymin(includingGeom)+ST_YMax(includingGeom))/2 + ((ST_Ymin(includingGeom)+ST_YMax(includingGeom))/2))";
-		query += " WHERE ST_Intersects(geom, " + condition + ")";
-		// TODO do the same for excluding geom (need cleanup before)
-		// if (excludingGeomAsWKT != null) {
-		// condition += " AND ST_Disjoint(geom, ST_Transform(ST_GeomFromText('" +
-		// excludingGeomAsWKT + "', " + geomSrid + "), " + this.srid + "))";
-		// }
+	 * Geometries are parsed and shrunk once by JTS and the including one is sent as a WKB parameter whose bounding box is used by the index of the
+	 * table, then the points of the bounding box are tested locally against the prepared geometries.
+	 */
+	private void findAllElevationsByPreparedGeometry(String includingGeomAsWKT, String excludingGeomAsWKT, final float valueScale, float shrinkRadius,
+			final ElevationPointBuffer result) {
+		final PreparedGeometry includingGeom;
+		final PreparedGeometry excludingGeom;
+		try {
+			WKTReader reader = new WKTReader(this.geometryFactory);
+			Geometry geometry = reader.read(includingGeomAsWKT).buffer(-shrinkRadius);
+			if (geometry.isEmpty()) {
+				LOGGER.info("Including geometry is empty once shrunk");
+				return;
+			}
+			includingGeom = PreparedGeometryFactory.prepare(geometry);
+			excludingGeom = (excludingGeomAsWKT == null ? null : PreparedGeometryFactory.prepare(reader.read(excludingGeomAsWKT).buffer(-shrinkRadius)));
+		} catch (ParseException e) {
+			LOGGER.error("Unable to parse geometry: " + e.getMessage());
+			return;
+		}
+		final Quantization quantization = this.getQuantization();
+		String geometry = "ST_GeomFromWKB(?, " + this.srid + ")";
+		String query = "SELECT " + this.getXYColumns() + ", z FROM " + this.tableName + " WHERE geom && " + geometry
+				+ this.buildTileCondition(geometry) + this.buildDecimationCondition(result.getDecimationStep());
 		LOGGER.debug("Used query is: " + query);
-		List<Coordinates> results = this.jdbcTemplate.query(query, new RowMapper<Coordinates>() {
-			public Coordinates mapRow(ResultSet rs, int rowNum) throws SQLException {
-				Coordinates coordinates = new Coordinates(rs.getString("x"), rs.getString("y"), rs.getString("z"));
-				return coordinates;
+		final byte[] wkb = new WKBWriter().write(includingGeom.getGeometry());
+		this.jdbcTemplate.query(query, new RowCallbackHandler() {
+			public void processRow(ResultSet rs) throws SQLException {
+				double x = getX(rs, 1, quantization), y = getY(rs, 2, quantization);
+				Geometry point = geometryFactory.createPoint(new Coordinate(x, y));
+				if (includingGeom.intersects(point) && (excludingGeom == null || excludingGeom.disjoint(point))) {
+					result.add((float) x, (float) y, (float) getZ(rs, 3, quantization) * valueScale);
+				}
 			}
-		});
-		return results;
+		}, this.buildQueryParameters(wkb, null));
+	}
+
+	/**
+	 * Coordinates are read with primitive getters (integers if they are quantized) so no string is built for each row.
+	 */
+	private double getX(ResultSet rs, int column, Quantization quantization) throws SQLException {
+		return quantization == null ? rs.getDouble(column) : quantization.dequantizeX(rs.getInt(column));
+	}
+
+	private double getY(ResultSet rs, int column, Quantization quantization) throws SQLException {
+		return quantization == null ? rs.getDouble(column) : quantization.dequantizeY(rs.getInt(column));
+	}
+
+	private double getZ(ResultSet rs, int column, Quantization quantization) throws SQLException {
+		return quantization == null ? rs.getDouble(column) : quantization.dequantizeZ(rs.getInt(column));
+	}
+
+	/**
+	 * Returns the columns of the x and y coordinates in the SRID of the database. Quantized coordinates are copied in binary mode so they are
+	 * already in that SRID, but numeric ones can be in the SRID of the loaded files (in text mode only the geometry is transformed), so they are
+	 * read from the geometry.
+	 */
+	private String getXYColumns() {
+		return this.getQuantization() == null ? "ST_X(geom), ST_Y(geom)" : "x, y";
+	}
+
+	/**
+	 * Returns the SQL expression of the real value of a coordinate column (useful for the aggregations), x and y are in the SRID of the database
+	 * (see above).
+	 */
+	private String getColumnExpression(String column) {
+		Quantization quantization = this.getQuantization();
+		if (quantization != null) {
+			return quantization.getColumnExpression(column);
+		}
+		return "z".equals(column) ? column : "ST_" + column.toUpperCase() + "(geom)";
+	}
+
+	/**
+	 * Returns the condition which restricts a query to the tiles whose extent intersects the envelope of the geometry (or nothing if the table is
+	 * not partitioned). The tile IDs are computed once by an InitPlan so the other partitions are pruned when the query is executed.
+	 */
+	private String buildTileCondition(String geometry) {
+		if (!this.isPartitioned()) {
+			return "";
+		}
+		return " AND tile_id = ANY((SELECT array_agg(tile_id) FROM " + this.tableName + TILES_SUFFIX + " WHERE extent && " + geometry + ")::bigint[])";
+	}
+
+	/**
+	 * Returns the parameters of a query by geometry: the including geometry as WKB, twice if the table is partitioned since it's used by the tile
+	 * condition too, followed by the excluding geometry as WKB if there's one (or null if a geometry cannot be parsed).
+	 */
+	private Object[] buildQueryParameters(String includingGeomAsWKT, String excludingGeomAsWKT) {
+		try {
+			WKTReader reader = new WKTReader(this.geometryFactory);
+			WKBWriter writer = new WKBWriter();
+			return this.buildQueryParameters(writer.write(reader.read(includingGeomAsWKT)),
+					excludingGeomAsWKT == null ? null : writer.write(reader.read(excludingGeomAsWKT)));
+		} catch (ParseException e) {
+			LOGGER.error("Unable to parse geometry: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private Object[] buildQueryParameters(byte[] includingWkb, byte[] excludingWkb) {
+		List<Object> args = new ArrayList<>(3);
+		args.add(includingWkb);
+		if (this.isPartitioned()) {
+			args.add(includingWkb);
+		}
+		if (excludingWkb != null) {
+			args.add(excludingWkb);
+		}
+		return args.toArray();
+	}
+
+	/**
+	 * The geometries are WKB parameters (see above) so the text of the query is the same for all the geometries and its statement can be prepared
+	 * once by the server (unless the points are decimated). Both geometries are shrunk as in the client side mode, so both modes return the same
+	 * points.
+	 */
+	private String buildQueryByGeometry(boolean excluding, float shrinkRadius, int geomSrid, int decimationStep) {
+		String includingGeom = "ST_Transform(ST_Buffer(ST_GeomFromWKB(?, " + geomSrid + "), -" + shrinkRadius + "), " + this.srid + ")";
+		String query = "SELECT " + this.getXYColumns() + ", z FROM " + this.tableName + " WHERE ST_Intersects(geom, " + includingGeom + ")"
+				+ this.buildTileCondition(includingGeom);
+		if (excluding) {
+			String excludingGeom = "ST_Transform(ST_Buffer(ST_GeomFromWKB(?, " + geomSrid + "), -" + shrinkRadius + "), " + this.srid + ")";
+			query += " AND ST_Disjoint(geom, " + excludingGeom + ")";
+		}
+		query += this.buildDecimationCondition(decimationStep);
+		LOGGER.debug("Used query is: " + query);
+		return query;
+	}
+
+	/**
+	 * Points are decimated by a random filter on the rows and not by TABLESAMPLE, whose sample scan would prevent the use of the spatial index.
+	 */
+	private String buildDecimationCondition(int decimationStep) {
+		return decimationStep > 1 ? " AND random() < " + (1.0 / decimationStep) : "";
 	}
 
 }
@@ -0,0 +1,312 @@
+package org.openstreetmap.osmaxil.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openstreetmap.osmaxil.model.ElevationImport;
+import org.openstreetmap.osmaxil.model.misc.ElevationPointBuffer;
+import org.openstreetmap.osmaxil.util.ElevationPyramid;
+import org.openstreetmap.osmaxil.util.PolygonRasterizer;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.io.ParseException;
+
+/**
+ * Point cloud stored in a local binary file with a fixed-cell grid index, the whole file is memory-mapped.
+ *
+ * Layout of the file:
+ * <ul>
+ * <li>a header (magic, version, SRID, grid dimensions, grid origin, cell size and point count)</li>
+ * <li>the index: for each cell (in row-major order) the position of its first point, plus a final entry with the total of points</li>
+ * <li>the points, sorted by cell, as 3 floats (x and y relative to the grid origin and z)</li>
+ * </ul>
+ * Since cells are sorted in row-major order, the points of consecutive cells of a row are contiguous in the file.
+ */
+public class ElevationGridFile implements ElevationDataSource {
+
+	static public final int MAGIC = 0x4F454746; // "OEGF"
+
+	static public final int VERSION = 1;
+
+	static public final int HEADER_SIZE = 64;
+
+	static public final int POINT_SIZE = 12;
+
+	// Points are mapped by segments because a single mapping cannot exceed 2GB
+	static public final int POINTS_BY_SEGMENT = 1 << 26;
+
+	private String filePath;
+
+	private int srid;
+
+	private int columnCount, rowCount;
+
+	private double xMin, yMin;
+
+	private double cellSize;
+
+	private long pointCount;
+
+	private MappedByteBuffer index;
+
+	private MappedByteBuffer[] segments;
+
+	public ElevationGridFile(String source, int srid) {
+		this.init(source, srid);
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Public overrided methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public void init(String source, int srid) {
+		this.filePath = source;
+		this.srid = srid;
+		this.index = null;
+		this.segments = null;
+		if (!new File(this.filePath).exists()) {
+			LOGGER.warn("Grid file " + this.filePath + " doesn't exist yet, it needs to be loaded");
+			return;
+		}
+		LOGGER.info("Opening " + this.filePath);
+		try (RandomAccessFile file = new RandomAccessFile(this.filePath, "r"); FileChannel channel = file.getChannel()) {
+			MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+				throw new IOException("File is not a grid file (or its version is not supported)");
+			}
+			int fileSrid = header.getInt(8);
+			if (fileSrid != this.srid) {
+				LOGGER.warn("SRID of the grid file is " + fileSrid + " but SRID " + this.srid + " is expected");
+			}
+			this.columnCount = header.getInt(12);
+			this.rowCount = header.getInt(16);
+			this.xMin = header.getDouble(20);
+			this.yMin = header.getDouble(28);
+			this.cellSize = header.getDouble(36);
+			this.pointCount = header.getLong(44);
+			this.index = channel.map(MapMode.READ_ONLY, HEADER_SIZE, getIndexSize(this.columnCount, this.rowCount));
+			this.segments = mapSegments(channel, MapMode.READ_ONLY, getPointsPosition(this.columnCount, this.rowCount), this.pointCount);
+			LOGGER.info("Grid has " + this.columnCount + "x" + this.rowCount + " cells of " + this.cellSize + " and " + this.pointCount + " points");
+		} catch (IOException e) {
+			LOGGER.error("Unable to open grid file " + this.filePath + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public int getSrid() {
+		return this.srid;
+	}
+
+	/**
+	 * Returns the closest point of the cell which contains the coordinates (or of its neighbour cells).
+	 */
+	@Override
+	public ElevationImport findElevationByCoordinates(float x, float y, float valueScale, int srid) {
+		if (!this.checkAvailability(srid)) {
+			return null;
+		}
+		long closest = this.findClosestPoint(x, y);
+		if (closest < 0) {
+			LOGGER.warn("No point has been found around coordinates (" + x + ", " + y + ")");
+			return null;
+		}
+		return new ElevationImport(x, y, this.getZ(closest) * valueScale);
+	}
+
+	/**
+	 * Coordinates are sorted by cell so the points are read in the order of the file.
+	 */
+	@Override
+	public void findElevationsByCoordinates(float[] x, float[] y, int count, float valueScale, int srid, float[] result) {
+		Arrays.fill(result, 0, count, Float.NaN);
+		if (!this.checkAvailability(srid)) {
+			return;
+		}
+		// Each key is made of the cell index (high bits) and of the coordinates index (low bits)
+		long[] keys = new long[count];
+		for (int i = 0; i < count; i++) {
+			long row = Math.max(0, Math.min(this.rowCount - 1, (long) Math.floor((y[i] - this.yMin) / this.cellSize)));
+			long column = Math.max(0, Math.min(this.columnCount - 1, (long) Math.floor((x[i] - this.xMin) / this.cellSize)));
+			keys[i] = ((row * this.columnCount + column) << 32) | i;
+		}
+		Arrays.sort(keys);
+		for (int k = 0; k < count; k++) {
+			int i = (int) keys[k];
+			long closest = this.findClosestPoint(x[i], y[i]);
+			if (closest >= 0) {
+				result[i] = this.getZ(closest) * valueScale;
+			}
+		}
+		LOGGER.info("Elevations of " + count + " coordinates have been read from " + this.filePath);
+	}
+
+	@Override
+	public List<ElevationImport> findAllElevationsByGeometry(String includingGeomAsWKT, String excludingGeomAsWKT, float valueScale,
+			float shrinkRadius, int geomSrid) {
+		ElevationPointBuffer points = new ElevationPointBuffer();
+		this.findAllElevationsByGeometry(includingGeomAsWKT, excludingGeomAsWKT, valueScale, shrinkRadius, geomSrid, points);
+		return points.toElevationImports();
+	}
+
+	/**
+	 * Find all points which are inside the including geometry and outside the excluding geometry (useful for multipolygon buildings with "hole").
+	 * Only the cells which intersect the envelope of the shrunk including geometry are read. If the points are decimated only one point out of the
+	 * decimation step of the result is read.
+	 */
+	@Override
+	public void findAllElevationsByGeometry(String includingGeomAsWKT, String excludingGeomAsWKT, float valueScale, float shrinkRadius, int geomSrid,
+			ElevationPointBuffer result) {
+		result.clear();
+		if (!this.checkAvailability(geomSrid)) {
+			return;
+		}
+		PolygonRasterizer including, excluding = null;
+		try {
+			including = PolygonRasterizer.fromWKT(includingGeomAsWKT, shrinkRadius);
+			if (excludingGeomAsWKT != null) {
+				excluding = PolygonRasterizer.fromWKT(excludingGeomAsWKT, shrinkRadius);
+			}
+		} catch (ParseException e) {
+			LOGGER.error("Unable to parse geometry: " + e.getMessage());
+			return;
+		}
+		if (including == null) {
+			LOGGER.debug("Including geometry is empty once it has been shrunk");
+			return;
+		}
+		Envelope envelope = including.getEnvelope();
+		int c1 = Math.max(0, (int) Math.floor((envelope.getMinX() - this.xMin) / this.cellSize));
+		int c2 = Math.min(this.columnCount - 1, (int) Math.floor((envelope.getMaxX() - this.xMin) / this.cellSize));
+		int r1 = Math.max(0, (int) Math.floor((envelope.getMinY() - this.yMin) / this.cellSize));
+		int r2 = Math.min(this.rowCount - 1, (int) Math.floor((envelope.getMaxY() - this.yMin) / this.cellSize));
+		int step = result.getDecimationStep();
+		long next = 0;
+		for (int r = r1; r <= r2 && c1 <= c2; r++) {
+			long end = this.getCellStart(r, c2 + 1);
+			long p;
+			for (p = this.getCellStart(r, c1) + next; p < end; p += step) {
+				double x = this.xMin + this.getX(p);
+				double y = this.yMin + this.getY(p);
+				if (including.contains(x, y) && (excluding == null || !excluding.contains(x, y))) {
+					result.add((float) x, (float) y, this.getZ(p) * valueScale);
+				}
+			}
+			next = p - end;
+		}
+	}
+
+	@Override
+	public ElevationPyramid buildPyramid(double cellSize) {
+		if (!this.checkAvailability(this.srid)) {
+			return null;
+		}
+		ElevationPyramid pyramid = new ElevationPyramid(this.xMin, this.yMin, this.xMin + this.columnCount * this.cellSize,
+				this.yMin + this.rowCount * this.cellSize, cellSize);
+		for (long p = 0; p < this.pointCount; p++) {
+			pyramid.add(this.xMin + this.getX(p), this.yMin + this.getY(p), this.getZ(p));
+		}
+		pyramid.build();
+		return pyramid;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Public (not overrided) methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	public boolean isLoaded() {
+		return this.index != null;
+	}
+
+	public String getFilePath() {
+		return this.filePath;
+	}
+
+	public static long getIndexSize(int columnCount, int rowCount) {
+		return 8L * ((long) columnCount * rowCount + 1);
+	}
+
+	public static long getPointsPosition(int columnCount, int rowCount) {
+		return HEADER_SIZE + getIndexSize(columnCount, rowCount);
+	}
+
+	public static MappedByteBuffer[] mapSegments(FileChannel channel, MapMode mode, long position, long pointCount) throws IOException {
+		int segmentCount = (int) ((pointCount + POINTS_BY_SEGMENT - 1) / POINTS_BY_SEGMENT);
+		MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			long size = Math.min(POINTS_BY_SEGMENT, pointCount - (long) i * POINTS_BY_SEGMENT) * POINT_SIZE;
+			segments[i] = channel.map(mode, position + (long) i * POINTS_BY_SEGMENT * POINT_SIZE, size);
+		}
+		return segments;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Private methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	private boolean checkAvailability(int geomSrid) {
+		if (this.index == null) {
+			LOGGER.error("Grid file " + this.filePath + " is not loaded");
+			return false;
+		}
+		if (geomSrid != this.srid) {
+			LOGGER.error("Geometry SRID (" + geomSrid + ") doesn't match the grid SRID (" + this.srid + ")");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the closest point of the cell which contains the coordinates (or of its neighbour cells), or -1 if there's none.
+	 */
+	private long findClosestPoint(float x, float y) {
+		int column = (int) Math.floor((x - this.xMin) / this.cellSize);
+		int row = (int) Math.floor((y - this.yMin) / this.cellSize);
+		float xRelative = (float) (x - this.xMin);
+		float yRelative = (float) (y - this.yMin);
+		long closest = -1;
+		float closestDistance = Float.MAX_VALUE;
+		for (int r = Math.max(0, row - 1); r <= Math.min(this.rowCount - 1, row + 1); r++) {
+			int c1 = Math.max(0, column - 1);
+			int c2 = Math.min(this.columnCount - 1, column + 1);
+			if (c1 > c2) {
+				continue;
+			}
+			long end = this.getCellStart(r, c2 + 1);
+			for (long p = this.getCellStart(r, c1); p < end; p++) {
+				float dx = this.getX(p) - xRelative;
+				float dy = this.getY(p) - yRelative;
+				float distance = dx * dx + dy * dy;
+				if (distance < closestDistance) {
+					closestDistance = distance;
+					closest = p;
+				}
+			}
+		}
+		return closest;
+	}
+
+	// Absolute getters are used so the mapped buffers can be shared by several threads
+	private long getCellStart(int row, int column) {
+		return this.index.getLong((int) (8L * ((long) row * this.columnCount + column)));
+	}
+
+	private float getX(long point) {
+		return this.segments[(int) (point / POINTS_BY_SEGMENT)].getFloat((int) (point % POINTS_BY_SEGMENT) * POINT_SIZE);
+	}
+
+	private float getY(long point) {
+		return this.segments[(int) (point / POINTS_BY_SEGMENT)].getFloat((int) (point % POINTS_BY_SEGMENT) * POINT_SIZE + 4);
+	}
+
+	private float getZ(long point) {
+		return this.segments[(int) (point / POINTS_BY_SEGMENT)].getFloat((int) (point % POINTS_BY_SEGMENT) * POINT_SIZE + 8);
+	}
+
+}
@@ -7,24 +7,20 @@ import org.gdal.gdal.Band;
 import org.gdal.gdal.Dataset;
 import org.gdal.gdal.gdal;
 import org.gdal.gdalconst.gdalconstConstants;
-import org.openstreetmap.osmaxil.model.ElevationImport;
 
 //@Service("ElevationRasterFile") @Lazy @Scope("prototype")
-public class ElevationRasterFile implements ElevationDataSource {
-
-	private String filePath;
-
-	private int srid;
+public class ElevationRasterFile extends AbstractElevationRasterFile {
 
 	private Dataset dataset;
 
-	private double xUpperLeft, yUpperLeft;
-
-	private double xPixelSize, yPixelSize;
-
 	private List<Band> bands;
 
 	public ElevationRasterFile(String source, int srid) {
+		this(source, srid, DEFAULT_CACHE_SIZE);
+	}
+
+	public ElevationRasterFile(String source, int srid, int cacheSizeInMB) {
+		super(cacheSizeInMB);
 		this.init(source, srid);
 	}
 
@@ -50,30 +46,25 @@ public class ElevationRasterFile implements ElevationDataSource {
 		this.xPixelSize = geotransform[1];
 		this.yPixelSize = Math.abs(geotransform[5]);
 		LOGGER.info("Pixel sizes are: " + this.xPixelSize + " " + this.yPixelSize);
+		// Store the raster sizes and the value used for pixels without data
+		this.xSize = dataset.getRasterXSize();
+		this.ySize = dataset.getRasterYSize();
+		Double[] noData = new Double[1];
+		this.bands.get(0).GetNoDataValue(noData);
+		this.noDataValue = noData[0];
+		LOGGER.info("Raster sizes are: " + this.xSize + " " + this.ySize + " (no data value is " + this.noDataValue + ")");
+		// Init the cache of blocks (aligned to the natural block size of the dataset)
+		this.blockWidth = this.bands.get(0).GetBlockXSize();
+		this.blockHeight = this.bands.get(0).GetBlockYSize();
+		this.initCache();
 	}
 
+	/**
+	 * Accesses to GDAL are serialized since a dataset cannot be shared by several threads.
+	 */
 	@Override
-	public ElevationImport findElevationByCoordinates(float x, float y, float valueScale, int srid) {
-		int xFile = (int) Math.round((x - xUpperLeft) / this.xPixelSize);
-		int yFile = (int) Math.round((yUpperLeft - y) / this.yPixelSize);
-		float[] data = new float[1];
-		bands.get(0).ReadRaster(xFile, yFile, 1, 1, data);
-		ElevationImport result = new ElevationImport(x, y, data[0] * valueScale);
-		return result;
-	}
-
-	@Override
-	public List<ElevationImport> findAllElevationsByGeometry(String includingGeomAsWKT, String excludingGeomAsWKT, float valueScale, float shrinkRadius,
-			int geomSrid) {
-		List<ElevationImport> result = new ArrayList<>();
-		// TODO the task is not trivial:
-		// https://gis.stackexchange.com/questions/186483/how-to-get-the-pixels-from-a-geotiff-file-in-gdal-python-for-a-given-polygon
-		return result;
-	}
-
-	@Override
-	public int getSrid() {
-		return srid;
+	protected synchronized void readRaster(int x, int y, int width, int height, float[] data) {
+		this.bands.get(0).ReadRaster(x, y, width, height, data);
 	}
 
 }
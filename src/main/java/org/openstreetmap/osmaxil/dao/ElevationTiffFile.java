@@ -0,0 +1,56 @@
+package org.openstreetmap.osmaxil.dao;
+
+import java.io.IOException;
+
+import org.openstreetmap.osmaxil.util.GeoTiffReader;
+
+/**
+ * Elevation raster read from a GeoTIFF file by a pure Java reader (see {@link GeoTiffReader}), so neither the native GDAL library nor any lock is
+ * required.
+ */
+public class ElevationTiffFile extends AbstractElevationRasterFile {
+
+	private GeoTiffReader reader;
+
+	public ElevationTiffFile(String source, int srid) {
+		this(source, srid, DEFAULT_CACHE_SIZE);
+	}
+
+	public ElevationTiffFile(String source, int srid, int cacheSizeInMB) {
+		super(cacheSizeInMB);
+		this.init(source, srid);
+	}
+
+	@Override
+	public void init(String source, int srid) {
+		this.filePath = source;
+		this.srid = srid;
+		LOGGER.info("Opening " + this.filePath);
+		try {
+			this.reader = new GeoTiffReader(this.filePath);
+		} catch (IOException e) {
+			// Raster stays empty so all lookups will be outside of it
+			LOGGER.error("Unable to open GeoTIFF file " + this.filePath + ": " + e.getMessage());
+			return;
+		}
+		this.xUpperLeft = this.reader.getXUpperLeft();
+		this.yUpperLeft = this.reader.getYUpperLeft();
+		LOGGER.info("Upper left coordinates are: " + this.xUpperLeft + " " + this.yUpperLeft);
+		this.xPixelSize = this.reader.getXPixelSize();
+		this.yPixelSize = this.reader.getYPixelSize();
+		LOGGER.info("Pixel sizes are: " + this.xPixelSize + " " + this.yPixelSize);
+		this.xSize = this.reader.getWidth();
+		this.ySize = this.reader.getHeight();
+		this.noDataValue = this.reader.getNoDataValue();
+		LOGGER.info("Raster sizes are: " + this.xSize + " " + this.ySize + " (no data value is " + this.noDataValue + ")");
+		this.blockWidth = this.reader.getBlockWidth();
+		this.blockHeight = this.reader.getBlockHeight();
+		this.initCache();
+	}
+
+	@Override
+	protected void readRaster(int x, int y, int width, int height, float[] data) {
+		this.reader.readRaster(x, y, width, height, data);
+	}
+
+}
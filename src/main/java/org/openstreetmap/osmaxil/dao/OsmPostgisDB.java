@@ -4,19 +4,36 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
 
 import org.apache.log4j.Logger;
 import org.openstreetmap.osmaxil.Application;
 import org.openstreetmap.osmaxil.model.BuildingElement;
+import org.openstreetmap.osmaxil.model.VegetationElement;
 import org.openstreetmap.osmaxil.model.misc.Coordinates;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.io.WKTReader;
 
 @Service
 public class OsmPostgisDB {
@@ -28,9 +45,29 @@ public class OsmPostgisDB {
 	@Value("${osmPostgis.srid}")
 	private int srid;
 
+	/**
+	 * Number of rows fetched at once by the queries which can return the elements of a whole region, their rows are read through a server-side
+	 * cursor so they are never all on the heap.
+	 */
+	@Value("${osmPostgis.fetchSize:10000}")
+	private int fetchSize;
+
+	// Same as the JDBC template but with a fetch size, PostgreSQL uses a cursor only if the statement is executed inside a transaction
+	private JdbcTemplate cursorJdbcTemplate;
+
+	private TransactionTemplate cursorTransactionTemplate;
+
 	// TODO Value the SRID in settings.xml
 	private static int SRID_FOR_AREA_COMPUTATION = 32633;
 
+	// Max number of IDs sent by query
+	private static int CHUNK_SIZE_FOR_IDS = 10000;
+
+	// Max number of geometries sent by query
+	private static int CHUNK_SIZE_FOR_GEOMETRIES = 1000;
+
+	private GeometryFactory geometryFactory = new GeometryFactory();
+
 	static private final Logger LOGGER = Logger.getLogger(Application.class);
 
 	public Long[] findClosestElementIdsByQuery(String query) {
@@ -38,46 +75,60 @@ public class OsmPostgisDB {
 		return null;
 	}
 
-	public Long[] findElementIdsByQuery(String query) {
+	public Long[] findElementIdsByQuery(String query, Object... args) {
 		List<Long> result = this.jdbcTemplate.query(query, new RowMapper<Long>() {
 			public Long mapRow(ResultSet rs, int rowNum) throws SQLException {
-				return Long.parseLong(rs.getString("osm_id"));
+				return rs.getLong("osm_id");
 			}
-		});
+		}, args);
 		return result.toArray(new Long[result.size()]);
 	}
 
-	public class IdWithDouble {
+	public static class IdWithDouble {
 		public long id;
 		public double d;
 	}
 
-	public IdWithDouble[] findElementIdsWithDoubleByQuery(String query) {
+	public IdWithDouble[] findElementIdsWithDoubleByQuery(String query, Object... args) {
 		List<IdWithDouble> result = this.jdbcTemplate.query(query, new RowMapper<IdWithDouble>() {
 			public IdWithDouble mapRow(ResultSet rs, int rowNum) throws SQLException {
 				IdWithDouble idWithDouble = new IdWithDouble();
-				idWithDouble.id = Long.parseLong(rs.getString("osm_id"));
-				idWithDouble.d = Double.parseDouble(rs.getString("score"));
+				idWithDouble.id = rs.getLong("osm_id");
+				idWithDouble.d = rs.getDouble("score");
 				return idWithDouble;
 			}
-		});
+		}, args);
 		return result.toArray(new IdWithDouble[result.size()]);
 	}
 
+	/**
+	 * Handler of the geometries of a query, they are handled one by one as they are read.
+	 */
+	public interface GeometryHandler {
+		void processGeometry(long osmId, byte[] wkb);
+	}
+
+	/**
+	 * Handler of the buildings of a query, they are handled one by one as they are read.
+	 */
+	public interface BuildingHandler {
+		void processBuilding(BuildingElement building);
+	}
+
 	public class IdWithString {
 		public long id;
 		public String string;
 	}
 
-	public IdWithString[] findElementIdsWithGeomByQuery(String query) {
+	public IdWithString[] findElementIdsWithGeomByQuery(String query, Object... args) {
 		List<IdWithString> result = this.jdbcTemplate.query(query, new RowMapper<IdWithString>() {
 			public IdWithString mapRow(ResultSet rs, int rowNum) throws SQLException {
 				IdWithString idWithGeom = new IdWithString();
-				idWithGeom.id = Long.parseLong(rs.getString("osm_id"));
+				idWithGeom.id = rs.getLong("osm_id");
 				idWithGeom.string = rs.getString("geomAsWKT");
 				return idWithGeom;
 			}
-		});
+		}, args);
 		return result.toArray(new IdWithString[result.size()]);
 	}
 
@@ -99,7 +150,7 @@ public class OsmPostgisDB {
 	public Coordinates getPolygonCenter(long osmId, int targetSrid) {
 		String query = "select ST_X(ST_Centroid(way)) as x, ST_Y(ST_Centroid(way)) as y from planet_osm_polygon where osm_id = ?";
 		if (targetSrid != this.getSrid()) {
-			query = "select ST_X(center) as x, ST_Y(center) as y from (select ST_Transform(ST_Centroid(way), 2154) as center from planet_osm_polygon where osm_id = ?) a";
+			query = "select ST_X(center) as x, ST_Y(center) as y from (select ST_Transform(ST_Centroid(way), " + targetSrid + ") as center from planet_osm_polygon where osm_id = ?) a";
 		}
 		LOGGER.debug("Computing center of polygon with query: " + query);
 		List<Coordinates> result = this.jdbcTemplate.query(query, new RowMapper<Coordinates>() {
@@ -111,71 +162,379 @@ public class OsmPostgisDB {
 		return result.get(0);
 	}
 
+	/**
+	 * Same as above but for several polygons at once, the IDs are sent by chunks as arrays so there's only one query by chunk.
+	 */
+	public Map<Long, Coordinates> getPolygonCenters(List<Long> osmIds, int targetSrid) {
+		final Map<Long, Coordinates> result = new HashMap<>();
+		String center = (targetSrid == this.getSrid() ? "ST_Centroid(way)" : "ST_Transform(ST_Centroid(way), " + targetSrid + ")");
+		String query = "select osm_id, ST_X(center) as x, ST_Y(center) as y from (select osm_id, " + center
+				+ " as center from planet_osm_polygon where osm_id = ANY(?::bigint[])) a";
+		LOGGER.debug("Computing centers of polygons with query: " + query);
+		for (int start = 0; start < osmIds.size(); start += CHUNK_SIZE_FOR_IDS) {
+			StringBuilder ids = new StringBuilder("{");
+			for (int i = start; i < Math.min(osmIds.size(), start + CHUNK_SIZE_FOR_IDS); i++) {
+				ids.append(i > start ? "," : "").append(osmIds.get(i));
+			}
+			this.jdbcTemplate.query(query, new RowCallbackHandler() {
+				public void processRow(ResultSet rs) throws SQLException {
+					// TODO handle multi outer members (only the first one is kept, like above)
+					long osmId = rs.getLong("osm_id");
+					if (!result.containsKey(osmId)) {
+						result.put(osmId, new Coordinates(rs.getString("x"), rs.getString("y"), "0"));
+					}
+				}
+			}, ids.append("}").toString());
+		}
+		return result;
+	}
+
+	/**
+	 * Transform coordinates from a SRID to another one, coordinates are sent by chunks as arrays so there's only one query by chunk. NaN coordinates
+	 * are kept as they are.
+	 */
+	public void transformCoordinates(float[] x, float[] y, int count, int sourceSrid, int targetSrid, final float[] xResult, final float[] yResult) {
+		String query = "select p.i, ST_X(t.point), ST_Y(t.point) from unnest(?::float8[], ?::float8[], ?::int[]) as p(x, y, i)"
+				+ " cross join lateral (select ST_Transform(ST_SetSRID(ST_MakePoint(p.x, p.y), " + sourceSrid + "), " + targetSrid + ") as point) t";
+		LOGGER.debug("Transforming coordinates with query: " + query);
+		for (int start = 0; start < count; start += CHUNK_SIZE_FOR_IDS) {
+			StringBuilder xArray = new StringBuilder("{");
+			StringBuilder yArray = new StringBuilder("{");
+			StringBuilder indexes = new StringBuilder("{");
+			for (int i = start; i < Math.min(count, start + CHUNK_SIZE_FOR_IDS); i++) {
+				xResult[i] = Float.NaN;
+				yResult[i] = Float.NaN;
+				if (Float.isNaN(x[i]) || Float.isNaN(y[i])) {
+					continue;
+				}
+				String separator = (indexes.length() > 1 ? "," : "");
+				xArray.append(separator).append(x[i]);
+				yArray.append(separator).append(y[i]);
+				indexes.append(separator).append(i);
+			}
+			this.jdbcTemplate.query(query, new RowCallbackHandler() {
+				public void processRow(ResultSet rs) throws SQLException {
+					xResult[rs.getInt(1)] = rs.getFloat(2);
+					yResult[rs.getInt(1)] = rs.getFloat(3);
+				}
+			}, xArray.append("}").toString(), yArray.append("}").toString(), indexes.append("}").toString());
+		}
+	}
+
 	public int getSrid() {
 		return srid;
 	}
 
+	////////////////////////////////////////////////////////////////////////////////
+	// Queries by geometry
+	////////////////////////////////////////////////////////////////////////////////
+
+	// Geometries are sent as WKB parameters so a query has the same text for all the geometries (only the SRID is in the text, it doesn't change
+	// during a run). Its statement is pooled by the data source and prepared once by the server (see poolPreparedStatements in spring.xml).
+
+	/**
+	 * Returns the IDs of the buildings which intersect the geometry.
+	 */
+	public Long[] findBuildingIdsByGeometry(Geometry geometry, int srid) {
+		String query = "SELECT osm_id FROM planet_osm_polygon WHERE building <> '' AND ST_Intersects(way, " + this.buildGeometryParameter(srid) + ")";
+		LOGGER.debug("Looking in PostGIS for buildings intersecting geometry: " + query);
+		return this.findElementIdsByQuery(query, this.toWKB(geometry));
+	}
+
+	/**
+	 * Returns the IDs of the buildings which contain the geometry.
+	 */
+	public Long[] findBuildingIdsContainingGeometry(Geometry geometry, int srid) {
+		String query = "SELECT osm_id FROM planet_osm_polygon WHERE building <> '' AND ST_Contains(way, " + this.buildGeometryParameter(srid) + ")";
+		LOGGER.debug("Looking in PostGIS for buildings containing geometry: " + query);
+		return this.findElementIdsByQuery(query, this.toWKB(geometry));
+	}
+
+	/**
+	 * Same as above but for several geometries at once (or same as below if containing is true). Geometries are sent by chunks as arrays of hex
+	 * WKB which are joined with the buildings, so there's only one query by chunk. Returns the IDs of the buildings by index of the geometries
+	 * (geometries without building are missing).
+	 */
+	public Map<Integer, List<Long>> findBuildingIdsByGeometries(List<Geometry> geometries, int srid, boolean containing) {
+		final Map<Integer, List<Long>> result = new HashMap<>();
+		String geometry = this.buildGeometryColumn("g.wkb", srid);
+		String query = "SELECT g.i, p.osm_id FROM unnest(?::text[]) WITH ORDINALITY AS g(wkb, i) JOIN planet_osm_polygon p ON p.building <> '' AND "
+				+ (containing ? "ST_Contains" : "ST_Intersects") + "(p.way, " + geometry + ")";
+		LOGGER.debug("Looking in PostGIS for buildings by geometries: " + query);
+		for (int start = 0; start < geometries.size(); start += CHUNK_SIZE_FOR_GEOMETRIES) {
+			final int offset = start;
+			this.jdbcTemplate.query(query, new RowCallbackHandler() {
+				public void processRow(ResultSet rs) throws SQLException {
+					// Ordinality starts at 1
+					int index = offset + rs.getInt(1) - 1;
+					List<Long> ids = result.get(index);
+					if (ids == null) {
+						ids = new ArrayList<>();
+						result.put(index, ids);
+					}
+					ids.add(rs.getLong(2));
+				}
+			}, this.toHexWKBArray(geometries, start, Math.min(geometries.size(), start + CHUNK_SIZE_FOR_GEOMETRIES)));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the IDs of the trees which are inside the radius around each geometry, with their distance to the geometry as score (closest first).
+	 * Only the closest trees are returned if a limit is specified (0 for no limit). Geometries are sent by chunks like above and the trees of each
+	 * geometry are found by a KNN search (the index of the trees is scanned by distance) in a lateral join, so there's only one query by chunk.
+	 * Returns the trees by index of the geometries (geometries without tree are missing).
+	 */
+	public Map<Integer, List<IdWithDouble>> findTreeIdsWithDistanceByGeometries(List<Geometry> geometries, int srid, double radius, int limit) {
+		final Map<Integer, List<IdWithDouble>> result = new HashMap<>();
+		String geometry = this.buildGeometryColumn("g.wkb", srid);
+		String query = "SELECT g.i, n.osm_id, n.score FROM unnest(?::text[]) WITH ORDINALITY AS g(wkb, i) CROSS JOIN LATERAL (SELECT " + geometry
+				+ " AS geom) t CROSS JOIN LATERAL (SELECT osm_id, ST_Distance(way, t.geom) AS score FROM planet_osm_point WHERE \"natural\" = 'tree'"
+				+ " AND ST_DWithin(way, t.geom, " + radius + ") ORDER BY way <-> t.geom LIMIT " + (limit > 0 ? limit : "ALL") + ") n ORDER BY g.i, n.score";
+		LOGGER.debug("Looking in PostGIS for trees around geometries: " + query);
+		for (int start = 0; start < geometries.size(); start += CHUNK_SIZE_FOR_GEOMETRIES) {
+			final int offset = start;
+			this.jdbcTemplate.query(query, new RowCallbackHandler() {
+				public void processRow(ResultSet rs) throws SQLException {
+					// Ordinality starts at 1
+					int index = offset + rs.getInt(1) - 1;
+					List<IdWithDouble> trees = result.get(index);
+					if (trees == null) {
+						trees = new ArrayList<>();
+						result.put(index, trees);
+					}
+					IdWithDouble tree = new IdWithDouble();
+					tree.id = rs.getLong(2);
+					tree.d = rs.getDouble(3);
+					trees.add(tree);
+				}
+			}, this.toHexWKBArray(geometries, start, Math.min(geometries.size(), start + CHUNK_SIZE_FOR_GEOMETRIES)));
+		}
+		return result;
+	}
+
 	public List<BuildingElement> findBuildingsByArea(String includingAreaString, String excludingAreaString, int filteringAreaSrid) {
-		// Use a map because some building could be fetched twice from PostGIS (ie. outer members of building relations which has is own tags)
-		Map<Long, BuildingElement> buildings = new HashMap<>();
-		List<Long> targetedRelationIds = new ArrayList<>();
+		return this.findBuildingsByArea(includingAreaString, excludingAreaString, filteringAreaSrid, this.srid);
+	}
+
+	/**
+	 * Same as above but the geometries of the returned buildings are transformed into the specified SRID.
+	 */
+	public List<BuildingElement> findBuildingsByArea(String includingAreaString, String excludingAreaString, int filteringAreaSrid,
+			int geometrySrid) {
+		final List<BuildingElement> buildings = new ArrayList<>();
+		this.findBuildingsByArea(includingAreaString, excludingAreaString, filteringAreaSrid, geometrySrid, new BuildingHandler() {
+			public void processBuilding(BuildingElement building) {
+				buildings.add(building);
+			}
+		});
+		return buildings;
+	}
+
+	/**
+	 * Same as above but the buildings are passed to the handler as soon as their rows are read: rows are fetched through a server-side cursor and
+	 * geometries are transferred as WKB and kept as JTS geometries, so the whole result set is never on the heap (even for a region with millions
+	 * of buildings). If a building is fetched twice only its first row is handled. Returns the number of handled buildings.
+	 */
+	public int findBuildingsByArea(String includingAreaString, String excludingAreaString, int filteringAreaSrid, int geometrySrid,
+			final BuildingHandler handler) {
+		// Some building could be fetched twice from PostGIS (ie. outer members of building relations which has is own tags), only IDs are kept
+		final Set<Long> handledBuildingIds = new HashSet<>();
+		final Set<Long> targetedRelationIds = new HashSet<>();
 		// Get only elements whose coordinates are fine with the filtering areas
-		String condition = "ST_Intersects(way, ST_Transform(ST_GeomFromText('" + includingAreaString + "', " + filteringAreaSrid + "), " + this.srid
-				+ "))";
-		condition += " AND ST_Disjoint(way, ST_Transform(ST_GeomFromText('" + excludingAreaString + "', " + filteringAreaSrid + "), " + this.srid
-				+ "))";
-		String query = "SELECT osm_id, ST_AsText(way) AS geomAsWKT, 1 FROM planet_osm_polygon WHERE building <> '' AND " + condition;
+		String condition = "ST_Intersects(way, " + this.buildGeometryParameter(filteringAreaSrid) + ") AND ST_Disjoint(way, "
+				+ this.buildGeometryParameter(filteringAreaSrid) + ")";
+		String geometry = (geometrySrid == this.srid ? "way" : "ST_Transform(way, " + geometrySrid + ")");
+		String query = "SELECT osm_id, ST_AsBinary(" + geometry + ") AS geomAsWKB FROM planet_osm_polygon WHERE building <> '' AND " + condition;
 		// Specify building IDs directly (used for debugging)
-		// query = "SELECT osm_id, ST_AsText(way) AS geomAsWKT, 1 FROM planet_osm_polygon WHERE osm_id = -6640171";
-		LOGGER.debug("Used query is: " + query);
+		// query = "SELECT osm_id, ST_AsBinary(way) AS geomAsWKB FROM planet_osm_polygon WHERE osm_id = -6640171";
+		final WKBReader reader = new WKBReader(this.geometryFactory);
 		// Fetch from DB the IDs and the geometries
-		OsmPostgisDB.IdWithString[] idsWithGeom = this.findElementIdsWithGeomByQuery(query);
-		for (OsmPostgisDB.IdWithString idWithGeom : idsWithGeom) {
-			// If ID is negative it means the element is normal (ie. a way)
-			if (idWithGeom.id > 0) {
-				BuildingElement building = new BuildingElement(idWithGeom.id);
-				building.setGeometryString(idWithGeom.string);
-				buildings.put(building.getOsmId(), building);
-			}
-			// If ID is negative it means the element is a relation
-			// See http://wiki.openstreetmap.org/wiki/Osm2pgsql/schema for details
-			else {
-				long relationId = -idWithGeom.id;
-				if (targetedRelationIds.contains(relationId)) {
-					LOGGER.info("Relation with ID=" + relationId + " has already been targeted, skipping it...");
-				} else {
-					targetedRelationIds.add(relationId);
-					String membersString = this.getRelationMembers(relationId);
-					List<Long> outerMemberIds = BuildingElement.getOuterOrInnerMemberIds(relationId, membersString, true);
-					// For now only relations with only one "outer" member are supported
-					// See my thread on the french OSM forum:
-					// http://forum.openstreetmap.fr/viewtopic.php?f=5&t=6397&sid=2986b3c59cfc7c1877237b8ad8982110
-					/*
-					 * long outerMemberId = outerMemberIds.get(currentOuterMemberIndex); this.outerMemberIndexes.put(relationId,
-					 * ++currentOuterMemberIndex); LOGGER.info("Outer member ID selected is " + outerMemberId + " (current index is " +
-					 * currentOuterMemberIndex + "), creating a new element with it");
-					 */
-					if (outerMemberIds.size() > 1) {
-						LOGGER.warn("Relation with ID=" + relationId
-								+ " is new but it has several outer members, only relation with an unique outer member are supported for now.");
-					} else if (outerMemberIds.size() < 1) {
-						LOGGER.warn("Relation with ID=" + relationId
-								+ " is new but it doesn't have any outer members, only relation with an unique outer member are supported for now.");
-					} else {
-						// Create a new element from the unique outer member
-						long outerMemberId = outerMemberIds.get(0);
-						LOGGER.info("Relation with ID=" + relationId + " is new, create a new targeted element from its unique outer member (id="
-								+ outerMemberId + ")");
-						BuildingElement building = new BuildingElement(outerMemberId);
-						building.setRelationId(relationId);
-						building.setGeometryString(idWithGeom.string);
-						buildings.put(building.getOsmId(), building);
-					}
+		this.queryWithCursor(query, new RowCallbackHandler() {
+			public void processRow(ResultSet rs) throws SQLException {
+				long osmId = rs.getLong("osm_id");
+				BuildingElement building = createBuilding(osmId, targetedRelationIds);
+				if (building == null) {
+					return;
 				}
+				if (!handledBuildingIds.add(building.getOsmId())) {
+					LOGGER.info("Building with ID=" + building.getOsmId() + " has already been targeted, skipping it...");
+					return;
+				}
+				try {
+					building.setGeometry(reader.read(rs.getBytes("geomAsWKB")));
+				} catch (ParseException e) {
+					LOGGER.warn("Geometry of element " + osmId + " cannot be parsed: " + e.getMessage());
+				}
+				handler.processBuilding(building);
 			}
+		}, this.toWKB(includingAreaString), this.toWKB(excludingAreaString));
+		LOGGER.info("Number of returned buildings: " + handledBuildingIds.size());
+		return handledBuildingIds.size();
+	}
+
+	/**
+	 * Find the buildings which intersect the including area and pass their geometries (as WKB in the SRID of the database) to the handler.
+	 */
+	public void findBuildingGeometriesByArea(String includingAreaString, int filteringAreaSrid, GeometryHandler handler) {
+		String query = "SELECT osm_id, ST_AsBinary(way) FROM planet_osm_polygon WHERE building <> '' AND ST_Intersects(way, "
+				+ this.buildGeometryParameter(filteringAreaSrid) + ")";
+		this.findGeometriesByQuery(query, handler, this.toWKB(includingAreaString));
+	}
+
+	/**
+	 * Find the trees which are inside the including area (or close to it, the margin is in units of the SRID of the database) and pass their
+	 * geometries (as WKB in the SRID of the database) to the handler.
+	 */
+	public void findTreeGeometriesByArea(String includingAreaString, int filteringAreaSrid, double margin, GeometryHandler handler) {
+		String query = "SELECT osm_id, ST_AsBinary(way) FROM planet_osm_point WHERE \"natural\" = 'tree' AND ST_DWithin(way, "
+				+ this.buildGeometryParameter(filteringAreaSrid) + ", " + margin + ")";
+		this.findGeometriesByQuery(query, handler, this.toWKB(includingAreaString));
+	}
+
+	/**
+	 * Returns the trees (ie. nodes with natural=tree) which are inside the filtering areas, their geometries are points transformed into the
+	 * specified SRID. Rows are read through a server-side cursor and handled one by one so no intermediate array is built, even for hundreds of
+	 * thousands of trees.
+	 */
+	public List<VegetationElement> findTreesByArea(String includingAreaString, String excludingAreaString, int filteringAreaSrid,
+			int geometrySrid) {
+		final List<VegetationElement> trees = new ArrayList<>();
+		String condition = "ST_Intersects(way, " + this.buildGeometryParameter(filteringAreaSrid) + ") AND ST_Disjoint(way, "
+				+ this.buildGeometryParameter(filteringAreaSrid) + ")";
+		String geometry = (geometrySrid == this.srid ? "way" : "ST_Transform(way, " + geometrySrid + ")");
+		String query = "SELECT osm_id, ST_X(geom) AS x, ST_Y(geom) AS y FROM (SELECT osm_id, " + geometry
+				+ " AS geom FROM planet_osm_point WHERE \"natural\" = 'tree' AND " + condition + ") a";
+		this.queryWithCursor(query, new RowCallbackHandler() {
+			public void processRow(ResultSet rs) throws SQLException {
+				VegetationElement tree = new VegetationElement(rs.getLong("osm_id"));
+				tree.setGeometryString("POINT(" + rs.getDouble("x") + " " + rs.getDouble("y") + ")");
+				trees.add(tree);
+			}
+		}, this.toWKB(includingAreaString), this.toWKB(excludingAreaString));
+		LOGGER.info("Number of returned trees: " + trees.size());
+		return trees;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Private methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	@PostConstruct
+	private void init() {
+		this.cursorJdbcTemplate = new JdbcTemplate(this.jdbcTemplate.getDataSource());
+		this.cursorJdbcTemplate.setFetchSize(this.fetchSize);
+		this.cursorTransactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(this.jdbcTemplate.getDataSource()));
+		this.cursorTransactionTemplate.setReadOnly(true);
+	}
+
+	/**
+	 * Execute the query inside a read only transaction so its rows are read through a server-side cursor, by blocks of fetchSize rows. Other
+	 * statements executed by the handler meanwhile use the same connection, but only from the calling thread: the pool has a single connection
+	 * which stays in the transaction until the end of the query, so the other threads cannot use the database meanwhile (they would wait for the
+	 * connection until the max wait of the pool then fail).
+	 */
+	private void queryWithCursor(final String query, final RowCallbackHandler handler, final Object... args) {
+		LOGGER.debug("Used query is: " + query);
+		this.cursorTransactionTemplate.execute(new TransactionCallback<Object>() {
+			public Object doInTransaction(TransactionStatus status) {
+				cursorJdbcTemplate.query(query, handler, args);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Create the building of a row of the polygon table, returns null if it's a relation which has already been targeted or which is not
+	 * supported.
+	 */
+	private BuildingElement createBuilding(long osmId, Set<Long> targetedRelationIds) {
+		// If ID is positive it means the element is normal (ie. a way)
+		if (osmId > 0) {
+			return new BuildingElement(osmId);
+		}
+		// If ID is negative it means the element is a relation
+		// See http://wiki.openstreetmap.org/wiki/Osm2pgsql/schema for details
+		long relationId = -osmId;
+		if (!targetedRelationIds.add(relationId)) {
+			LOGGER.info("Relation with ID=" + relationId + " has already been targeted, skipping it...");
+			return null;
+		}
+		String membersString = this.getRelationMembers(relationId);
+		List<Long> outerMemberIds = BuildingElement.getOuterOrInnerMemberIds(relationId, membersString, true);
+		// For now only relations with only one "outer" member are supported
+		// See my thread on the french OSM forum:
+		// http://forum.openstreetmap.fr/viewtopic.php?f=5&t=6397&sid=2986b3c59cfc7c1877237b8ad8982110
+		/*
+		 * long outerMemberId = outerMemberIds.get(currentOuterMemberIndex); this.outerMemberIndexes.put(relationId, ++currentOuterMemberIndex);
+		 * LOGGER.info("Outer member ID selected is " + outerMemberId + " (current index is " + currentOuterMemberIndex +
+		 * "), creating a new element with it");
+		 */
+		if (outerMemberIds.size() > 1) {
+			LOGGER.warn("Relation with ID=" + relationId
+					+ " is new but it has several outer members, only relation with an unique outer member are supported for now.");
+			return null;
+		} else if (outerMemberIds.size() < 1) {
+			LOGGER.warn("Relation with ID=" + relationId
+					+ " is new but it doesn't have any outer members, only relation with an unique outer member are supported for now.");
+			return null;
+		}
+		// Create a new element from the unique outer member
+		long outerMemberId = outerMemberIds.get(0);
+		LOGGER.info("Relation with ID=" + relationId + " is new, create a new targeted element from its unique outer member (id=" + outerMemberId
+				+ ")");
+		BuildingElement building = new BuildingElement(outerMemberId);
+		building.setRelationId(relationId);
+		return building;
+	}
+
+	private void findGeometriesByQuery(String query, final GeometryHandler handler, Object... args) {
+		this.queryWithCursor(query, new RowCallbackHandler() {
+			public void processRow(ResultSet rs) throws SQLException {
+				handler.processGeometry(rs.getLong(1), rs.getBytes(2));
+			}
+		}, args);
+	}
+
+	/**
+	 * Returns the SQL expression of a geometry parameter in the specified SRID, it's transformed into the SRID of the database if it's needed.
+	 */
+	private String buildGeometryParameter(int srid) {
+		String geometry = "ST_GeomFromWKB(?, " + srid + ")";
+		return (srid == this.srid ? geometry : "ST_Transform(" + geometry + ", " + this.srid + ")");
+	}
+
+	/**
+	 * Same as above but for a column of hex WKB (see below).
+	 */
+	private String buildGeometryColumn(String column, int srid) {
+		String geometry = "ST_GeomFromWKB(decode(" + column + ", 'hex'), " + srid + ")";
+		return (srid == this.srid ? geometry : "ST_Transform(" + geometry + ", " + this.srid + ")");
+	}
+
+	/**
+	 * Returns a range of geometries as an array literal of hex WKB, which can be unnested with its ordinality in order to join the geometries.
+	 */
+	private String toHexWKBArray(List<Geometry> geometries, int start, int end) {
+		WKBWriter writer = new WKBWriter();
+		StringBuilder wkbs = new StringBuilder("{");
+		for (int i = start; i < end; i++) {
+			wkbs.append(i > start ? "," : "").append(WKBWriter.toHex(writer.write(geometries.get(i))));
+		}
+		return wkbs.append("}").toString();
+	}
+
+	private byte[] toWKB(Geometry geometry) {
+		// Writers are not thread safe
+		return new WKBWriter().write(geometry);
+	}
+
+	private byte[] toWKB(String geometryAsWKT) {
+		try {
+			return this.toWKB(new WKTReader(this.geometryFactory).read(geometryAsWKT));
+		} catch (ParseException e) {
+			throw new IllegalArgumentException("Unable to parse geometry " + geometryAsWKT + ": " + e.getMessage(), e);
 		}
-		LOGGER.info("Number of returned buildings: " + buildings.size());
-		return new ArrayList<>(buildings.values());
 	}
 
 }
@@ -0,0 +1,249 @@
+package org.openstreetmap.osmaxil.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.openstreetmap.osmaxil.Application;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateFilter;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+
+/**
+ * Snapshot in memory of the buildings and of the trees of the OSM database which are inside the including area, so the matchers can find them
+ * without any query. Elements are fetched once (at their first use) and indexed by a STRtree, geometries of the buildings are prepared so the
+ * spatial predicates stay fast even for complex buildings. Once built the snapshot can be queried by several threads.
+ *
+ * Geometries of the snapshot are in the SRID of the OSM database, so the geometries of the queries must be in the same SRID or in WGS84 if the
+ * database is in pseudo-mercator (they are transformed locally). Otherwise the snapshot cannot be used and the database must be queried.
+ */
+@Service
+public class OsmSnapshot {
+
+	@Autowired
+	private OsmPostgisDB osmPostgis;
+
+	@Value("${osmPostgis.snapshot:false}")
+	private boolean enabled;
+
+	@Value("${osmaxil.filteringArea.including}")
+	private String includingAreaString;
+
+	@Value("${osmaxil.filteringArea.srid}")
+	private int filteringAreaSrid;
+
+	private volatile STRtree buildings;
+
+	private volatile STRtree trees;
+
+	// Margin of the trees around the including area (trees are fetched again if a larger radius is used)
+	private double treeMargin;
+
+	private GeometryFactory geometryFactory = new GeometryFactory();
+
+	static private final int SRID_OF_WGS84 = 4326;
+
+	static private final int SRID_OF_PSEUDO_MERCATOR = 3857;
+
+	static private final double EARTH_RADIUS = 6378137;
+
+	static private final Logger LOGGER = Logger.getLogger(Application.class);
+
+	/**
+	 * Element of the snapshot (the prepared geometry is used for the buildings only).
+	 */
+	private static class Entry {
+
+		long osmId;
+
+		Geometry geometry;
+
+		PreparedGeometry preparedGeometry;
+
+	}
+
+	/**
+	 * Returns true if the snapshot is enabled and if it can be queried with geometries in the specified SRID.
+	 */
+	public boolean isUsable(int srid) {
+		return this.enabled
+				&& (srid == this.osmPostgis.getSrid() || (srid == SRID_OF_WGS84 && this.osmPostgis.getSrid() == SRID_OF_PSEUDO_MERCATOR));
+	}
+
+	/**
+	 * Returns the IDs of the buildings which intersect the geometry (or which contain it if containing is true).
+	 */
+	public List<Long> findBuildingIds(Geometry geometry, int srid, boolean containing) {
+		Geometry transformedGeometry = this.transform(geometry, srid);
+		List<Long> result = new ArrayList<>();
+		for (Object item : this.getBuildings().query(transformedGeometry.getEnvelopeInternal())) {
+			Entry building = (Entry) item;
+			// Prepared geometries build their internal structures lazily so they cannot be used by several threads at once
+			synchronized (building) {
+				if (containing ? building.preparedGeometry.contains(transformedGeometry) : building.preparedGeometry.intersects(transformedGeometry)) {
+					result.add(building.osmId);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Same as above but for several geometries at once, same contract as {@link OsmPostgisDB#findBuildingIdsByGeometries(List, int, boolean)}.
+	 */
+	public Map<Integer, List<Long>> findBuildingIdsByGeometries(List<Geometry> geometries, int srid, boolean containing) {
+		Map<Integer, List<Long>> result = new HashMap<>();
+		for (int i = 0; i < geometries.size(); i++) {
+			List<Long> ids = this.findBuildingIds(geometries.get(i), srid, containing);
+			if (!ids.isEmpty()) {
+				result.put(i, ids);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the IDs of the trees which are inside the radius around the geometry, with their distance to the geometry as score (closest first).
+	 * Only the closest trees are returned if a limit is specified (0 for no limit).
+	 */
+	public List<OsmPostgisDB.IdWithDouble> findTreeIds(Geometry geometry, int srid, double radius, int limit) {
+		Geometry transformedGeometry = this.transform(geometry, srid);
+		Envelope envelope = new Envelope(transformedGeometry.getEnvelopeInternal());
+		envelope.expandBy(radius);
+		List<OsmPostgisDB.IdWithDouble> result = new ArrayList<>();
+		for (Object item : this.getTrees(radius).query(envelope)) {
+			Entry tree = (Entry) item;
+			double distance = tree.geometry.distance(transformedGeometry);
+			if (distance <= radius) {
+				OsmPostgisDB.IdWithDouble idWithDistance = new OsmPostgisDB.IdWithDouble();
+				idWithDistance.id = tree.osmId;
+				idWithDistance.d = distance;
+				result.add(idWithDistance);
+			}
+		}
+		Collections.sort(result, new Comparator<OsmPostgisDB.IdWithDouble>() {
+			@Override
+			public int compare(OsmPostgisDB.IdWithDouble o1, OsmPostgisDB.IdWithDouble o2) {
+				return Double.compare(o1.d, o2.d);
+			}
+		});
+		return (limit > 0 && result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result);
+	}
+
+	/**
+	 * Same as above but for several geometries at once, same contract as
+	 * {@link OsmPostgisDB#findTreeIdsWithDistanceByGeometries(List, int, double, int)}.
+	 */
+	public Map<Integer, List<OsmPostgisDB.IdWithDouble>> findTreeIdsWithDistanceByGeometries(List<Geometry> geometries, int srid, double radius,
+			int limit) {
+		Map<Integer, List<OsmPostgisDB.IdWithDouble>> result = new HashMap<>();
+		for (int i = 0; i < geometries.size(); i++) {
+			List<OsmPostgisDB.IdWithDouble> trees = this.findTreeIds(geometries.get(i), srid, radius, limit);
+			if (!trees.isEmpty()) {
+				result.put(i, trees);
+			}
+		}
+		return result;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Private methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	private STRtree getBuildings() {
+		if (this.buildings == null) {
+			synchronized (this) {
+				if (this.buildings == null) {
+					long start = System.currentTimeMillis();
+					final STRtree index = new STRtree();
+					final WKBReader reader = new WKBReader(this.geometryFactory);
+					this.osmPostgis.findBuildingGeometriesByArea(this.includingAreaString, this.filteringAreaSrid, new OsmPostgisDB.GeometryHandler() {
+						public void processGeometry(long osmId, byte[] wkb) {
+							Entry building = createEntry(osmId, wkb, reader);
+							if (building != null) {
+								building.preparedGeometry = PreparedGeometryFactory.prepare(building.geometry);
+								index.insert(building.geometry.getEnvelopeInternal(), building);
+							}
+						}
+					});
+					index.build();
+					LOGGER.info("Snapshot of " + index.size() + " buildings has been built in " + (System.currentTimeMillis() - start) + " ms");
+					this.buildings = index;
+				}
+			}
+		}
+		return this.buildings;
+	}
+
+	private STRtree getTrees(double margin) {
+		if (this.trees == null || margin > this.treeMargin) {
+			synchronized (this) {
+				if (this.trees == null || margin > this.treeMargin) {
+					long start = System.currentTimeMillis();
+					final STRtree index = new STRtree();
+					final WKBReader reader = new WKBReader(this.geometryFactory);
+					this.osmPostgis.findTreeGeometriesByArea(this.includingAreaString, this.filteringAreaSrid, margin, new OsmPostgisDB.GeometryHandler() {
+						public void processGeometry(long osmId, byte[] wkb) {
+							Entry tree = createEntry(osmId, wkb, reader);
+							if (tree != null) {
+								index.insert(tree.geometry.getEnvelopeInternal(), tree);
+							}
+						}
+					});
+					index.build();
+					LOGGER.info("Snapshot of " + index.size() + " trees has been built in " + (System.currentTimeMillis() - start) + " ms");
+					this.treeMargin = margin;
+					this.trees = index;
+				}
+			}
+		}
+		return this.trees;
+	}
+
+	private Entry createEntry(long osmId, byte[] wkb, WKBReader reader) {
+		Entry entry = new Entry();
+		entry.osmId = osmId;
+		try {
+			entry.geometry = reader.read(wkb);
+		} catch (ParseException e) {
+			LOGGER.warn("Skipping element " + osmId + " because its geometry cannot be parsed: " + e.getMessage());
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Transform a geometry into the SRID of the database, the only supported transformation is from WGS84 to pseudo-mercator (see isUsable()).
+	 */
+	private Geometry transform(Geometry geometry, int srid) {
+		if (srid == this.osmPostgis.getSrid()) {
+			return geometry;
+		}
+		Geometry result = (Geometry) geometry.clone();
+		result.apply(new CoordinateFilter() {
+			@Override
+			public void filter(Coordinate coordinate) {
+				coordinate.x = EARTH_RADIUS * Math.toRadians(coordinate.x);
+				coordinate.y = EARTH_RADIUS * Math.log(Math.tan(Math.PI / 4 + Math.toRadians(coordinate.y) / 2));
+			}
+		});
+		result.geometryChanged();
+		return result;
+	}
+
+}
@@ -1,21 +1,38 @@
 package org.openstreetmap.osmaxil.flow;
 
+import static org.openstreetmap.osmaxil.dao.ElevationDataSource.Type.CLOUD;
 import static org.openstreetmap.osmaxil.dao.ElevationDataSource.Type.DB;
 import static org.openstreetmap.osmaxil.dao.ElevationDataSource.Type.FILE;
+import static org.openstreetmap.osmaxil.dao.ElevationDataSource.Type.GRID;
+import static org.openstreetmap.osmaxil.dao.ElevationDataSource.Type.TIFF;
+
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
 
 import org.openstreetmap.osmaxil.Exception;
+import org.openstreetmap.osmaxil.dao.AbstractElevationRasterFile;
+import org.openstreetmap.osmaxil.dao.ElevationCloudFile;
 import org.openstreetmap.osmaxil.dao.ElevationDataSource;
 import org.openstreetmap.osmaxil.dao.ElevationDatabase;
+import org.openstreetmap.osmaxil.dao.ElevationGridFile;
 import org.openstreetmap.osmaxil.dao.ElevationRasterFile;
+import org.openstreetmap.osmaxil.dao.ElevationTiffFile;
 import org.openstreetmap.osmaxil.model.AbstractElement;
 import org.openstreetmap.osmaxil.model.AbstractImport;
 import org.openstreetmap.osmaxil.model.ElementTag;
+import org.openstreetmap.osmaxil.model.misc.ElevationPointBuffer;
 import org.openstreetmap.osmaxil.plugin.loader.AbstractElevationDbLoader;
+import org.openstreetmap.osmaxil.plugin.loader.ElevationGridFileLoader;
+import org.openstreetmap.osmaxil.util.ElevationPyramid;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.jdbc.core.JdbcTemplate;
 
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+
 public abstract class AbstractElevatorFlow<ELEMENT extends AbstractElement, IMPORT extends AbstractImport>
 		extends _AbstractDrivenByElementFlow<ELEMENT, IMPORT> {
 
@@ -33,9 +50,59 @@ public abstract class AbstractElevatorFlow<ELEMENT extends AbstractElement, IMPO
 	@Value("${elevator.toleranceDelta}")
 	public float toleranceDelta;
 
-	protected int counterForOutsideDtmValues;
+	@Value("${elevator.raster.cacheSize:" + AbstractElevationRasterFile.DEFAULT_CACHE_SIZE + "}")
+	public int rasterCacheSize;
+
+	/**
+	 * Points of the DSM which are matching the current element, each processing thread has its own buffer which is reused for all its elements.
+	 */
+	protected ThreadLocal<ElevationPointBuffer> matchingPoints = new ThreadLocal<ElevationPointBuffer>() {
+		@Override
+		protected ElevationPointBuffer initialValue() {
+			ElevationPointBuffer buffer = new ElevationPointBuffer();
+			buffer.setSampleSize(computeSampleSize());
+			return buffer;
+		}
+	};
+
+	/**
+	 * If enabled the geometries of the elements are fetched in the SRID of the elevation database and the matching points are filtered by JTS
+	 * (instead of PostGIS, the matching points are the same).
+	 */
+	@Value("${elevator.db.clientSideGeometries:false}")
+	public boolean clientSideGeometries;
+
+	/**
+	 * Max distance of the closest point of coordinates when the elevation data source is a database (in units of its SRID).
+	 */
+	@Value("${elevator.db.maxDistance:" + ElevationDatabase.DEFAULT_MAX_DISTANCE + "}")
+	public double dbMaxDistance;
+
+	@Value("${elevator.pyramid.cellSize:0}")
+	public double pyramidCellSize;
+
+	/**
+	 * Max error on the matching score of an element when its points are sampled (0 means points are not sampled). It's not a bound on the error of
+	 * the computed height, which also depends on the spread of the elevations of the element.
+	 */
+	@Value("${elevator.sampling.maxScoreError:0}")
+	public double samplingMaxScoreError;
+
+	/**
+	 * Z-score of the confidence level of the max score error (1.96 for 95%).
+	 */
+	@Value("${elevator.sampling.zScore:1.96}")
+	public double samplingZScore;
+
+	protected AtomicInteger counterForSampledElements = new AtomicInteger();
 
-	protected int counterForOutsideDsmValues;
+	protected AtomicInteger counterForOutsideDtmValues = new AtomicInteger();
+
+	protected AtomicInteger counterForOutsideDsmValues = new AtomicInteger();
+
+	protected AtomicInteger counterForOutsideDtmValuesByPyramid = new AtomicInteger();
+
+	protected AtomicInteger counterForOtherRejectionsByPyramid = new AtomicInteger();
 
 	///////////////////////////////
 	// Digital Terrain Model (DTM)
@@ -43,6 +110,8 @@ public abstract class AbstractElevatorFlow<ELEMENT extends AbstractElement, IMPO
 
 	protected ElevationDataSource dtm;
 
+	protected ElevationPyramid dtmPyramid;
+
 	@Value("${elevator.dtm.type}")
 	public String dtmType;
 
@@ -74,6 +143,8 @@ public abstract class AbstractElevatorFlow<ELEMENT extends AbstractElement, IMPO
 
 	protected ElevationDataSource dsm;
 
+	protected ElevationPyramid dsmPyramid;
+
 	@Value("${elevator.dsm.type}")
 	public String dsmType;
 
@@ -86,7 +157,7 @@ public abstract class AbstractElevatorFlow<ELEMENT extends AbstractElement, IMPO
 	@Value("${elevator.dsm.minValue}")
 	public int dsmMinValue;
 
-	@Value("${elevator.dtm.maxValue}")
+	@Value("${elevator.dsm.maxValue}")
 	public int dsmMaxValue;
 
 	@Value("${elevator.dsm.srid}")
@@ -99,38 +170,226 @@ public abstract class AbstractElevatorFlow<ELEMENT extends AbstractElement, IMPO
 	@Value("${elevator.dsm.loader:}")
 	public String dsmLoaderType;
 
+	// =========================================================================
+	// Abstract methods
+	// =========================================================================
+
+	/**
+	 * Fill the buffer with the points which are matching the element (the buffer has been cleared before).
+	 */
+	abstract protected void findMatchingPoints(ELEMENT element, int srid, ElevationPointBuffer points);
+
+	// =========================================================================
+	// Public and protected methods
+	// =========================================================================
+
 	@PostConstruct
 	// TODO redo that part with Spring IoC feature (warning: I had some issues with prototype scoped beans)
 	void init() {
 		// Init of the DTM
-		if (dtmType.equals(DB.name()))
+		if (dtmType.equals(DB.name())) {
 			this.dtm = new ElevationDatabase(this.dtmSource, this.dtmSrid, (JdbcTemplate) this.appContext.getBean("elevationPostgisJdbcTemplate"));
+			((ElevationDatabase) this.dtm).setClientSideGeometries(this.clientSideGeometries);
+			((ElevationDatabase) this.dtm).setMaxDistance(this.dbMaxDistance);
+		}
 		if (dtmType.equals(FILE.name()))
-			this.dtm = new ElevationRasterFile(this.dtmSource, this.dtmSrid);
+			this.dtm = new ElevationRasterFile(this.dtmSource, this.dtmSrid, this.rasterCacheSize);
+		if (dtmType.equals(GRID.name()))
+			this.dtm = new ElevationGridFile(this.dtmSource, this.dtmSrid);
+		if (dtmType.equals(TIFF.name()))
+			this.dtm = new ElevationTiffFile(this.dtmSource, this.dtmSrid, this.rasterCacheSize);
+		if (dtmType.equals(CLOUD.name()))
+			this.dtm = new ElevationCloudFile(this.dtmSource, this.dtmSrid);
 		// Init of the DSM
-		if (dsmType.equals(DB.name()))
+		if (dsmType.equals(DB.name())) {
 			this.dsm = new ElevationDatabase(this.dsmSource, this.dsmSrid, (JdbcTemplate) this.appContext.getBean("elevationPostgisJdbcTemplate"));
+			((ElevationDatabase) this.dsm).setClientSideGeometries(this.clientSideGeometries);
+			((ElevationDatabase) this.dsm).setMaxDistance(this.dbMaxDistance);
+		}
 		if (dsmType.equals(FILE.name()))
-			this.dsm = new ElevationRasterFile(this.dtmSource, this.dtmSrid);
+			this.dsm = new ElevationRasterFile(this.dsmSource, this.dsmSrid, this.rasterCacheSize);
+		if (dsmType.equals(GRID.name()))
+			this.dsm = new ElevationGridFile(this.dsmSource, this.dsmSrid);
+		if (dsmType.equals(TIFF.name()))
+			this.dsm = new ElevationTiffFile(this.dsmSource, this.dsmSrid, this.rasterCacheSize);
+		if (dsmType.equals(CLOUD.name()))
+			this.dsm = new ElevationCloudFile(this.dsmSource, this.dsmSrid);
 	}
 
 	@Override
 	public void load() throws Exception {
-		String pkg = AbstractElevationDbLoader.class.getPackage().getName() + ".";
 		try {
 			if (dtmType.equals(DB.name())) {
-				this.dtmLoader = (AbstractElevationDbLoader) Class.forName(pkg + dtmLoaderType).newInstance();
+				this.dtmLoader = (AbstractElevationDbLoader) this.appContext.getBean(dtmLoaderType);
 				this.dtmLoader.load((ElevationDatabase) this.dtm, this.dtmSource);
 			}
 			if (dsmType.equals(DB.name())) {
-				this.dsmLoader = (AbstractElevationDbLoader) Class.forName(pkg + dsmLoaderType).newInstance();
+				this.dsmLoader = (AbstractElevationDbLoader) this.appContext.getBean(dsmLoaderType);
 				this.dsmLoader.load((ElevationDatabase) this.dsm, this.dsmSource);
 			}
+			if (dtmType.equals(GRID.name())) {
+				ElevationGridFileLoader gridLoader = (ElevationGridFileLoader) this.appContext.getBean("ElevationGridFileLoader");
+				gridLoader.load((ElevationGridFile) this.dtm, this.dtmSource);
+			}
+			if (dsmType.equals(GRID.name())) {
+				ElevationGridFileLoader gridLoader = (ElevationGridFileLoader) this.appContext.getBean("ElevationGridFileLoader");
+				gridLoader.load((ElevationGridFile) this.dsm, this.dsmSource);
+			}
+			if (dtmType.equals(CLOUD.name())) {
+				this.dtmLoader = (AbstractElevationDbLoader) this.appContext.getBean(dtmLoaderType);
+				this.dtmLoader.load((ElevationCloudFile) this.dtm, this.dtmSource);
+			}
+			if (dsmType.equals(CLOUD.name())) {
+				this.dsmLoader = (AbstractElevationDbLoader) this.appContext.getBean(dsmLoaderType);
+				this.dsmLoader.load((ElevationCloudFile) this.dsm, this.dsmSource);
+			}
+			this.buildPyramids();
 		} catch (java.lang.Exception e) {
 			throw new Exception("Unable to load elevation database: " + e.getMessage());
 		}
 	}
 
+	/**
+	 * Elevations stored in a database are queried with the geometries of the OSM database (they are transformed by PostGIS) but the other kinds of
+	 * data sources (and the database when geometries are processed on client side) need geometries which are already in their own SRID.
+	 */
+	@Override
+	protected int getTargetedElementsSrid() {
+		if (dsmType.equals(DB.name()) && !this.clientSideGeometries) {
+			return super.getTargetedElementsSrid();
+		}
+		return this.dsm.getSrid();
+	}
+
+	/**
+	 * Reject the element with the min/max pyramids (if they have been built) when the coarse cells which cover its envelope already show that it
+	 * cannot have a valid score: its terrain elevations are all outside the allowed range (once rounded as in the full computation), it has too few
+	 * points or its surface elevations cannot be above the terrain.
+	 *
+	 * The surface elevations are not checked against their allowed range: the elevation which is kept by the full computation can be lower than all
+	 * the points around the element, so the pyramid cannot bound it.
+	 */
+	@Override
+	protected boolean preFilterElement(ELEMENT element) {
+		if (this.dtmPyramid == null && this.dsmPyramid == null) {
+			return true;
+		}
+		Envelope envelope = this.getPreFilterEnvelope(element);
+		if (envelope == null) {
+			return true;
+		}
+		float[] range = new float[2];
+		// Pyramids can be used only if the geometries of the elements are in the same SRID
+		if (this.dtmPyramid != null && this.dtm.getSrid() == this.getTargetedElementsSrid()) {
+			if (this.dtmPyramid.query(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY(), range) > 0) {
+				float min = Math.min(range[0] * this.dtmValueScale, range[1] * this.dtmValueScale);
+				float max = Math.max(range[0] * this.dtmValueScale, range[1] * this.dtmValueScale);
+				if (Math.round(max) < this.dtmMinValue || Math.round(min) > this.dtmMaxValue) {
+					LOGGER.info("Terrain elevations are all outside the range of allowed values (between " + min + " and " + max + ")");
+					this.counterForOutsideDtmValues.incrementAndGet();
+					this.counterForOutsideDtmValuesByPyramid.incrementAndGet();
+					return false;
+				}
+			}
+		}
+		if (this.dsmPyramid != null && this.dsm.getSrid() == this.getTargetedElementsSrid()) {
+			long count = this.dsmPyramid.query(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY(), range);
+			if (count < this.minMatchingPoints) {
+				LOGGER.info("Element has at most " + count + " matching points, minimum value is " + this.minMatchingPoints);
+				this.counterForOtherRejectionsByPyramid.incrementAndGet();
+				return false;
+			}
+			float min = Math.min(range[0] * this.dsmValueScale, range[1] * this.dsmValueScale);
+			float max = Math.max(range[0] * this.dsmValueScale, range[1] * this.dsmValueScale);
+			if (count > 0 && !this.checkSurfaceBounds(element, min, max)) {
+				this.counterForOtherRejectionsByPyramid.incrementAndGet();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the envelope of the area whose points can match the element, it's the envelope of the element by default.
+	 */
+	protected Envelope getPreFilterEnvelope(ELEMENT element) {
+		return this.getElementEnvelope(element);
+	}
+
+	/**
+	 * Check the bounds of the surface elevations around the element (given by the DSM pyramid), returns false if the element can be rejected.
+	 * Accepts all elements by default.
+	 */
+	protected boolean checkSurfaceBounds(ELEMENT element, float minElevation, float maxElevation) {
+		return true;
+	}
+
+	/**
+	 * Build the min/max pyramids of the DTM and of the DSM (if enabled).
+	 */
+	protected void buildPyramids() {
+		if (this.pyramidCellSize <= 0) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		this.dtmPyramid = this.dtm.buildPyramid(this.pyramidCellSize);
+		this.dsmPyramid = this.dsm.buildPyramid(this.pyramidCellSize);
+		LOGGER.info("Pyramids of the DTM and of the DSM have been built in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * The matching points are not bound to the element as imports but stored into primitive columns, because the elevator flows can have thousands
+	 * of points for a single element.
+	 */
+	@Override
+	protected int bindMatchingImports(ELEMENT element) {
+		ElevationPointBuffer points = this.matchingPoints.get();
+		points.clear();
+		points.setExpectedCount(this.estimateMatchingPoints(element));
+		this.findMatchingPoints(element, this.getTargetedElementsSrid(), points);
+		if (points.isSampled()) {
+			LOGGER.info("Matching points have been sampled: " + points.getSize() + " of " + (points.getDecimationStep() > 1 ? "about " : "")
+					+ points.getCounterForPoints() + " points are kept");
+			this.counterForSampledElements.incrementAndGet();
+		}
+		return (int) points.getCounterForPoints();
+	}
+
+	/**
+	 * Estimate the number of DSM points which match the element from the density of the cells of the DSM pyramid around it, so the points of very
+	 * large elements are decimated by the DSM itself (instead of being all read then sampled). Returns 0 if there's no estimate: no pyramid, or
+	 * geometry of the element which is not in the SRID of the DSM.
+	 */
+	protected double estimateMatchingPoints(ELEMENT element) {
+		if (this.dsmPyramid == null || this.dsm.getSrid() != this.getTargetedElementsSrid()) {
+			return 0;
+		}
+		Geometry geometry = element.getGeometry();
+		try {
+			if (geometry == null && element.getGeometryString() != null) {
+				geometry = new WKTReader().read(element.getGeometryString());
+			}
+		} catch (ParseException e) {
+			return 0;
+		}
+		if (geometry == null) {
+			return 0;
+		}
+		Envelope envelope = geometry.getEnvelopeInternal();
+		return this.dsmPyramid.estimateCount(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY(), geometry.getArea());
+	}
+
+	/**
+	 * The matching score is a proportion of points, so the standard error of its estimation from a uniform sample of n points is at most 0.5 /
+	 * sqrt(n). The sample size is the smallest n which keeps the error under the max score error at the confidence level of the z-score.
+	 */
+	protected int computeSampleSize() {
+		if (this.samplingMaxScoreError <= 0) {
+			return 0;
+		}
+		return (int) Math.ceil(this.samplingZScore * this.samplingZScore / (4 * this.samplingMaxScoreError * this.samplingMaxScoreError));
+	}
+
 	@Override
 	protected boolean updateElementTag(ELEMENT element, String tagName) {
 		boolean updated = false;
@@ -155,24 +414,41 @@ public abstract class AbstractElevatorFlow<ELEMENT extends AbstractElement, IMPO
 	public void displayProcessingStatistics() {
 		super.displayProcessingStatistics();
 		LOGGER_FOR_STATS.info("Specific stats of the plugin:");
-		LOGGER_FOR_STATS.info(" - Out of range DTM values: " + this.counterForOutsideDtmValues);
+		LOGGER_FOR_STATS.info(" - Out of range DTM values: " + this.counterForOutsideDtmValues + " (" + this.counterForOutsideDtmValuesByPyramid
+				+ " found by the pyramid)");
 		LOGGER_FOR_STATS.info(" - Out of range DSM values: " + this.counterForOutsideDsmValues);
+		LOGGER_FOR_STATS.info(" - Other elements rejected by the pyramid: " + this.counterForOtherRejectionsByPyramid);
+		LOGGER_FOR_STATS.info(" - Elements whose points have been sampled: " + this.counterForSampledElements);
+		if (this.dtm instanceof AbstractElevationRasterFile) {
+			AbstractElevationRasterFile raster = (AbstractElevationRasterFile) this.dtm;
+			LOGGER_FOR_STATS.info(" - DTM raster cache: " + raster.getCounterForCacheHits() + " hits and " + raster.getCounterForCacheMisses() + " misses");
+		}
+		if (this.dsm instanceof AbstractElevationRasterFile) {
+			AbstractElevationRasterFile raster = (AbstractElevationRasterFile) this.dsm;
+			LOGGER_FOR_STATS.info(" - DSM raster cache: " + raster.getCounterForCacheHits() + " hits and " + raster.getCounterForCacheMisses() + " misses");
+		}
 		LOGGER_FOR_STATS.info("Specific settings of the plugin:");
 		LOGGER_FOR_STATS.info(" - Shrink radius is: " + this.shrinkRadius);
 		LOGGER_FOR_STATS.info(" - Minimum matching point is: " + this.minMatchingPoints);
 		LOGGER_FOR_STATS.info(" - Computing distance is: " + this.computingDistance);
 		LOGGER_FOR_STATS.info(" - Tolerance delta is: " + this.toleranceDelta);
+		LOGGER_FOR_STATS.info(" - Raster cache size is: " + this.rasterCacheSize + "MB");
+		LOGGER_FOR_STATS.info(" - Client side geometries: " + this.clientSideGeometries);
+		LOGGER_FOR_STATS.info(" - Max distance of the closest points in a database: " + this.dbMaxDistance);
+		LOGGER_FOR_STATS.info(" - Pyramid cell size is: " + this.pyramidCellSize);
+		LOGGER_FOR_STATS.info(" - Sample size is: " + (this.computeSampleSize() > 0 ? this.computeSampleSize() + " points (max score error is "
+				+ this.samplingMaxScoreError + " with a z-score of " + this.samplingZScore + ")" : "unlimited"));
 	}
 
 	protected boolean checkElevationValue(float value, ElevationDataSource.Use elevationType) {
 		if (ElevationDataSource.Use.DTM == elevationType) {
 			if (value < this.dtmMinValue || value > this.dtmMaxValue) {
-				this.counterForOutsideDtmValues++;
+				this.counterForOutsideDtmValues.incrementAndGet();
 				return false;
 			}
 		} else if (ElevationDataSource.Use.DSM == elevationType) {
 			if (value < this.dsmMinValue || value > this.dsmMaxValue) {
-				this.counterForOutsideDsmValues++;
+				this.counterForOutsideDsmValues.incrementAndGet();
 				return false;
 			}
 		}
@@ -1,5 +1,6 @@
 package org.openstreetmap.osmaxil.flow;
 
+import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
@@ -60,6 +61,9 @@ public abstract class AbstractRemakerFlow<ELEMENT extends AbstractElement, IMPOR
 
 	@Override
 	public void process() {
+		// Find the matching elements of all the loaded imports at once (matchers can find them with a few queries)
+		Map<Long, List<MatchingElementId>> matchingElementIdsByImportId = this.matcher.findMatchingElements(this.loadedImports,
+				this.parser.getSrid());
 		// For each loaded import, bind it with its matching elements
 		int importNbr = 0;
 		for (IMPORT imp : this.loadedImports) {
@@ -69,7 +73,8 @@ public abstract class AbstractRemakerFlow<ELEMENT extends AbstractElement, IMPOR
 				LOGGER.warn("Import is null, skipping it...");
 				break;
 			}
-			this.associateImportsWithElements(imp);
+			List<MatchingElementId> matchingElementIds = matchingElementIdsByImportId.get(imp.getId());
+			this.associateImportsWithElements(imp, matchingElementIds != null ? matchingElementIds : new ArrayList<MatchingElementId>());
 			LOGGER.info(LOG_SEPARATOR);
 		}
 		// For each matched element, compute its matching score and process it if it's remakable
@@ -135,9 +140,8 @@ public abstract class AbstractRemakerFlow<ELEMENT extends AbstractElement, IMPOR
 
 	// TODO make these private methods common with the AbstractUpdaterPlugin
 
-	private void associateImportsWithElements(IMPORT imp) {
-		// Find relevant element
-		List<MatchingElementId> matchingElementIds = this.matcher.findMatchingElements(imp, this.parser.getSrid());
+	private void associateImportsWithElements(IMPORT imp, List<MatchingElementId> matchingElementIds) {
+		// Count the imports which have matching elements
 		if (matchingElementIds.size() > 0) {
 			this.counterForMatchedImports++;
 		}
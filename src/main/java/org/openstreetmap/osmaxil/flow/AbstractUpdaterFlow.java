@@ -1,5 +1,6 @@
 package org.openstreetmap.osmaxil.flow;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Hashtable;
@@ -75,6 +76,9 @@ public abstract class AbstractUpdaterFlow<ELEMENT extends AbstractElement, IMPOR
 
 	@Override
 	public void process() {
+		// Find the matching elements of all the loaded imports at once (matchers can find them with a few queries)
+		Map<Long, List<MatchingElementId>> matchingElementIdsByImportId = this.matcher.findMatchingElements(this.loadedImports,
+				this.parser.getSrid());
 		// For each loaded import, bind it with its matching elements
 		int importNbr = 0;
 		for (IMPORT imp : this.loadedImports) {
@@ -83,7 +87,8 @@ public abstract class AbstractUpdaterFlow<ELEMENT extends AbstractElement, IMPOR
 				LOGGER.warn("Import is null, skipping it...");
 				break;
 			}
-			this.associateImportsWithElements(imp);
+			List<MatchingElementId> matchingElementIds = matchingElementIdsByImportId.get(imp.getId());
+			this.associateImportsWithElements(imp, matchingElementIds != null ? matchingElementIds : new ArrayList<MatchingElementId>());
 			LOGGER.info(LOG_SEPARATOR);
 		}
 		// For each matched element, compute its matching score
@@ -182,9 +187,8 @@ public abstract class AbstractUpdaterFlow<ELEMENT extends AbstractElement, IMPOR
 		}
 	}
 
-	private void associateImportsWithElements(IMPORT imp) {
-		// Find relevant elements
-		List<MatchingElementId> matchingElementIds = this.matcher.findMatchingElements(imp, this.parser.getSrid());
+	private void associateImportsWithElements(IMPORT imp, List<MatchingElementId> matchingElementIds) {
+		// Count the imports which have matching elements
 		if (matchingElementIds.size() > 0) {
 			this.counterForMatchedImports++;
 		}
@@ -1,13 +1,17 @@
 package org.openstreetmap.osmaxil.flow;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.openstreetmap.osmaxil.dao.ElevationDataSource;
-import org.openstreetmap.osmaxil.model.AbstractImport;
+import org.openstreetmap.osmaxil.dao.OsmPostgisDB;
 import org.openstreetmap.osmaxil.model.BuildingElement;
 import org.openstreetmap.osmaxil.model.ElevationImport;
 import org.openstreetmap.osmaxil.model.misc.Coordinates;
+import org.openstreetmap.osmaxil.model.misc.ElevationPointBuffer;
+import org.openstreetmap.osmaxil.util.ElevationHistogram;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 
@@ -15,8 +19,76 @@ import org.springframework.stereotype.Component;
 @Lazy
 public class BuildingElevatorFlow extends AbstractElevatorFlow<BuildingElement, ElevationImport> {
 
+	/**
+	 * Terrain elevations of the targeted buildings (by their OSM ID), they are computed at once before the processing of each chunk.
+	 */
+	protected Map<Long, Float> terrainElevations = new HashMap<>();
+
 	protected List<BuildingElement> getTargetedElements() {
-		return this.osmPostgis.findBuildingsByArea(this.includingAreaString, this.excludingAreaString, this.filteringAreaSrid);
+		return this.osmPostgis.findBuildingsByArea(this.includingAreaString, this.excludingAreaString, this.filteringAreaSrid,
+				this.getTargetedElementsSrid());
+	}
+
+	/**
+	 * Buildings are read through a server-side cursor and processed by chunks as they are read.
+	 */
+	@Override
+	protected boolean streamTargetedElements() {
+		this.osmPostgis.findBuildingsByArea(this.includingAreaString, this.excludingAreaString, this.filteringAreaSrid, this.getTargetedElementsSrid(),
+				new OsmPostgisDB.BuildingHandler() {
+					public void processBuilding(BuildingElement building) {
+						addTargetedElement(building);
+					}
+				});
+		return true;
+	}
+
+	/**
+	 * Compute the terrain elevations of all the targeted buildings at once: the centers of the buildings are fetched by a single query (by chunk)
+	 * and the DTM is read in a single pass.
+	 */
+	@Override
+	protected void prepareTargetedElements(List<BuildingElement> elements) {
+		LOGGER.info("Computing terrain elevations of " + elements.size() + " buildings");
+		// Elevations of the previous chunk are not needed anymore
+		this.terrainElevations.clear();
+		List<Long> polygonIds = new ArrayList<>(elements.size());
+		for (BuildingElement element : elements) {
+			polygonIds.add(this.getPolygonId(element));
+		}
+		Map<Long, Coordinates> centers = this.osmPostgis.getPolygonCenters(polygonIds, this.dtm.getSrid());
+		float[] x = new float[elements.size()];
+		float[] y = new float[elements.size()];
+		List<BuildingElement> centeredElements = new ArrayList<>(elements.size());
+		for (BuildingElement element : elements) {
+			Coordinates center = centers.get(this.getPolygonId(element));
+			if (center != null) {
+				x[centeredElements.size()] = Float.parseFloat(center.x);
+				y[centeredElements.size()] = Float.parseFloat(center.y);
+				centeredElements.add(element);
+			}
+		}
+		float[] z = new float[centeredElements.size()];
+		this.dtm.findElevationsByCoordinates(x, y, centeredElements.size(), this.dtmValueScale, this.dtm.getSrid(), z);
+		for (int i = 0; i < centeredElements.size(); i++) {
+			if (!Float.isNaN(z[i])) {
+				this.terrainElevations.put(centeredElements.get(i).getOsmId(), z[i]);
+			}
+		}
+		LOGGER.info("Terrain elevations have been found for " + this.terrainElevations.size() + " buildings");
+	}
+
+	/**
+	 * The building can be rejected at once if even the highest surface elevation around it is not above the terrain.
+	 */
+	@Override
+	protected boolean checkSurfaceBounds(BuildingElement element, float minElevation, float maxElevation) {
+		Float alt = this.terrainElevations.get(element.getOsmId());
+		if (alt != null && Math.max(0, Math.round(maxElevation)) <= (int) Math.round(alt)) {
+			LOGGER.info("Max surface elevation around the building (" + maxElevation + ") is less than altitude");
+			return false;
+		}
+		return true;
 	}
 
 	@Override
@@ -32,25 +104,38 @@ public class BuildingElevatorFlow extends AbstractElevatorFlow<BuildingElement,
 		return results;
 	}
 
+	@Override
+	protected void findMatchingPoints(BuildingElement element, int srid, ElevationPointBuffer points) {
+		// Find in the DSM all points matching (ie. contained by) the element
+		String geometryString = element.getGeometryString();
+		if (geometryString == null) {
+			LOGGER.warn("Unable to find matching points because element has no geometry string");
+			return;
+		}
+		this.dsm.findAllElevationsByGeometry(geometryString, element.getInnerGeometryString(), this.dsmValueScale, this.shrinkRadius, srid, points);
+	}
+
 	@Override
 	public float computeElementMatchingScore(BuildingElement element, float minMatchingScore) {
 		element.setMatchingScore(0);
 
-		LOGGER.info("The number of total matching points is: " + element.getMatchingImports().size());
+		ElevationPointBuffer points = this.matchingPoints.get();
+		LOGGER.info("The number of total matching points is: " + points.getCounterForPoints());
 
-		// Check if the total of matching imports is fine
-		if (element.getMatchingImports().size() < this.minMatchingPoints) {
-			LOGGER.info("Element has only " + element.getMatchingImports().size() + " matching imports, skipping it because minimum value is "
+		// Check if the total of matching points is fine
+		if (points.getCounterForPoints() < this.minMatchingPoints) {
+			LOGGER.info("Element has only " + points.getCounterForPoints() + " matching points, skipping it because minimum value is "
 					+ this.minMatchingPoints);
 			return 0;
 		}
 
-		// Compute altitude of the center of the building with the DTM
-		Coordinates center = this.osmPostgis.getPolygonCenter((element.getRelationId() == null ? element.getOsmId() : -element.getRelationId()),
-				this.dtm.getSrid());
-		ElevationImport alt = this.dtm.findElevationByCoordinates(Float.parseFloat(center.x), Float.parseFloat(center.y), this.dtmValueScale,
-				this.osmPostgis.getSrid());
-		int altitude = (int) Math.round(alt.z);
+		// Get altitude of the center of the building (which has been computed with the DTM before the processing)
+		Float alt = this.terrainElevations.get(element.getOsmId());
+		if (alt == null) {
+			LOGGER.warn("Skipping element because terrain elevation cannot be found");
+			return 0;
+		}
+		int altitude = (int) Math.round(alt);
 		LOGGER.info("Computed terrain elevation is: " + altitude);
 
 		// Check the DTM value is not outside the range of allowed values
@@ -59,14 +144,13 @@ public class BuildingElevatorFlow extends AbstractElevatorFlow<BuildingElement,
 			return 0;
 		}
 
-		// Find the max of all points elevations
-		int max = 0;
-		for (AbstractImport imp : element.getMatchingImports()) {
-			int h = (int) Math.round(((ElevationImport) imp).z);
-			if (h > max) {
-				max = h;
-			}
-		}
+		// Sort all points elevations once, so the number of points above any elevation can be found without scanning all of them
+		// (if the points have been sampled the matching scores are estimated from the sample)
+		ElevationHistogram histogram = new ElevationHistogram(points.getZValues(), points.getSize());
+
+		// Find the max of all points elevations (the sample could miss it, but if the points have been decimated by the DSM it's only the max of the
+		// read points, and the elevations above it have an estimated score close to 0 anyway)
+		int max = Math.max(0, Math.round(points.getMaxZ()));
 		LOGGER.info("Max surface elevation is: " + max);
 
 		// Check the max elevation is not under the ground
@@ -80,15 +164,9 @@ public class BuildingElevatorFlow extends AbstractElevatorFlow<BuildingElement,
 		int elevation = max;
 		for (elevation = max; elevation > max - computingDistance && elevation > altitude; elevation--) {
 			// Compute a matching score based on that elevation value
-			int numberOfClosedPoints = 0;
-			for (AbstractImport imp : element.getMatchingImports()) {
-				float z = ((ElevationImport) imp).z;
-				if (z >= elevation - toleranceDelta) {
-					numberOfClosedPoints++;
-				}
-			}
+			int numberOfClosedPoints = histogram.countValuesAbove(elevation - toleranceDelta);
 			// The matching score is the coverage of closest points
-			element.setMatchingScore((float) numberOfClosedPoints / element.getMatchingImports().size());
+			element.setMatchingScore((float) numberOfClosedPoints / points.getSize());
 			LOGGER.info("For elevation=" + elevation + " the number of closed points is " + numberOfClosedPoints + " and the matching score is "
 					+ element.getMatchingScore());
 			if (element.getMatchingScore() >= minMatchingScore) {
@@ -98,7 +176,7 @@ public class BuildingElevatorFlow extends AbstractElevatorFlow<BuildingElement,
 		}
 
 		// Check the DSM value is not outside the range of allowed values
-		if (!this.checkElevationValue(altitude, ElevationDataSource.Use.DSM)) {
+		if (!this.checkElevationValue(elevation, ElevationDataSource.Use.DSM)) {
 			LOGGER.warn("Skipping element because surface elevation is outside the range of allowed values");
 			return 0;
 		}
@@ -115,4 +193,11 @@ public class BuildingElevatorFlow extends AbstractElevatorFlow<BuildingElement,
 		return new BuildingElement(osmId);
 	}
 
+	/**
+	 * Returns the ID of the building in the polygon table (relations have negative IDs).
+	 */
+	private long getPolygonId(BuildingElement element) {
+		return element.getRelationId() == null ? element.getOsmId() : -element.getRelationId();
+	}
+
 }
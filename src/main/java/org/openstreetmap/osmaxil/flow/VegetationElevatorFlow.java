@@ -1,37 +1,336 @@
 package org.openstreetmap.osmaxil.flow;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
+import org.openstreetmap.osmaxil.dao.ElevationDataSource;
 import org.openstreetmap.osmaxil.model.VegetationElement;
 import org.openstreetmap.osmaxil.model.VegetationImport;
+import org.openstreetmap.osmaxil.model.misc.ElevationPointBuffer;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Compute the height of the trees: the canopy is the max of the DSM in a small window around the tree and the height is the canopy minus the
+ * terrain elevation under the tree.
+ *
+ * There can be hundreds of thousands of trees so nothing is queried tree by tree: terrain elevations of all the trees are looked up at once and
+ * the DSM windows are looked up by chunks of trees (trees are processed in order so each chunk is read only once, even by several threads, and the
+ * threads which need another chunk are not blocked meanwhile).
+ */
 @Component("VegetationElevator")
 @Lazy
 public class VegetationElevatorFlow extends AbstractElevatorFlow<VegetationElement, VegetationImport> {
 
+	/**
+	 * Radius of the window around each tree (in units of the DSM SRID).
+	 */
+	@Value("${elevator.tree.windowRadius:3}")
+	public float windowRadius;
+
+	/**
+	 * Distance between two points of the window (should be close to the resolution of the DSM).
+	 */
+	@Value("${elevator.tree.windowStep:1}")
+	public float windowStep;
+
+	/**
+	 * Terrain elevations of the targeted trees (by their OSM ID), they are computed at once before the processing.
+	 */
+	protected Map<Long, Float> terrainElevations = new HashMap<>();
+
+	// Index of the trees in the list of targeted elements (by their OSM ID)
+	private Map<Long, Integer> treeIndexes = new HashMap<>();
+
+	// Coordinates of the targeted trees (NaN if the tree has no geometry)
+	private float[] treeX, treeY;
+
+	// Offsets of the points of the window
+	private float[] windowDx, windowDy;
+
+	// Lookups of the windows of the last chunks of trees (by chunk index), the map itself is accessed under its lock but a lookup isn't
+	private Map<Integer, FutureTask<float[]>> windowChunks;
+
+	// Number of trees whose windows are looked up at once
+	static private final int CHUNK_SIZE = 10000;
+
 	@Override
 	protected List<VegetationElement> getTargetedElements() {
-		// TODO Auto-generated method stub
-		return null;
+		return this.osmPostgis.findTreesByArea(this.includingAreaString, this.excludingAreaString, this.filteringAreaSrid,
+				this.getTargetedElementsSrid());
+	}
+
+	/**
+	 * Points are looked up by coordinates (even in an elevation database) so the trees are always fetched in the SRID of the DSM.
+	 */
+	@Override
+	protected int getTargetedElementsSrid() {
+		return this.dsm.getSrid();
 	}
 
+	/**
+	 * Compute the terrain elevations of all the targeted trees at once and the offsets of the window.
+	 */
+	@Override
+	protected void prepareTargetedElements(List<VegetationElement> elements) {
+		LOGGER.info("Computing terrain elevations of " + elements.size() + " trees");
+		this.treeX = new float[elements.size()];
+		this.treeY = new float[elements.size()];
+		for (int i = 0; i < elements.size(); i++) {
+			Envelope envelope = this.getElementEnvelope(elements.get(i));
+			this.treeX[i] = (envelope == null ? Float.NaN : (float) envelope.getMinX());
+			this.treeY[i] = (envelope == null ? Float.NaN : (float) envelope.getMinY());
+			this.treeIndexes.put(elements.get(i).getOsmId(), i);
+		}
+		// Tree coordinates are in the SRID of the DSM so they are transformed if the DTM has another one
+		float[] dtmX = this.treeX, dtmY = this.treeY;
+		if (this.dtm.getSrid() != this.dsm.getSrid()) {
+			LOGGER.info("Transforming coordinates of the trees into the SRID of the DTM (" + this.dtm.getSrid() + ")");
+			dtmX = new float[elements.size()];
+			dtmY = new float[elements.size()];
+			this.osmPostgis.transformCoordinates(this.treeX, this.treeY, elements.size(), this.dsm.getSrid(), this.dtm.getSrid(), dtmX, dtmY);
+		}
+		float[] z = new float[elements.size()];
+		this.dtm.findElevationsByCoordinates(dtmX, dtmY, elements.size(), this.dtmValueScale, this.dtm.getSrid(), z);
+		for (int i = 0; i < elements.size(); i++) {
+			if (!Float.isNaN(z[i])) {
+				this.terrainElevations.put(elements.get(i).getOsmId(), z[i]);
+			}
+		}
+		LOGGER.info("Terrain elevations have been found for " + this.terrainElevations.size() + " trees");
+		// Window is made of the points of a grid which are inside the radius
+		List<float[]> offsets = new ArrayList<>();
+		int steps = (int) Math.floor(this.windowRadius / this.windowStep);
+		for (int row = -steps; row <= steps; row++) {
+			for (int column = -steps; column <= steps; column++) {
+				float dx = column * this.windowStep, dy = row * this.windowStep;
+				if (dx * dx + dy * dy <= this.windowRadius * this.windowRadius) {
+					offsets.add(new float[] { dx, dy });
+				}
+			}
+		}
+		this.windowDx = new float[offsets.size()];
+		this.windowDy = new float[offsets.size()];
+		for (int i = 0; i < offsets.size(); i++) {
+			this.windowDx[i] = offsets.get(i)[0];
+			this.windowDy[i] = offsets.get(i)[1];
+		}
+		LOGGER.info("Window of each tree has " + offsets.size() + " points");
+		// Keep one chunk by thread so the threads which are late don't look up their chunk again
+		final int maxChunks = Math.max(1, this.processingThreads) + 1;
+		this.windowChunks = new LinkedHashMap<Integer, FutureTask<float[]>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, FutureTask<float[]>> eldest) {
+				return this.size() > maxChunks;
+			}
+		};
+	}
+
+	/**
+	 * Points of the whole window of the tree can match it, not only the point of the tree.
+	 */
+	@Override
+	protected Envelope getPreFilterEnvelope(VegetationElement element) {
+		Envelope envelope = this.getElementEnvelope(element);
+		if (envelope != null) {
+			envelope.expandBy(this.windowRadius);
+		}
+		return envelope;
+	}
+
+	/**
+	 * Trees are rejected at once if even the highest surface elevation around them is not above the terrain.
+	 */
+	@Override
+	protected boolean checkSurfaceBounds(VegetationElement element, float minElevation, float maxElevation) {
+		Float alt = this.terrainElevations.get(element.getOsmId());
+		if (alt != null && maxElevation <= alt) {
+			LOGGER.info("Max surface elevation around the tree (" + maxElevation + ") is less than altitude");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Matching points are the points of the window, there's no import to bind.
+	 */
 	@Override
 	protected List<VegetationImport> findMatchingImports(VegetationElement element, int srid) {
-		// TODO Auto-generated method stub
-		return null;
+		return new ArrayList<>();
 	}
 
+	/**
+	 * Points of the window are never decimated: there are only a few of them and the canopy is their exact maximum.
+	 */
 	@Override
-	float computeElementMatchingScore(VegetationElement element, float minMatchingScore) {
-		// TODO Auto-generated method stub
+	protected double estimateMatchingPoints(VegetationElement element) {
 		return 0;
 	}
 
+	@Override
+	protected void findMatchingPoints(VegetationElement element, int srid, ElevationPointBuffer points) {
+		Integer index = this.treeIndexes.get(element.getOsmId());
+		if (index == null || Float.isNaN(this.treeX[index])) {
+			LOGGER.warn("Unable to find matching points because element has no geometry");
+			return;
+		}
+		float[] windows = this.getWindowChunk(index / CHUNK_SIZE);
+		int offset = (index % CHUNK_SIZE) * this.windowDx.length;
+		for (int k = 0; k < this.windowDx.length; k++) {
+			if (!Float.isNaN(windows[offset + k])) {
+				points.add(this.treeX[index] + this.windowDx[k], this.treeY[index] + this.windowDy[k], windows[offset + k]);
+			}
+		}
+	}
+
+	@Override
+	float computeElementMatchingScore(VegetationElement element, float minMatchingScore) {
+		element.setMatchingScore(0);
+
+		ElevationPointBuffer points = this.matchingPoints.get();
+		LOGGER.info("The number of total matching points is: " + points.getCounterForPoints());
+
+		// Check if the total of matching points is fine
+		if (points.getCounterForPoints() < this.minMatchingPoints) {
+			LOGGER.info("Element has only " + points.getCounterForPoints() + " matching points, skipping it because minimum value is "
+					+ this.minMatchingPoints);
+			return 0;
+		}
+
+		// Get altitude of the tree (which has been computed with the DTM before the processing)
+		Float altitude = this.terrainElevations.get(element.getOsmId());
+		if (altitude == null) {
+			LOGGER.warn("Skipping element because terrain elevation cannot be found");
+			return 0;
+		}
+		LOGGER.info("Computed terrain elevation is: " + altitude);
+
+		// Check the DTM value is not outside the range of allowed values
+		if (!this.checkElevationValue(altitude, ElevationDataSource.Use.DTM)) {
+			LOGGER.warn("Skipping element because terrain elevation is outside the range of allowed values");
+			return 0;
+		}
+
+		// The canopy is the max of the window
+		float canopy = points.getMaxZ();
+		LOGGER.info("Canopy elevation is: " + canopy);
+
+		// Check the DSM value is not outside the range of allowed values
+		if (!this.checkElevationValue(canopy, ElevationDataSource.Use.DSM)) {
+			LOGGER.warn("Skipping element because canopy elevation is outside the range of allowed values");
+			return 0;
+		}
+
+		// Check the canopy is above the ground
+		int height = Math.round(canopy - altitude);
+		if (height <= 0) {
+			LOGGER.warn("Canopy elevation is less than altitude, aborting...");
+			return 0;
+		}
+
+		// The matching score is the coverage of the window by the foliage (ie. points which are above the ground)
+		int numberOfFoliagePoints = 0;
+		float[] z = points.getZValues();
+		for (int i = 0; i < points.getSize(); i++) {
+			if (z[i] > altitude + this.toleranceDelta) {
+				numberOfFoliagePoints++;
+			}
+		}
+		element.setMatchingScore((float) numberOfFoliagePoints / points.getSize());
+		LOGGER.info("The number of foliage points is " + numberOfFoliagePoints + " and the matching score is " + element.getMatchingScore());
+
+		// Store the final height of the tree which is the canopy minus the altitude
+		element.setComputedHeight(new Integer(height));
+		LOGGER.info("Computed height is: " + element.getComputedHeight());
+
+		return element.getMatchingScore();
+	}
+
 	@Override
 	protected VegetationElement instanciateElement(long osmId) {
-		// TODO Auto-generated method stub
-		return null;
+		return new VegetationElement(osmId);
+	}
+
+	@Override
+	public void displayProcessingStatistics() {
+		super.displayProcessingStatistics();
+		LOGGER_FOR_STATS.info(" - Window radius is: " + this.windowRadius + " (step is " + this.windowStep + ")");
 	}
+
+	// =========================================================================
+	// Private methods
+	// =========================================================================
+
+	/**
+	 * Returns the DSM windows of a chunk of trees. If the chunk is not yet in the cache it's looked up by the first thread which needs it, the other
+	 * threads which need the same chunk wait for that lookup but the threads which need other chunks don't.
+	 */
+	private float[] getWindowChunk(final int chunk) {
+		FutureTask<float[]> lookup;
+		boolean owner = false;
+		synchronized (this.windowChunks) {
+			lookup = this.windowChunks.get(chunk);
+			if (lookup == null) {
+				lookup = new FutureTask<>(new Callable<float[]>() {
+					@Override
+					public float[] call() {
+						return lookUpWindowChunk(chunk);
+					}
+				});
+				this.windowChunks.put(chunk, lookup);
+				owner = true;
+			}
+		}
+		if (owner) {
+			lookup.run();
+		}
+		try {
+			return lookup.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Lookup of the windows of chunk #" + chunk + " has been interrupted");
+		} catch (ExecutionException e) {
+			// Failed lookup is removed from the cache so it can be retried
+			synchronized (this.windowChunks) {
+				if (this.windowChunks.get(chunk) == lookup) {
+					this.windowChunks.remove(chunk);
+				}
+			}
+			throw new IllegalStateException("Lookup of the windows of chunk #" + chunk + " has failed: " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * Look up the DSM windows of a chunk of trees with a single batch lookup (it's sorted by raster block so each block is read once).
+	 */
+	private float[] lookUpWindowChunk(int chunk) {
+		int start = chunk * CHUNK_SIZE;
+		int end = Math.min(this.treeX.length, start + CHUNK_SIZE);
+		int count = (end - start) * this.windowDx.length;
+		float[] x = new float[count];
+		float[] y = new float[count];
+		float[] windows = new float[count];
+		int i = 0;
+		for (int tree = start; tree < end; tree++) {
+			for (int k = 0; k < this.windowDx.length; k++, i++) {
+				x[i] = this.treeX[tree] + this.windowDx[k];
+				y[i] = this.treeY[tree] + this.windowDy[k];
+			}
+		}
+		LOGGER.info("Looking up the windows of trees #" + start + " to #" + (end - 1));
+		this.dsm.findElevationsByCoordinates(x, y, count, this.dsmValueScale, this.dsm.getSrid(), windows);
+		return windows;
+	}
+
 }
@@ -5,9 +5,12 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.openstreetmap.osmaxil.dao.OsmSnapshot;
 import org.openstreetmap.osmaxil.dao.xml.osm.OsmXmlNode;
 import org.openstreetmap.osmaxil.dao.xml.osm.OsmXmlRoot;
 import org.openstreetmap.osmaxil.dao.xml.osm.OsmXmlTag;
@@ -16,13 +19,21 @@ import org.openstreetmap.osmaxil.model.VegetationElement;
 import org.openstreetmap.osmaxil.model.VegetationImport;
 import org.openstreetmap.osmaxil.model.misc.MatchingElementId;
 import org.openstreetmap.osmaxil.plugin.matcher.VegetationImportMatcher;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
 @Component("VegetationMaker")
 @Lazy
 public class VegetationMakerFlow extends AbstractMakerFlow<VegetationElement, VegetationImport> {
 
+	@Autowired
+	private OsmSnapshot osmSnapshot;
+
 	private List<OsmXmlRoot> newTreesToCreate = new ArrayList<>();
 
 	private Map<Long, VegetationElement> existingTreesById = new HashMap<Long, VegetationElement>();
@@ -37,10 +48,41 @@ public class VegetationMakerFlow extends AbstractMakerFlow<VegetationElement, Ve
 
 	private int counterForMultiMatchingTrees;
 
+	// IDs of the imported trees which are inside an existing building
+	private Set<Long> importedTreeIdsInsideBuildings = new HashSet<>();
+
+	private GeometryFactory geometryFactory = new GeometryFactory();
+
 	// =========================================================================
 	// Overrided methods
 	// =========================================================================
 
+	/**
+	 * Buildings and matching trees of all the imported trees are found at once before the processing (by chunks of trees, instead of several
+	 * queries by tree).
+	 */
+	@Override
+	public void process() {
+		LOGGER.info("Looking for the buildings and the matching trees of " + this.loadedImports.size() + " imported trees");
+		List<Geometry> points = new ArrayList<>();
+		for (VegetationImport imp : this.loadedImports) {
+			points.add(this.geometryFactory.createPoint(new Coordinate(imp.getLongitude(), imp.getLatitude())));
+		}
+		// Geometries are transformed if it's needed
+		Map<Integer, List<Long>> buildingIds = (this.osmSnapshot.isUsable(this.parser.getSrid())
+				? this.osmSnapshot.findBuildingIdsByGeometries(points, this.parser.getSrid(), true)
+				: this.osmPostgis.findBuildingIdsByGeometries(points, this.parser.getSrid(), true));
+		for (Integer index : buildingIds.keySet()) {
+			this.importedTreeIdsInsideBuildings.add(this.loadedImports.get(index).getId());
+		}
+		Map<Long, List<MatchingElementId>> matchingTreeIds = this.matcher.findMatchingElements(this.loadedImports, this.parser.getSrid());
+		for (VegetationImport imp : this.loadedImports) {
+			List<MatchingElementId> matchingElementIds = matchingTreeIds.get(imp.getId());
+			this.matchingTreeIdsByImportTreeId.put(imp.getId(), matchingElementIds != null ? matchingElementIds : new ArrayList<MatchingElementId>());
+		}
+		super.process();
+	}
+
 	@Override
 	protected boolean isImportMakable(VegetationImport imp) {
 		// Check if the imported tree is not inside an existing building
@@ -131,19 +173,8 @@ public class VegetationMakerFlow extends AbstractMakerFlow<VegetationElement, Ve
 	// =========================================================================
 
 	private boolean isTreeInsideExistingBuilding(VegetationImport imp) {
-		String geom = "ST_GeomFromText('POINT(" + imp.getLongitude() + " " + imp.getLatitude() + ")', " + this.parser.getSrid() + ")";
-		// Transform geometry if it's needed
-		if (this.parser.getSrid() != this.osmPostgis.getSrid()) {
-			geom = "ST_Transform(" + geom + ", " + this.osmPostgis.getSrid() + ")";
-		}
-		String query = "select osm_id, 1 from planet_osm_polygon where building <> '' and  ST_Contains(way, " + geom + ");";
-		LOGGER.debug("Looking in PostGIS for buildings containing coords: " + query);
-		Long[] ids = this.osmPostgis.findElementIdsByQuery(query);
-		if (ids.length > 0) {
-			return true;
-		} else {
-			return false;
-		}
+		// Buildings have been found before the processing
+		return this.importedTreeIdsInsideBuildings.contains(imp.getId());
 	}
 
 	private OsmXmlRoot createNewTreeFromImport(VegetationImport tree) {
@@ -1,11 +1,17 @@
 package org.openstreetmap.osmaxil.flow;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 
@@ -13,28 +19,66 @@ import org.openstreetmap.osmaxil.StatsGenerator;
 import org.openstreetmap.osmaxil.dao.xml.osm.OsmXmlRoot;
 import org.openstreetmap.osmaxil.model.AbstractElement;
 import org.openstreetmap.osmaxil.model.AbstractImport;
+import org.openstreetmap.osmaxil.util.SpatialOrdering;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
 
 public abstract class _AbstractDrivenByElementFlow<ELEMENT extends AbstractElement, IMPORT extends AbstractImport>
 		extends __AbstractImportFlow<ELEMENT, IMPORT> {
 
 	/**
-	 * Existing elements which are inside the filtering areas.
+	 * Number of existing elements which are inside the filtering areas, the elements themselves are not kept once their chunk has been processed.
 	 */
-	protected List<ELEMENT> targetedElement = new ArrayList<ELEMENT>();
+	protected int counterForTargetedElements;
+
+	// Number of targeted elements by range of 10% of matching score (see StatsGenerator)
+	protected int[] counterForTargetedElementsByScore = new int[10];
 
 	protected Map<Long, ELEMENT> updatableElements = new Hashtable<Long, ELEMENT>();
 
 	protected Map<String, Integer> countersByTagName = new HashMap<String, Integer>();
 
-	protected int counterForMatchedImports;
+	protected AtomicInteger counterForMatchedImports = new AtomicInteger();
 
-	protected int counterForMatchedElements;
+	protected AtomicInteger counterForMatchedElements = new AtomicInteger();
 
 	protected int counterForUpdatedElements;
 
 	protected int limitForUpdatableElements = 0;
 
+	// Time spent to find the matching imports of the elements (in nanoseconds)
+	protected AtomicLong counterForMatchingTime = new AtomicLong();
+
+	protected AtomicLong maxMatchingTime = new AtomicLong();
+
+	protected AtomicInteger counterForMatchingQueries = new AtomicInteger();
+
+	// Rank of the last element whose matching imports have been looked for
+	protected AtomicInteger counterForProcessedElements = new AtomicInteger();
+
+	/**
+	 * Number of threads which process the targeted elements concurrently, the pool of each database should have at least as much connections.
+	 */
+	@Value("${osmaxil.processingThreads:1}")
+	protected int processingThreads;
+
+	/**
+	 * Number of targeted elements which are prepared, sorted and processed together when the flow can stream its targeted elements (0 means all
+	 * the targeted elements at once). Geometries of the elements of a chunk are released once it has been processed.
+	 */
+	@Value("${osmaxil.targetedElements.chunkSize:50000}")
+	protected int targetedElementsChunkSize;
+
+	// Streamed elements which are waiting for the processing of their chunk
+	private List<ELEMENT> pendingElements = new ArrayList<ELEMENT>();
+
+	// True once the limit of updatable elements has been reached
+	private boolean limitReached;
+
 	@Autowired
 	protected StatsGenerator scoringStatsGenerator;
 
@@ -61,50 +105,244 @@ public abstract class _AbstractDrivenByElementFlow<ELEMENT extends AbstractEleme
 	@Override
 	public void process() {
 		LOGGER.info("Looking in PostGIS for existing elements which are respecting the filtering areas");
-		this.targetedElement = this.getTargetedElements();
-		int i = 1;
-		// For each targeted element,
-		for (ELEMENT element : this.targetedElement) {
-			LOGGER.info(LOG_SEPARATOR);
-			if (element.getOsmId() == null || element.getOsmId() == 0) {
-				LOGGER.warn("Element is null, skipping it...");
-				continue;
-			}
-			// Find all matching imports
-			LOGGER.info("Find matching imports for element " + element.getOsmId() + " (#" + i++ + ")");
-			List<IMPORT> matchingImports = this.findMatchingImports(element, this.osmPostgis.getSrid());
-			if (matchingImports.size() > 0) {
-				this.counterForMatchedElements++;
-				this.counterForMatchedImports += matchingImports.size();
-			}
-			// Bind element with its matching imports (in both way)
-			element.getMatchingImports().addAll(matchingImports);
-			for (IMPORT imp : matchingImports) {
-				element.getMatchingImports().add(imp);
-				imp.setMatchingElement(element);
+		if (this.targetedElementsChunkSize > 0 && this.streamTargetedElements()) {
+			// Process the last chunk
+			this.processPendingElements();
+		} else {
+			this.processTargetedElements(this.getTargetedElements());
+		}
+		LOGGER.info(LOG_SEPARATOR);
+	}
+
+	/**
+	 * Pass the targeted elements to addTargetedElement() one by one as they are read, so they are processed by chunks and never all on the heap.
+	 * Returns false if the flow cannot stream its targeted elements (they are all fetched at once by getTargetedElements() then), which is the case
+	 * by default.
+	 */
+	protected boolean streamTargetedElements() {
+		return false;
+	}
+
+	/**
+	 * Add a streamed targeted element, the pending elements are processed as soon as there are enough of them to fill a chunk.
+	 */
+	protected void addTargetedElement(ELEMENT element) {
+		if (this.limitReached) {
+			return;
+		}
+		this.pendingElements.add(element);
+		if (this.pendingElements.size() >= this.targetedElementsChunkSize) {
+			this.processPendingElements();
+		}
+	}
+
+	/**
+	 * Sort, prepare and process a chunk of targeted elements (or all of them).
+	 */
+	protected void processTargetedElements(List<ELEMENT> elements) {
+		if (this.limitReached) {
+			return;
+		}
+		elements = this.sortTargetedElements(elements);
+		this.prepareTargetedElements(elements);
+		if (this.processingThreads > 1) {
+			this.limitReached = !this.processElementsConcurrently(elements);
+		} else {
+			// For each targeted element,
+			for (ELEMENT element : elements) {
+				if (!this.processElement(element)) {
+					this.limitReached = true;
+					break;
+				}
 			}
-			// Display the list of import IDs
-			StringBuilder sb = new StringBuilder("Matching imports are : [ ");
-			for (AbstractImport imp : element.getMatchingImports()) {
-				sb.append(imp.getId() + " ");
+		}
+		// Only the repartition of the matching scores is kept for the statistics
+		this.counterForTargetedElements += elements.size();
+		for (ELEMENT element : elements) {
+			int range = StatsGenerator.getMatchingScoreRange(element.getMatchingScore());
+			if (range >= 0) {
+				this.counterForTargetedElementsByScore[range]++;
 			}
-			LOGGER.info(sb.append("]").toString());
-			// Compute matching score of the element
-			LOGGER.info("Computing matching score for element " + element.getOsmId());
-			this.computeElementMatchingScore(element/* , this.computingDistance, this.toleranceDelta */, this.minMatchingScore);
-			// Check if its matching score is fine
-			if (element.getMatchingScore() < this.minMatchingScore) {
-				LOGGER.info("Element has a matching score of " + element.getMatchingScore() + ", skipping it because minimum value is "
-						+ this.minMatchingScore);
-				continue;
+		}
+	}
+
+	/**
+	 * Find the matching imports of the element and compute its matching score, returns false if the limit of updatable elements has been reached.
+	 * It can be called by several threads at once so subclasses must keep their per element state thread-safe. It must not use the OSM database:
+	 * when the targeted elements are streamed its only connection is held by the main thread (data of the OSM database has to be fetched by
+	 * prepareTargetedElements() instead, which is called by the main thread).
+	 */
+	protected boolean processElement(ELEMENT element) {
+		LOGGER.info(LOG_SEPARATOR);
+		if (element.getOsmId() == null || element.getOsmId() == 0) {
+			LOGGER.warn("Element is null, skipping it...");
+			return true;
+		}
+		// Check if the element can be rejected before looking for its matching imports
+		if (!this.preFilterElement(element)) {
+			LOGGER.info("Element " + element.getOsmId() + " has been rejected by the pre-filter, skipping it...");
+			return true;
+		}
+		// Find all matching imports
+		LOGGER.info("Find matching imports for element " + element.getOsmId() + " (#" + this.counterForProcessedElements.incrementAndGet() + ")");
+		long start = System.nanoTime();
+		int matchingCount = this.bindMatchingImports(element);
+		long time = System.nanoTime() - start;
+		this.counterForMatchingQueries.incrementAndGet();
+		this.counterForMatchingTime.addAndGet(time);
+		long max = this.maxMatchingTime.get();
+		while (time > max && !this.maxMatchingTime.compareAndSet(max, time)) {
+			max = this.maxMatchingTime.get();
+		}
+		if (matchingCount > 0) {
+			this.counterForMatchedElements.incrementAndGet();
+			this.counterForMatchedImports.addAndGet(matchingCount);
+		}
+		// Compute matching score of the element
+		LOGGER.info("Computing matching score for element " + element.getOsmId());
+		this.computeElementMatchingScore(element/* , this.computingDistance, this.toleranceDelta */, this.minMatchingScore);
+		// Check if its matching score is fine
+		if (element.getMatchingScore() < this.minMatchingScore) {
+			LOGGER.info("Element has a matching score of " + element.getMatchingScore() + ", skipping it because minimum value is "
+					+ this.minMatchingScore);
+			return true;
+		}
+		// Check limit (useful for debug), elements which are still processed by the other threads are not added once it has been reached
+		synchronized (this.updatableElements) {
+			if (limitForUpdatableElements > 0 && this.updatableElements.size() >= limitForUpdatableElements) {
+				return false;
 			}
 			this.updatableElements.put(element.getOsmId(), element);
-			// Check limit (useful for debug)
-			if (limitForUpdatableElements > 0 && this.updatableElements.size() == limitForUpdatableElements) {
-				break;
+			return limitForUpdatableElements <= 0 || this.updatableElements.size() < limitForUpdatableElements;
+		}
+	}
+
+	/**
+	 * Process the targeted elements with a pool of threads. Each thread takes the next element of the list, so the elements are still processed
+	 * roughly in their order (which keeps the benefits of the spatial ordering). Returns false if the limit of updatable elements has been reached.
+	 * If the processing of an element fails the other threads are stopped and the failure is thrown, like with a single thread.
+	 */
+	protected boolean processElementsConcurrently(final List<ELEMENT> elements) {
+		LOGGER.info("Processing " + elements.size() + " elements with " + this.processingThreads + " threads");
+		final AtomicInteger nextIndex = new AtomicInteger();
+		final AtomicBoolean limitReached = new AtomicBoolean();
+		ExecutorService executor = Executors.newFixedThreadPool(this.processingThreads);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < this.processingThreads; t++) {
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					int index;
+					while (!limitReached.get() && (index = nextIndex.getAndIncrement()) < elements.size()) {
+						if (!processElement(elements.get(index))) {
+							limitReached.set(true);
+						}
+					}
+				}
+			}));
+		}
+		executor.shutdown();
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				LOGGER.error("Processing of elements has been interrupted");
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (ExecutionException e) {
+				// The failed thread has left its loop, so the other threads are stopped at their next element instead of going on without it
+				limitReached.set(true);
+				executor.shutdownNow();
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw new IllegalStateException("Processing of elements has failed: " + cause.getMessage(), cause);
 			}
 		}
-		LOGGER.info(LOG_SEPARATOR);
+		return !limitReached.get();
+	}
+
+	/**
+	 * Sort the targeted elements along a space filling curve of the centers of their geometries (if enabled), so the elements which are close in
+	 * space are processed one after the other and the matching queries hit the same parts of the data sources.
+	 */
+	protected List<ELEMENT> sortTargetedElements(List<ELEMENT> elements) {
+		SpatialOrdering.Curve curve = SpatialOrdering.Curve.valueOf(this.spatialOrdering);
+		if (curve == SpatialOrdering.Curve.NONE) {
+			return elements;
+		}
+		double[] x = new double[elements.size()];
+		double[] y = new double[elements.size()];
+		for (int i = 0; i < elements.size(); i++) {
+			Envelope envelope = this.getElementEnvelope(elements.get(i));
+			x[i] = (envelope == null ? Double.NaN : (envelope.getMinX() + envelope.getMaxX()) / 2);
+			y[i] = (envelope == null ? Double.NaN : (envelope.getMinY() + envelope.getMaxY()) / 2);
+		}
+		LOGGER.info("Sorting targeted elements along a " + curve + " curve");
+		return SpatialOrdering.sort(elements, x, y, curve);
+	}
+
+	/**
+	 * Returns the envelope of the geometry of the element, or null if it has no geometry.
+	 */
+	protected Envelope getElementEnvelope(ELEMENT element) {
+		if (element.getGeometry() != null) {
+			// Envelope of the geometry is cached by JTS so it's copied
+			return new Envelope(element.getGeometry().getEnvelopeInternal());
+		}
+		if (element.getGeometryString() == null) {
+			return null;
+		}
+		try {
+			return new WKTReader().read(element.getGeometryString()).getEnvelopeInternal();
+		} catch (ParseException e) {
+			LOGGER.warn("Unable to parse geometry of element " + element.getOsmId() + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Called once before the processing of the targeted elements, useful to fetch at once some data of all the elements (instead of fetching them
+	 * element by element). Does nothing by default.
+	 */
+	protected void prepareTargetedElements(List<ELEMENT> elements) {
+	}
+
+	/**
+	 * Check if the element is worth looking for its matching imports, returns false if it can be rejected at once. Accepts all elements by default.
+	 */
+	protected boolean preFilterElement(ELEMENT element) {
+		return true;
+	}
+
+	/**
+	 * Find the imports which are matching the element and bind them with it (in both way), returns the number of matching imports.
+	 */
+	protected int bindMatchingImports(ELEMENT element) {
+		List<IMPORT> matchingImports = this.findMatchingImports(element, this.getTargetedElementsSrid());
+		for (IMPORT imp : matchingImports) {
+			element.getMatchingImports().add(imp);
+			imp.setMatchingElement(element);
+		}
+		// Display the list of import IDs
+		StringBuilder sb = new StringBuilder("Matching imports are : [ ");
+		for (AbstractImport imp : element.getMatchingImports()) {
+			sb.append(imp.getId() + " ");
+		}
+		LOGGER.info(sb.append("]").toString());
+		return matchingImports.size();
+	}
+
+	/**
+	 * Returns the SRID of the geometries of the targeted elements.
+	 */
+	protected int getTargetedElementsSrid() {
+		return this.osmPostgis.getSrid();
 	}
 
 	@Override
@@ -167,7 +405,7 @@ public abstract class _AbstractDrivenByElementFlow<ELEMENT extends AbstractEleme
 	@Override
 	public void displayLoadingStatistics() {
 		LOGGER_FOR_STATS.info("=== Loading statistics ===");
-		LOGGER_FOR_STATS.info("Total of targeted elements (ie. which are inside filtering areas): " + this.targetedElement.size());
+		LOGGER_FOR_STATS.info("Total of targeted elements (ie. which are inside filtering areas): " + this.counterForTargetedElements);
 	}
 
 	@Override
@@ -176,8 +414,12 @@ public abstract class _AbstractDrivenByElementFlow<ELEMENT extends AbstractEleme
 		LOGGER_FOR_STATS.info("Total of matched elements (ie. which have at least one matching imports): " + this.counterForMatchedElements);
 		LOGGER_FOR_STATS.info("Total of matching imports: " + this.counterForMatchedImports);
 		LOGGER_FOR_STATS.info("Average of matching imports by element: "
-				+ (this.counterForMatchedElements > 0 ? this.counterForMatchedImports / counterForMatchedElements : "0"));
-		this.scoringStatsGenerator.displayRepartitionOfMatchingScore((Collection<AbstractElement>) this.targetedElement);
+				+ (this.counterForMatchedElements.get() > 0 ? this.counterForMatchedImports.get() / counterForMatchedElements.get() : "0"));
+		LOGGER_FOR_STATS.info("Average time to find the matching imports of an element: "
+				+ (this.counterForMatchingQueries.get() > 0 ? this.counterForMatchingTime.get() / 1000000.0 / this.counterForMatchingQueries.get() : "0")
+				+ " ms (max is " + this.maxMatchingTime.get() / 1000000.0 + " ms, spatial ordering is " + this.spatialOrdering + ", processing threads: "
+				+ this.processingThreads + ")");
+		this.scoringStatsGenerator.displayRepartitionOfMatchingScore(this.counterForTargetedElementsByScore, this.counterForTargetedElements);
 		LOGGER_FOR_STATS.info("Minimum matching score is: " + this.minMatchingScore);
 		LOGGER_FOR_STATS.info("Total of updatable elements: " + this.updatableElements.size());
 	}
@@ -204,6 +446,22 @@ public abstract class _AbstractDrivenByElementFlow<ELEMENT extends AbstractEleme
 		}
 	}
 
+	/**
+	 * Process the pending elements as a chunk, then release their geometries which are not needed anymore.
+	 */
+	private void processPendingElements() {
+		List<ELEMENT> elements = this.pendingElements;
+		this.pendingElements = new ArrayList<ELEMENT>();
+		if (elements.isEmpty()) {
+			return;
+		}
+		this.processTargetedElements(elements);
+		for (ELEMENT element : elements) {
+			element.setGeometry(null);
+			element.setGeometryString(null);
+		}
+	}
+
 	private boolean isElementTagUpdatable(ELEMENT element, String tagName) {
 		String originalValue = element.getOriginalValuesByTagNames().get(tagName);
 		if (originalValue != null) {
@@ -1,11 +1,14 @@
 package org.openstreetmap.osmaxil.flow;
 
+import java.util.List;
+
 import javax.annotation.Resource;
 
 import org.openstreetmap.osmaxil.model.AbstractElement;
 import org.openstreetmap.osmaxil.model.AbstractImport;
 import org.openstreetmap.osmaxil.plugin.matcher.AbstractImportMatcher;
 import org.openstreetmap.osmaxil.plugin.parser.AbstractImportParser;
+import org.openstreetmap.osmaxil.util.SpatialOrdering;
 import org.springframework.beans.factory.annotation.Autowired;
 
 public abstract class _AbstractDrivenByImportFlow<ELEMENT extends AbstractElement, IMPORT extends AbstractImport>
@@ -54,6 +57,29 @@ public abstract class _AbstractDrivenByImportFlow<ELEMENT extends AbstractElemen
 				LOGGER.info(LOG_SEPARATOR);
 			}
 		}
+		this.sortLoadedImports();
+	}
+
+	/**
+	 * Sort the loaded imports along a space filling curve of their coordinates (if enabled), so the imports which are close in space are processed
+	 * one after the other.
+	 */
+	protected void sortLoadedImports() {
+		SpatialOrdering.Curve curve = SpatialOrdering.Curve.valueOf(this.spatialOrdering);
+		if (curve == SpatialOrdering.Curve.NONE) {
+			return;
+		}
+		double[] x = new double[this.loadedImports.size()];
+		double[] y = new double[this.loadedImports.size()];
+		for (int i = 0; i < this.loadedImports.size(); i++) {
+			IMPORT imp = this.loadedImports.get(i);
+			x[i] = (imp.getLongitude() == null ? Double.NaN : imp.getLongitude());
+			y[i] = (imp.getLatitude() == null ? Double.NaN : imp.getLatitude());
+		}
+		List<IMPORT> sortedImports = SpatialOrdering.sort(this.loadedImports, x, y, curve);
+		this.loadedImports.clear();
+		this.loadedImports.addAll(sortedImports);
+		LOGGER.info("Loaded imports have been sorted along a " + curve + " curve");
 	}
 
 	@Override
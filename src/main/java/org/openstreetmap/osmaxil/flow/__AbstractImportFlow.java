@@ -59,6 +59,9 @@ public abstract class __AbstractImportFlow<ELEMENT extends AbstractElement, IMPO
 	@Value("${osmaxil.filteringArea.excluding}")
 	protected String excludingAreaString;
 
+	@Value("${osmaxil.spatialOrdering:NONE}")
+	protected String spatialOrdering;
+
 	@Autowired
 	protected ApplicationContext appContext;
 
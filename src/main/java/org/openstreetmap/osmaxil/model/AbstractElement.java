@@ -11,6 +11,9 @@ import org.openstreetmap.osmaxil.dao.xml.osm.OsmXmlRoot;
 import org.openstreetmap.osmaxil.dao.xml.osm.OsmXmlTag;
 import org.openstreetmap.osmaxil.model.misc.MatchableObject;
 
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTWriter;
+
 public abstract class AbstractElement extends MatchableObject {
 
 	protected Long osmId;
@@ -23,6 +26,9 @@ public abstract class AbstractElement extends MatchableObject {
 
 	private String geometryString;
 
+	// Geometry as read from the database, the geometry string is written from it on demand (if it has not been set)
+	private Geometry geometry;
+
 	private List<AbstractImport> matchingImports;
 
 	private Map<String, String> originalValuesByTagNames;
@@ -164,6 +170,10 @@ public abstract class AbstractElement extends MatchableObject {
 	}
 
 	public String getGeometryString() {
+		if (geometryString == null && geometry != null) {
+			// Writers are not thread safe
+			return new WKTWriter().write(geometry);
+		}
 		return geometryString;
 	}
 
@@ -171,6 +181,14 @@ public abstract class AbstractElement extends MatchableObject {
 		this.geometryString = geometryString;
 	}
 
+	public Geometry getGeometry() {
+		return geometry;
+	}
+
+	public void setGeometry(Geometry geometry) {
+		this.geometry = geometry;
+	}
+
 	public Integer getComputedHeight() {
 		return computedHeight;
 	}
@@ -0,0 +1,192 @@
+package org.openstreetmap.osmaxil.model.misc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.openstreetmap.osmaxil.model.ElevationImport;
+
+/**
+ * Growable buffer of elevation points stored as primitive columns (x, y and z), it's meant to be cleared and reused for each element so no object
+ * is created by point.
+ *
+ * The buffer can be limited to a sample size: once it's full, the points are sampled with a reservoir so the kept points are a uniform sample of
+ * all the added points. The number of added points and their maximum elevation are always exact.
+ *
+ * When the number of points of an element is expected to be much larger than the sample size, the data sources can also decimate the points
+ * before adding them (only one point out of the decimation step is read), so the reservoir doesn't have to see all of them. The number of points
+ * and their maximum elevation are then estimated from the read points.
+ */
+public class ElevationPointBuffer {
+
+	private float[] x, y, z;
+
+	private int size;
+
+	// Max number of kept points (0 means there's no limit)
+	private int sampleSize;
+
+	// Only one point out of this step is read by the data sources (1 means all the points are read)
+	private int decimationStep = 1;
+
+	private long counterForAddedPoints;
+
+	private float maxZ = Float.NEGATIVE_INFINITY;
+
+	private Random random = new Random();
+
+	// Seed is reset for each element so the sampling doesn't depend on the order of the elements
+	static private final long SEED = 0x5EED;
+
+	public ElevationPointBuffer() {
+		this(1024);
+	}
+
+	public ElevationPointBuffer(int initialCapacity) {
+		this.x = new float[initialCapacity];
+		this.y = new float[initialCapacity];
+		this.z = new float[initialCapacity];
+	}
+
+	/**
+	 * Remove all the points, the decimation step is kept (it's set for each element by the caller of the data source).
+	 */
+	public void clear() {
+		this.size = 0;
+		this.counterForAddedPoints = 0;
+		this.maxZ = Float.NEGATIVE_INFINITY;
+		this.random.setSeed(SEED);
+	}
+
+	public void add(float x, float y, float z) {
+		this.counterForAddedPoints++;
+		if (z > this.maxZ) {
+			this.maxZ = z;
+		}
+		if (this.sampleSize > 0 && this.size == this.sampleSize) {
+			// Replace a kept point with a probability of sampleSize / counterForAddedPoints
+			long index = (long) (this.random.nextDouble() * this.counterForAddedPoints);
+			if (index < this.sampleSize) {
+				this.x[(int) index] = x;
+				this.y[(int) index] = y;
+				this.z[(int) index] = z;
+			}
+			return;
+		}
+		if (this.size == this.x.length) {
+			int capacity = Math.max(16, this.x.length * 2);
+			this.x = Arrays.copyOf(this.x, capacity);
+			this.y = Arrays.copyOf(this.y, capacity);
+			this.z = Arrays.copyOf(this.z, capacity);
+		}
+		this.x[this.size] = x;
+		this.y[this.size] = y;
+		this.z[this.size] = z;
+		this.size++;
+	}
+
+	/**
+	 * Convert the points into imports (for the callers which still need objects).
+	 */
+	public List<ElevationImport> toElevationImports() {
+		List<ElevationImport> result = new ArrayList<>(this.size);
+		for (int i = 0; i < this.size; i++) {
+			result.add(new ElevationImport(this.x[i], this.y[i], this.z[i]));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of kept points.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of points since the last clear (including the points which haven't been kept), it's an estimate if the points have been
+	 * decimated by the data source.
+	 */
+	public long getCounterForPoints() {
+		return this.counterForAddedPoints * this.decimationStep;
+	}
+
+	/**
+	 * Returns true if some of the points haven't been kept (or haven't even been read).
+	 */
+	public boolean isSampled() {
+		return this.counterForAddedPoints > this.size || this.decimationStep > 1;
+	}
+
+	/**
+	 * Returns the maximum elevation of all the added points (or negative infinity if there's no point), it's only the maximum of the read points if
+	 * they have been decimated by the data source.
+	 */
+	public float getMaxZ() {
+		return maxZ;
+	}
+
+	public int getSampleSize() {
+		return sampleSize;
+	}
+
+	/**
+	 * Limit the number of kept points (0 means there's no limit).
+	 */
+	public void setSampleSize(int sampleSize) {
+		this.sampleSize = sampleSize;
+	}
+
+	/**
+	 * Set the decimation step from the expected number of points, so the data sources read about twice the sample size instead of all the points.
+	 * The step is 1 if the buffer is not limited or if the expected number of points is small enough.
+	 */
+	public void setExpectedCount(double expectedCount) {
+		this.decimationStep = 1;
+		if (this.sampleSize > 0 && expectedCount > 4.0 * this.sampleSize) {
+			this.decimationStep = (int) Math.min(Integer.MAX_VALUE, expectedCount / (2.0 * this.sampleSize));
+		}
+	}
+
+	/**
+	 * Returns the decimation step which the data sources have to use: only one point out of the step has to be added.
+	 */
+	public int getDecimationStep() {
+		return decimationStep;
+	}
+
+	public float getX(int index) {
+		return x[index];
+	}
+
+	public float getY(int index) {
+		return y[index];
+	}
+
+	public float getZ(int index) {
+		return z[index];
+	}
+
+	/**
+	 * Returns the column of the x values (only its first values, up to the size of the buffer, are meaningful).
+	 */
+	public float[] getXValues() {
+		return x;
+	}
+
+	/**
+	 * Returns the column of the y values (only its first values, up to the size of the buffer, are meaningful).
+	 */
+	public float[] getYValues() {
+		return y;
+	}
+
+	/**
+	 * Returns the column of the z values (only its first values, up to the size of the buffer, are meaningful).
+	 */
+	public float[] getZValues() {
+		return z;
+	}
+
+}
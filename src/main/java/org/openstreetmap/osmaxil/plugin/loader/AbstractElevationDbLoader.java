@@ -1,11 +1,27 @@
 package org.openstreetmap.osmaxil.plugin.loader;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 import org.openstreetmap.osmaxil.Application;
+import org.openstreetmap.osmaxil.dao.ElevationCloudFile;
 import org.openstreetmap.osmaxil.dao.ElevationDatabase;
+import org.openstreetmap.osmaxil.util.PointCloudReader;
+import org.openstreetmap.osmaxil.util.Quantization;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
 
 public abstract class AbstractElevationDbLoader {
 
@@ -18,22 +34,167 @@ public abstract class AbstractElevationDbLoader {
 	@Value("${loader.srid}")
 	protected String srid;
 
+	@Value("${loader.copyMode:TEXT}")
+	protected String copyMode;
+
+	@Value("${loader.threads:1}")
+	protected int threads;
+
+	/**
+	 * If enabled the point cloud table is partitioned by tile: each source file is loaded into its own partition (source files of elevation
+	 * products are usually spatial tiles) and the extent of each tile is stored so the queries can skip the other tiles.
+	 */
+	@Value("${loader.tilePartitioning:false}")
+	protected boolean tilePartitioning;
+
+	@Value("${loader.indexType:GIST}")
+	protected String indexType;
+
+	/**
+	 * Coordinates can be stored as numeric or quantized as scaled int4 (with the precision and the offsets below), quantized tables and their
+	 * indexes are much smaller. Quantized storage requires the binary copy mode.
+	 */
+	@Value("${loader.storage:NUMERIC}")
+	protected String storage;
+
+	@Value("${loader.quantization.precision:0.01}")
+	protected double quantizationPrecision;
+
+	@Value("${loader.quantization.xOffset:0}")
+	protected double quantizationXOffset;
+
+	@Value("${loader.quantization.yOffset:0}")
+	protected double quantizationYOffset;
+
+	@Value("${loader.quantization.zOffset:0}")
+	protected double quantizationZOffset;
+
+	@Value("${loader.cloud.precision:0.001}")
+	protected double cloudPrecision;
+
+	@Value("${loader.cloud.chunkSize:16384}")
+	protected int cloudChunkSize;
+
 	protected ElevationDatabase database;
 
+	// Quantization of the coordinates of the loaded table (null if they are stored as numeric)
+	protected Quantization quantization;
+
 	static protected final Logger LOGGER = Logger.getLogger(Application.class);
 
-	abstract protected void loadData(String source) throws IOException;
+	// Suffix of the journal table which records the loaded files of a point cloud table
+	static protected final String JOURNAL_SUFFIX = "_journal";
+
+	public enum CopyMode {
+		// Points are copied as text then their geometries are computed by the database
+		TEXT,
+		// Points are copied with their geometries in binary format by several threads
+		BINARY
+	};
+
+	public enum IndexType {
+		// R-tree over GiST, the fastest for the queries but slow to build on large tables
+		GIST,
+		// Block range index, much smaller and faster to build but only efficient if the points are stored in spatial order (ie. tile by tile)
+		BRIN
+	};
+
+	public enum StorageLayout {
+		// Coordinates are stored as numeric(11,3) and the geometries have a Z
+		NUMERIC,
+		// Coordinates are stored as int4 which are scaled and shifted by the values of the metadata table, the geometries are 2D
+		QUANTIZED
+	};
+
+	/**
+	 * Load the points of a file in text mode, returns the number of loaded points.
+	 */
+	abstract protected long loadFile(String tableName, File file) throws IOException;
+
+	/**
+	 * Returns the files of the loader folder which can be loaded.
+	 */
+	abstract protected File[] getSourceFiles();
+
+	/**
+	 * Open a file of the loader folder as a stream of points (used in binary mode).
+	 */
+	abstract protected PointCloudReader openPointCloud(File file) throws IOException;
 
+	/**
+	 * Load the files of the loader folder into a point cloud table. Each loaded file is recorded into a journal table, so if the loading fails it
+	 * can be resumed by loading only the files which are missing (the table is finalized only once all the files have been loaded).
+	 */
 	public void load(ElevationDatabase dataSource, String tableName) throws IOException {
 		this.database = dataSource;
+		boolean binary = this.isBinaryMode();
+		this.quantization = (this.isQuantizedStorage(binary) ? new Quantization(this.quantizationXOffset, this.quantizationYOffset,
+				this.quantizationZOffset, this.quantizationPrecision, this.quantizationPrecision) : null);
+		List<File> missingFiles;
 		if (this.database.testTableExistence(tableName)) {
-			LOGGER.info("A table named " + tableName + " already exists, skip loading...");
+			if (!this.database.testTableExistence(tableName + JOURNAL_SUFFIX)) {
+				LOGGER.info("A table named " + tableName + " already exists, skip loading...");
+				return;
+			}
+			if (this.database.testIndexExistence("geom_idx_for_" + tableName)) {
+				LOGGER.info("A table named " + tableName + " has already been loaded, skip loading...");
+				return;
+			}
+			// Journal is checked first since a text mode table gets its geometry column once all its files have been loaded
+			missingFiles = this.getMissingFiles(tableName);
+			if (missingFiles.isEmpty()) {
+				LOGGER.info("All the files of the point cloud table have been loaded, resume its finalization.");
+				this.finalizePointCloudTable(tableName, this.testGeometriesExistence(tableName));
+				return;
+			}
+			if (this.database.testColumnExistence(tableName, "geom") && !binary) {
+				throw new IOException("Table " + tableName + " has a geometry column but " + missingFiles.size() + " files are missing from its journal: "
+						+ "it has been partially loaded with another copy mode or its finalization has started before these files were added, drop it"
+						+ " in order to load it again");
+			}
+			if (!this.database.testColumnExistence(tableName, "geom") && binary) {
+				throw new IOException("Table " + tableName + " has been partially loaded with another copy mode, drop it in order to load it again");
+			}
+			if (this.database.testTableExistence(tableName + ElevationDatabase.TILES_SUFFIX) != this.tilePartitioning) {
+				throw new IOException("Table " + tableName + " has been partially loaded with another partitioning, drop it in order to load it again");
+			}
+			if (this.database.testTableExistence(tableName + ElevationDatabase.METADATA_SUFFIX) != (this.quantization != null)) {
+				throw new IOException("Table " + tableName + " has been partially loaded with another storage, drop it in order to load it again");
+			}
+			LOGGER.info("Resume the loading of the point cloud table (copy mode is " + (binary ? CopyMode.BINARY : CopyMode.TEXT) + ").");
+		} else {
+			LOGGER.info("Create the point cloud table from scratch (copy mode is " + (binary ? CopyMode.BINARY : CopyMode.TEXT) + ").");
+			this.createPointCloudTable(tableName, binary);
+			this.createJournalTable(tableName + JOURNAL_SUFFIX);
+			missingFiles = this.getMissingFiles(tableName);
+		}
+		this.loadFiles(tableName, binary, missingFiles);
+		this.finalizePointCloudTable(tableName, binary);
+	}
+
+	/**
+	 * Load the points into a cloud file instead of a table (see {@link ElevationCloudFile}), the points must be already in the SRID of the file.
+	 */
+	public void load(ElevationCloudFile cloud, String filePath) throws IOException {
+		if (new File(filePath).exists()) {
+			LOGGER.info("A cloud file named " + filePath + " already exists, skip loading...");
 			return;
 		}
-		LOGGER.info("Create the point cloud table from scratch.");
-		this.createPointCloudTable(tableName);
-		this.loadData(tableName);
-		this.finalizePointCloudTable(tableName);
+		if (Integer.parseInt(this.srid) != cloud.getSrid()) {
+			throw new IOException("SRID of the files (" + this.srid + ") must be the same than the SRID of the cloud (" + cloud.getSrid() + ")");
+		}
+		LOGGER.info("Create the cloud file from scratch.");
+		long start = System.currentTimeMillis();
+		try (ElevationCloudFileWriter writer = new ElevationCloudFileWriter(new File(filePath + ".tmp"), this.cloudPrecision, this.cloudChunkSize)) {
+			for (File file : this.getSourceFiles()) {
+				try (PointCloudReader reader = this.openPointCloud(file)) {
+					LOGGER.info("File " + file + " has been read (" + writer.addPoints(reader) + " points)");
+				}
+			}
+			writer.write(filePath, cloud.getSrid());
+		}
+		LOGGER.info("Cloud file has been created in " + (System.currentTimeMillis() - start) + " ms");
+		cloud.init(filePath, cloud.getSrid());
 	}
 
 	/**
@@ -47,32 +208,276 @@ public abstract class AbstractElevationDbLoader {
 	}
 
 	/**
-	 * Create a point cloud table.
+	 * Create a point cloud table, its geometry column can be created at once if the geometries are copied with the points.
 	 */
-	protected void createPointCloudTable(String tableName) {
+	protected void createPointCloudTable(String tableName, boolean withGeometry) {
 		this.database.executeSQL("DROP INDEX IF EXISTS geom_idx_for_" + tableName);
 		this.database.executeSQL("DROP TABLE IF EXISTS " + tableName);
-		this.database.executeSQL("CREATE TABLE " + tableName + " (x numeric(11,3), y numeric(11,3), z numeric(11,3))");
+		this.database.executeSQL("DROP TABLE IF EXISTS " + tableName + ElevationDatabase.METADATA_SUFFIX);
+		String columns = "x numeric(11,3), y numeric(11,3), z numeric(11,3)";
+		String geometryColumn = withGeometry ? ", geom geometry(PointZ, " + this.database.getSrid() + ")" : "";
+		if (this.quantization != null) {
+			columns = "x int4, y int4, z int4";
+			geometryColumn = ", geom geometry(Point, " + this.database.getSrid() + ")";
+			this.createMetadataTable(tableName + ElevationDatabase.METADATA_SUFFIX);
+		}
+		if (!this.tilePartitioning) {
+			this.database.executeSQL("CREATE TABLE " + tableName + " (" + columns + geometryColumn + ")");
+			return;
+		}
+		this.database.executeSQL("CREATE TABLE " + tableName + " (" + columns + geometryColumn + ", tile_id bigint) PARTITION BY LIST (tile_id)");
+		String tilesTableName = tableName + ElevationDatabase.TILES_SUFFIX;
+		this.database.executeSQL("DROP TABLE IF EXISTS " + tilesTableName);
+		this.database.executeSQL("CREATE TABLE " + tilesTableName + " (tile_id bigint PRIMARY KEY, file_name text, extent geometry(Polygon, "
+				+ this.database.getSrid() + "))");
+		this.database.executeSQL("DROP SEQUENCE IF EXISTS " + tilesTableName + "_seq");
+		this.database.executeSQL("CREATE SEQUENCE " + tilesTableName + "_seq");
+	}
+
+	/**
+	 * Create the partition of a new tile, returns its name. The tile ID is the default value of the partition key so the points can be copied
+	 * directly into the partition.
+	 */
+	protected String createTilePartition(String tableName, long tileId) {
+		String partitionName = tableName + "_tile_" + tileId;
+		this.database.executeSQL("CREATE TABLE " + partitionName + " PARTITION OF " + tableName + " (tile_id DEFAULT " + tileId + ") FOR VALUES IN ("
+				+ tileId + ")");
+		return partitionName;
+	}
+
+	/**
+	 * Store the extent of a tile once its points have been loaded (coordinates of the points are in the SRID of the files).
+	 */
+	protected void storeTileExtent(String tableName, long tileId, String partitionName, String fileName) {
+		String x = (this.quantization != null ? this.quantization.getColumnExpression("x") : "x");
+		String y = (this.quantization != null ? this.quantization.getColumnExpression("y") : "y");
+		this.database.executeUpdate("INSERT INTO " + tableName + ElevationDatabase.TILES_SUFFIX + " (tile_id, file_name, extent) SELECT " + tileId
+				+ ", ?, ST_Transform(ST_MakeEnvelope(min(" + x + ")::float8, min(" + y + ")::float8, max(" + x + ")::float8, max(" + y + ")::float8, "
+				+ this.srid + "), " + this.database.getSrid() + ") FROM " + partitionName, fileName);
+	}
+
+	/**
+	 * Create the metadata table of a quantized point cloud table, it has a single row with the offsets and the scales of the coordinates.
+	 */
+	protected void createMetadataTable(String metadataTableName) {
+		this.database.executeSQL("CREATE TABLE " + metadataTableName
+				+ " (x_offset float8, y_offset float8, z_offset float8, xy_scale float8, z_scale float8)");
+		this.database.executeUpdate("INSERT INTO " + metadataTableName + " VALUES (?, ?, ?, ?, ?)", this.quantization.getXOffset(),
+				this.quantization.getYOffset(), this.quantization.getZOffset(), this.quantization.getXYScale(), this.quantization.getZScale());
+	}
+
+	/**
+	 * Create the journal table of a point cloud table, it has a row for each loaded file.
+	 */
+	protected void createJournalTable(String journalTableName) {
+		this.database.executeSQL("DROP TABLE IF EXISTS " + journalTableName);
+		this.database.executeSQL("CREATE TABLE " + journalTableName
+				+ " (file_name text PRIMARY KEY, point_count bigint, byte_count bigint, duration_ms bigint, loaded_at timestamp DEFAULT now())");
+	}
+
+	/**
+	 * Fill a point cloud table by using the COPY statement (which much more efficient than INSERT), returns the number of copied points.
+	 */
+	protected long copyPointCloudFromXYZFile(String tableName, String filePath) {
+		return this.database.executeUpdate("COPY " + tableName + " (x, y, z) FROM '" + filePath + "' WITH DELIMITER AS '" + this.separator + "'");
+	}
+
+	/**
+	 * Fill a point cloud table by streaming the points of a reader through a COPY FROM STDIN statement, returns the number of copied points.
+	 */
+	protected long copyPointCloudFromReader(String tableName, PointCloudReader reader) throws IOException {
+		return this.copyPointCloudFromReader(tableName, reader, false);
+	}
+
+	/**
+	 * Same as above but in binary mode the geometries are copied with the points (and the coordinates must be already in the SRID of the database),
+	 * the coordinates are quantized if the storage is quantized.
+	 */
+	protected long copyPointCloudFromReader(String tableName, PointCloudReader reader, boolean binary) throws IOException {
+		if (binary) {
+			try (PointCloudCopyStream stream = new PointCloudCopyStream(reader, this.database.getSrid(), this.quantization)) {
+				return this.database.copyIn("COPY " + tableName + " (x, y, z, geom) FROM STDIN WITH (FORMAT binary)", stream);
+			}
+		}
+		try (PointCloudCopyStream stream = new PointCloudCopyStream(reader)) {
+			return this.database.copyIn("COPY " + tableName + " (x, y, z) FROM STDIN", stream);
+		}
+	}
+
+	/**
+	 * Returns the files of the loader folder which are not yet in the journal of the point cloud table (sorted by name).
+	 */
+	protected List<File> getMissingFiles(String tableName) {
+		Set<String> loadedFileNames = new HashSet<>(this.database.queryForList("SELECT file_name FROM " + tableName + JOURNAL_SUFFIX, String.class));
+		File[] files = this.getSourceFiles();
+		Arrays.sort(files);
+		List<File> missingFiles = new ArrayList<>();
+		for (File file : files) {
+			if (!loadedFileNames.contains(file.getName())) {
+				missingFiles.add(file);
+			}
+		}
+		LOGGER.info((files.length - missingFiles.size()) + " of " + files.length + " files have already been loaded into " + tableName);
+		return missingFiles;
+	}
+
+	/**
+	 * Fill a point cloud table by copying the missing files of the loader folder (see above). In binary mode several files are copied at once (each
+	 * one by its own connection). A file which fails doesn't stop the loading of the other ones, but the loading fails at the end so the table is
+	 * not finalized (the next loading will retry the failed files only).
+	 */
+	protected void loadFiles(final String tableName, final boolean binary, final List<File> missingFiles) throws IOException {
+		int threadCount = (binary ? Math.max(1, Math.min(this.threads, missingFiles.size())) : 1);
+		// Each thread needs its own connection, otherwise the threads wait for each other
+		int maxConnections = this.database.getMaxConnections();
+		if (maxConnections > 0 && maxConnections < threadCount) {
+			LOGGER.error("Pool of the elevation database has only " + maxConnections + " connections for " + threadCount
+					+ " threads, only " + maxConnections + " files can be copied at once (elevationDatabase.maxActive should be at least loader.threads)");
+		}
+		LOGGER.info("Loading " + missingFiles.size() + " files with " + threadCount + " threads");
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		List<Future<Long>> results = new ArrayList<>();
+		for (final File file : missingFiles) {
+			results.add(executor.submit(new Callable<Long>() {
+				public Long call() throws IOException {
+					return loadFileWithJournal(tableName, file, binary);
+				}
+			}));
+		}
+		long totalPoints = 0, totalBytes = 0;
+		List<String> failedFileNames = new ArrayList<>();
+		try {
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					totalPoints += results.get(i).get();
+					totalBytes += missingFiles.get(i).length();
+				} catch (ExecutionException e) {
+					LOGGER.error("File " + missingFiles.get(i) + " has not been loaded: " + e.getCause().getMessage(), e.getCause());
+					failedFileNames.add(missingFiles.get(i).getName());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading the point cloud");
+		} finally {
+			executor.shutdownNow();
+		}
+		LOGGER.info((missingFiles.size() - failedFileNames.size()) + " files have been loaded: "
+				+ formatThroughput(totalPoints, totalBytes, System.currentTimeMillis() - start));
+		if (!failedFileNames.isEmpty()) {
+			throw new IOException(failedFileNames.size() + " files have not been loaded " + failedFileNames + ", load again to retry them");
+		}
+	}
+
+	/**
+	 * Load a file and record it into the journal in the same transaction, so a file is either fully loaded and recorded or not loaded at all.
+	 * Returns the number of loaded points.
+	 */
+	protected long loadFileWithJournal(final String tableName, final File file, final boolean binary) throws IOException {
+		final long start = System.currentTimeMillis();
+		long count;
+		try {
+			count = this.database.executeInTransaction(new TransactionCallback<Long>() {
+				public Long doInTransaction(TransactionStatus status) {
+					try {
+						// Each file is a tile which is loaded into its own partition
+						long tileId = 0;
+						String targetTableName = tableName;
+						if (tilePartitioning) {
+							tileId = database.queryForObject("SELECT nextval('" + tableName + ElevationDatabase.TILES_SUFFIX + "_seq')", Long.class);
+							targetTableName = createTilePartition(tableName, tileId);
+						}
+						long count = (binary ? copyPointCloudFromReader(targetTableName, openPointCloud(file), true) : loadFile(targetTableName, file));
+						if (tilePartitioning) {
+							storeTileExtent(tableName, tileId, targetTableName, file.getName());
+						}
+						database.executeUpdate("INSERT INTO " + tableName + JOURNAL_SUFFIX
+								+ " (file_name, point_count, byte_count, duration_ms) VALUES (?, ?, ?, ?)", file.getName(), count, file.length(),
+								System.currentTimeMillis() - start);
+						return count;
+					} catch (IOException e) {
+						// Only runtime exceptions make the transaction roll back
+						throw new IllegalStateException(e.getMessage(), e);
+					}
+				}
+			});
+		} catch (IllegalStateException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		}
+		LOGGER.info("File " + file + " has been loaded: " + formatThroughput(count, file.length(), System.currentTimeMillis() - start));
+		return count;
+	}
+
+	/**
+	 * Finalize a point cloud table by computing its geometries (if they haven't been copied with the points) and an spatial index (if the table is
+	 * partitioned there's an index by partition). The geometry column is added only if it doesn't exist yet (a finalization can be resumed).
+	 */
+	protected void finalizePointCloudTable(String tableName, boolean withGeometry) {
+		if (!withGeometry) {
+			if (!this.database.testColumnExistence(tableName, "geom")) {
+				LOGGER.info("Add geometry column to the point cloud table");
+				this.database.executeSQL("SELECT AddGeometryColumn ('" + tableName + "', 'geom', " + this.database.getSrid() + ", 'POINT', 3)");
+			}
+			LOGGER.info("Update the geometry column of the point cloud table");
+			this.database.executeSQL("UPDATE " + tableName + " SET geom = ST_Transform(ST_GeomFromText('POINT('||x||' '||y||' '||z||')', " + this.srid
+					+ "), " + this.database.getSrid() + ")");
+		}
+		IndexType type = IndexType.valueOf(this.indexType);
+		LOGGER.info("Create an index on the geometry column of the point cloud table (index type is " + type + ")");
+		this.database.executeSQL("CREATE INDEX geom_idx_for_" + tableName + " ON " + tableName + " USING " + type + " (geom)");
 	}
 
 	/**
-	 * Fill a point cloud table by using the COPY statement (which much more efficient than INSERT).
+	 * Returns true if all the points of a point cloud table have their geometry, ie. if they have been copied with their geometries or if they
+	 * have been computed by a finalization (which has been interrupted before the creation of the index).
 	 */
-	protected void copyPointCloudFromXYZFile(String tableName, String filePath) {
-		this.database.executeSQL("COPY " + tableName + " (x, y, z) FROM '" + filePath + "' WITH DELIMITER AS '" + this.separator + "'");
+	protected boolean testGeometriesExistence(String tableName) {
+		if (!this.database.testColumnExistence(tableName, "geom")) {
+			return false;
+		}
+		return this.database.queryForObject("SELECT NOT EXISTS (SELECT 1 FROM " + tableName + " WHERE geom IS NULL)", Boolean.class);
+	}
+
+	/**
+	 * Binary mode is used only if the points are already in the SRID of the database since there's no reprojection on the client side.
+	 */
+	protected boolean isBinaryMode() {
+		if (!CopyMode.BINARY.name().equals(this.copyMode)) {
+			return false;
+		}
+		if (Integer.parseInt(this.srid) != this.database.getSrid()) {
+			LOGGER.warn("Binary copy mode requires the SRID of the files (" + this.srid + ") to be the SRID of the database (" + this.database.getSrid()
+					+ "), text mode is used instead");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Quantized storage is used only in binary mode since the coordinates are quantized on the client side.
+	 */
+	protected boolean isQuantizedStorage(boolean binary) {
+		if (!StorageLayout.QUANTIZED.name().equals(this.storage)) {
+			return false;
+		}
+		if (!binary) {
+			LOGGER.warn("Quantized storage requires the binary copy mode, numeric storage is used instead");
+			return false;
+		}
+		return true;
 	}
 
 	/**
-	 * Finalize a point cloud table by adding its geometry column and an spatial index.
+	 * Returns the throughput of a loading as text (in points/s and in MB/s of source files).
 	 */
-	protected void finalizePointCloudTable(String tableName) {
-		LOGGER.info("Add geometry column to the point cloud table");
-		this.database.executeSQL("SELECT AddGeometryColumn ('" + tableName + "', 'geom', " + this.database.getSrid() + ", 'POINT', 3)");
-		LOGGER.info("Update the geometry column of the point cloud table");
-		this.database.executeSQL("UPDATE " + tableName + " SET geom = ST_Transform(ST_GeomFromText('POINT('||x||' '||y||' '||z||')', " + this.srid
-				+ "), " + this.database.getSrid() + ")");
-		LOGGER.info("Create an index on the geometry column of the point cloud table");
-		this.database.executeSQL("CREATE INDEX geom_idx_for_" + tableName + " ON " + tableName + " USING GIST (geom)");
+	protected static String formatThroughput(long points, long bytes, long duration) {
+		duration = Math.max(1, duration);
+		return points + " points (" + String.format("%.1f", bytes / 1048576.0) + " MB) in " + duration + " ms, " + (points * 1000 / duration)
+				+ " points/s and " + String.format("%.2f", bytes / 1048576.0 * 1000 / duration) + " MB/s";
 	}
 
 	/**
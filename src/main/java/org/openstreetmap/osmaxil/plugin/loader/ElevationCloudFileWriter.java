@@ -0,0 +1,289 @@
+package org.openstreetmap.osmaxil.plugin.loader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.openstreetmap.osmaxil.Application;
+import org.openstreetmap.osmaxil.dao.ElevationCloudFile;
+import org.openstreetmap.osmaxil.util.PointCloudReader;
+
+/**
+ * Build a cloud file (see {@link ElevationCloudFile}) from the points of several readers.
+ *
+ * The points are first copied into a temporary file (while their envelope is computed), then the quadtree is built from the counts of points of a
+ * fine grid: a node is split until it has no more than the chunk size. Finally each point is quantized and written into its chunk.
+ */
+public class ElevationCloudFileWriter implements AutoCloseable {
+
+	private File tmpFile;
+
+	private DataOutputStream tmpOutput;
+
+	private double precision;
+
+	private int chunkSize;
+
+	private long pointCount;
+
+	private double xMin = Double.MAX_VALUE, yMin = Double.MAX_VALUE, zMin = Double.MAX_VALUE;
+
+	private double xMax = -Double.MAX_VALUE, yMax = -Double.MAX_VALUE, zMax = -Double.MAX_VALUE;
+
+	private double[] x = new double[PointCloudCopyStream.BATCH_SIZE], y = new double[PointCloudCopyStream.BATCH_SIZE],
+			z = new double[PointCloudCopyStream.BATCH_SIZE];
+
+	// The finest grid used to build the quadtree has 2^MAX_LEVEL x 2^MAX_LEVEL cells at most
+	static private final int MAX_LEVEL = 11;
+
+	static protected final Logger LOGGER = Logger.getLogger(Application.class);
+
+	/**
+	 * The coordinates are quantized with the specified precision and the chunks have the specified number of points at most (unless their points
+	 * are too close to be split).
+	 */
+	public ElevationCloudFileWriter(File tmpFile, double precision, int chunkSize) throws IOException {
+		this.tmpFile = tmpFile;
+		this.precision = precision;
+		this.chunkSize = chunkSize;
+		this.tmpOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 20));
+	}
+
+	/**
+	 * Add all the points of a reader, returns the number of added points.
+	 */
+	public long addPoints(PointCloudReader reader) throws IOException {
+		long count = 0;
+		int size;
+		while ((size = reader.read(this.x, this.y, this.z)) >= 0) {
+			for (int i = 0; i < size; i++) {
+				this.tmpOutput.writeDouble(this.x[i]);
+				this.tmpOutput.writeDouble(this.y[i]);
+				this.tmpOutput.writeDouble(this.z[i]);
+				this.xMin = Math.min(this.xMin, this.x[i]);
+				this.yMin = Math.min(this.yMin, this.y[i]);
+				this.zMin = Math.min(this.zMin, this.z[i]);
+				this.xMax = Math.max(this.xMax, this.x[i]);
+				this.yMax = Math.max(this.yMax, this.y[i]);
+				this.zMax = Math.max(this.zMax, this.z[i]);
+			}
+			count += size;
+		}
+		this.pointCount += count;
+		return count;
+	}
+
+	/**
+	 * Write the cloud file from all the added points.
+	 */
+	public void write(String filePath, int srid) throws IOException {
+		this.tmpOutput.close();
+		if (this.pointCount == 0) {
+			throw new IOException("No point has been added");
+		}
+		long xRange = Math.round((this.xMax - this.xMin) / this.precision);
+		long yRange = Math.round((this.yMax - this.yMin) / this.precision);
+		long zRange = Math.round((this.zMax - this.zMin) / this.precision);
+		if (Math.max(xRange, Math.max(yRange, zRange)) >= Integer.MAX_VALUE) {
+			throw new IOException("Points are too spread to be quantized with a precision of " + this.precision);
+		}
+		// Choose the finest grid so there are a few cells by chunk
+		int maxLevel = 0;
+		while (maxLevel < MAX_LEVEL && (1L << (2 * maxLevel)) * this.chunkSize < 16 * this.pointCount) {
+			maxLevel++;
+		}
+		int side = 1 << maxLevel;
+		long cellSize = Math.max(xRange, yRange) / side + 1;
+		// Count the points of each cell, then the points of the cells of the coarser levels
+		long[][] counts = new long[maxLevel + 1][];
+		counts[maxLevel] = new long[side * side];
+		try (DataInputStream in = this.openTmpFile()) {
+			for (long i = 0; i < this.pointCount; i++) {
+				int qx = this.quantize(in.readDouble(), this.xMin);
+				int qy = this.quantize(in.readDouble(), this.yMin);
+				in.readDouble();
+				counts[maxLevel][this.getCell(qx, qy, cellSize, side)]++;
+			}
+		}
+		for (int level = maxLevel - 1; level >= 0; level--) {
+			int levelSide = 1 << level;
+			counts[level] = new long[levelSide * levelSide];
+			for (int row = 0; row < 2 * levelSide; row++) {
+				for (int column = 0; column < 2 * levelSide; column++) {
+					counts[level][(row / 2) * levelSide + column / 2] += counts[level + 1][row * 2 * levelSide + column];
+				}
+			}
+		}
+		// Build the quadtree, each node is (level, column, row, first child, child count, leaf index)
+		List<int[]> nodes = new ArrayList<>();
+		int[] cellLeaves = new int[side * side];
+		nodes.add(new int[] { 0, 0, 0, -1, 0, -1 });
+		int leafCount = this.buildNode(0, nodes, counts, maxLevel, cellLeaves, 0);
+		// Compute the position of the first point of each leaf
+		long[] leafStarts = new long[leafCount + 1];
+		for (int cell = 0; cell < cellLeaves.length; cell++) {
+			if (counts[maxLevel][cell] > 0) {
+				leafStarts[cellLeaves[cell] + 1] += counts[maxLevel][cell];
+			}
+		}
+		for (int i = 1; i <= leafCount; i++) {
+			leafStarts[i] += leafStarts[i - 1];
+		}
+		LOGGER.info("Cloud will have " + this.pointCount + " points in " + leafCount + " chunks (" + nodes.size() + " quadtree nodes)");
+		int[] leafMinX = new int[leafCount], leafMinY = new int[leafCount], leafMaxX = new int[leafCount], leafMaxY = new int[leafCount];
+		Arrays.fill(leafMinX, Integer.MAX_VALUE);
+		Arrays.fill(leafMinY, Integer.MAX_VALUE);
+		Arrays.fill(leafMaxX, Integer.MIN_VALUE);
+		Arrays.fill(leafMaxY, Integer.MIN_VALUE);
+		long directoryPosition = ElevationCloudFile.HEADER_SIZE + this.pointCount * ElevationCloudFile.POINT_SIZE;
+		try (RandomAccessFile file = new RandomAccessFile(filePath, "rw"); FileChannel channel = file.getChannel()) {
+			file.setLength(directoryPosition + (long) nodes.size() * ElevationCloudFile.NODE_SIZE);
+			// Write the points into their chunks (and compute the bounds of the chunks)
+			MappedByteBuffer[] segments = ElevationCloudFile.mapSegments(channel, MapMode.READ_WRITE, ElevationCloudFile.HEADER_SIZE, this.pointCount);
+			long[] cursors = Arrays.copyOf(leafStarts, leafCount);
+			try (DataInputStream in = this.openTmpFile()) {
+				for (long i = 0; i < this.pointCount; i++) {
+					int qx = this.quantize(in.readDouble(), this.xMin);
+					int qy = this.quantize(in.readDouble(), this.yMin);
+					int qz = this.quantize(in.readDouble(), this.zMin);
+					int leaf = cellLeaves[this.getCell(qx, qy, cellSize, side)];
+					long p = cursors[leaf]++;
+					MappedByteBuffer segment = segments[(int) (p / ElevationCloudFile.POINTS_BY_SEGMENT)];
+					int offset = (int) (p % ElevationCloudFile.POINTS_BY_SEGMENT) * ElevationCloudFile.POINT_SIZE;
+					segment.putInt(offset, qx);
+					segment.putInt(offset + 4, qy);
+					segment.putInt(offset + 8, qz);
+					leafMinX[leaf] = Math.min(leafMinX[leaf], qx);
+					leafMinY[leaf] = Math.min(leafMinY[leaf], qy);
+					leafMaxX[leaf] = Math.max(leafMaxX[leaf], qx);
+					leafMaxY[leaf] = Math.max(leafMaxY[leaf], qy);
+				}
+			}
+			for (MappedByteBuffer segment : segments) {
+				segment.force();
+			}
+			// Write the directory, children are always after their parent so the bounds can be computed from the last node
+			int[][] bounds = new int[nodes.size()][];
+			long[][] ranges = new long[nodes.size()][];
+			for (int n = nodes.size() - 1; n >= 0; n--) {
+				int[] node = nodes.get(n);
+				if (node[5] >= 0) {
+					bounds[n] = new int[] { leafMinX[node[5]], leafMinY[node[5]], leafMaxX[node[5]], leafMaxY[node[5]] };
+					ranges[n] = new long[] { leafStarts[node[5]], leafStarts[node[5] + 1] - leafStarts[node[5]] };
+				} else {
+					bounds[n] = new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE };
+					ranges[n] = new long[] { ranges[node[3]][0], 0 };
+					for (int child = node[3]; child < node[3] + node[4]; child++) {
+						bounds[n][0] = Math.min(bounds[n][0], bounds[child][0]);
+						bounds[n][1] = Math.min(bounds[n][1], bounds[child][1]);
+						bounds[n][2] = Math.max(bounds[n][2], bounds[child][2]);
+						bounds[n][3] = Math.max(bounds[n][3], bounds[child][3]);
+						ranges[n][1] += ranges[child][1];
+					}
+				}
+			}
+			MappedByteBuffer directory = channel.map(MapMode.READ_WRITE, directoryPosition, (long) nodes.size() * ElevationCloudFile.NODE_SIZE);
+			for (int n = 0; n < nodes.size(); n++) {
+				int position = n * ElevationCloudFile.NODE_SIZE;
+				directory.putInt(position, bounds[n][0]);
+				directory.putInt(position + 4, bounds[n][1]);
+				directory.putInt(position + 8, bounds[n][2]);
+				directory.putInt(position + 12, bounds[n][3]);
+				directory.putInt(position + 16, nodes.get(n)[3]);
+				directory.putInt(position + 20, nodes.get(n)[4]);
+				directory.putLong(position + 24, ranges[n][0]);
+				directory.putLong(position + 32, ranges[n][1]);
+			}
+			directory.force();
+			// Header is written at last so an incomplete file cannot be opened
+			MappedByteBuffer header = channel.map(MapMode.READ_WRITE, 0, ElevationCloudFile.HEADER_SIZE);
+			header.putInt(0, ElevationCloudFile.MAGIC);
+			header.putInt(4, ElevationCloudFile.VERSION);
+			header.putInt(8, srid);
+			header.putInt(12, nodes.size());
+			header.putLong(16, this.pointCount);
+			header.putDouble(24, this.xMin);
+			header.putDouble(32, this.yMin);
+			header.putDouble(40, this.zMin);
+			header.putDouble(48, this.precision);
+			header.putDouble(56, this.precision);
+			header.putLong(64, directoryPosition);
+			header.force();
+		}
+		LOGGER.info("Cloud file " + filePath + " has been created");
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.tmpOutput.close();
+		this.tmpFile.delete();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Private methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Create the children of a node (if it has too much points) then the children of its children and so on, children of a node are added at once
+	 * so they are contiguous. Returns the new count of leaves.
+	 */
+	private int buildNode(int n, List<int[]> nodes, long[][] counts, int maxLevel, int[] cellLeaves, int leafCount) {
+		int[] node = nodes.get(n);
+		int level = node[0], column = node[1], row = node[2];
+		if (level == maxLevel || counts[level][row * (1 << level) + column] <= this.chunkSize) {
+			// The node is a leaf, all the cells which it covers belong to it
+			node[5] = leafCount;
+			int size = 1 << (maxLevel - level);
+			int side = 1 << maxLevel;
+			for (int r = row * size; r < (row + 1) * size; r++) {
+				for (int c = column * size; c < (column + 1) * size; c++) {
+					cellLeaves[r * side + c] = leafCount;
+				}
+			}
+			return leafCount + 1;
+		}
+		int first = nodes.size();
+		int childSide = 1 << (level + 1);
+		for (int i = 0; i < 4; i++) {
+			int childColumn = 2 * column + (i & 1);
+			int childRow = 2 * row + (i >> 1);
+			if (counts[level + 1][childRow * childSide + childColumn] > 0) {
+				nodes.add(new int[] { level + 1, childColumn, childRow, -1, 0, -1 });
+			}
+		}
+		node[3] = first;
+		node[4] = nodes.size() - first;
+		for (int child = first; child < first + node[4]; child++) {
+			leafCount = this.buildNode(child, nodes, counts, maxLevel, cellLeaves, leafCount);
+		}
+		return leafCount;
+	}
+
+	private DataInputStream openTmpFile() throws IOException {
+		return new DataInputStream(new BufferedInputStream(new FileInputStream(this.tmpFile), 1 << 20));
+	}
+
+	private int quantize(double value, double offset) {
+		return (int) Math.round((value - offset) / this.precision);
+	}
+
+	private int getCell(int qx, int qy, long cellSize, int side) {
+		int column = (int) (qx / cellSize);
+		int row = (int) (qy / cellSize);
+		return row * side + column;
+	}
+
+}
@@ -1,9 +1,123 @@
 package org.openstreetmap.osmaxil.plugin.loader;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.openstreetmap.osmaxil.util.LasReader;
+import org.openstreetmap.osmaxil.util.PointCloudReader;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Service;
+
+/**
+ * Load the LAS/LAZ files of a folder. Points are streamed from the files to the database, LAZ files are decompressed on the fly by laszip (its
+ * output is read from a pipe).
+ */
+@Service("ElevationDbLoaderForLAZ")
+@Lazy
+@Scope("prototype")
 public class ElevationDbLoaderForLAZ extends AbstractElevationDbLoader {
 
+	@Value("${loader.laszip:laszip}")
+	protected String laszipCommand;
+
+	// Classifications of the points to keep separated by commas (for example 2 for ground points), all points are kept if it's empty
+	@Value("${loader.lidar.classifications:}")
+	protected String classifications;
+
+	@Value("${loader.lidar.firstReturnsOnly:false}")
+	protected boolean firstReturnsOnly;
+
 	@Override
-	public void loadData(String source) {
-		// TODO Auto-generated method stub
+	protected long loadFile(String tableName, File file) throws IOException {
+		LOGGER.info("Loading file " + file);
+		PointCloudReader reader = this.openPointCloud(file);
+		long count = this.copyPointCloudFromReader(tableName, reader);
+		LOGGER.info(count + " points have been kept");
+		return count;
 	}
+
+	@Override
+	protected File[] getSourceFiles() {
+		File folder = new File(this.folderPath);
+		return folder.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.toLowerCase().endsWith(".las") || name.toLowerCase().endsWith(".laz");
+			}
+		});
+	}
+
+	/**
+	 * Open a LAS file, or a LAZ file through laszip (in that case closing the reader waits for the end of laszip).
+	 */
+	@Override
+	protected PointCloudReader openPointCloud(final File file) throws IOException {
+		if (!file.getName().toLowerCase().endsWith(".laz")) {
+			return this.createReader(new FileInputStream(file));
+		}
+		ProcessBuilder builder = new ProcessBuilder(this.laszipCommand, "-i", file.getAbsolutePath(), "-olas", "-stdout");
+		builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		final Process process = builder.start();
+		final LasReader reader;
+		try {
+			reader = this.createReader(process.getInputStream());
+		} catch (IOException e) {
+			process.destroy();
+			throw e;
+		}
+		return new PointCloudReader() {
+			@Override
+			public int read(double[] x, double[] y, double[] z) throws IOException {
+				return reader.read(x, y, z);
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					reader.close();
+					if (process.waitFor() != 0) {
+						throw new IOException("laszip has returned " + process.exitValue() + " for " + file);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for laszip");
+				} finally {
+					process.destroy();
+				}
+			}
+		};
+	}
+
+	private LasReader createReader(InputStream in) throws IOException {
+		LasReader reader;
+		try {
+			reader = new LasReader(new BufferedInputStream(in, 1 << 20));
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		reader.setAcceptedClassifications(this.parseClassifications());
+		reader.setFirstReturnsOnly(this.firstReturnsOnly);
+		LOGGER.info("LAS version is " + reader.getVersion() + ", point format is " + reader.getPointFormat() + " and there's " + reader.getPointCount()
+				+ " points");
+		return reader;
+	}
+
+	private int[] parseClassifications() {
+		if (this.classifications == null || this.classifications.trim().isEmpty()) {
+			return null;
+		}
+		String[] values = this.classifications.split(",");
+		int[] result = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = Integer.parseInt(values[i].trim());
+		}
+		return result;
+	}
+
 }
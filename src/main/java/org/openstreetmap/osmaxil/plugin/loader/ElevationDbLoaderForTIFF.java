@@ -4,32 +4,40 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 
+import org.openstreetmap.osmaxil.util.GeoTiffPointCloudReader;
+import org.openstreetmap.osmaxil.util.PointCloudReader;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Service;
 
+/**
+ * Load the GeoTIFF files of a folder. Files are decoded in process (see {@link GeoTiffPointCloudReader}) and their pixels are streamed to the
+ * database as points, so there's neither external program nor intermediate XYZ file.
+ */
 @Service("ElevationDbLoaderForTIFF")
 @Lazy
 @Scope("prototype")
 public class ElevationDbLoaderForTIFF extends AbstractElevationDbLoader {
 
-	protected void loadData(String source) throws IOException {
+	@Override
+	protected long loadFile(String tableName, File file) throws IOException {
+		LOGGER.info("Loading file " + file);
+		return this.copyPointCloudFromReader(tableName, this.openPointCloud(file));
+	}
+
+	@Override
+	protected File[] getSourceFiles() {
 		File folder = new File(this.folderPath);
-		File[] files = folder.listFiles(new FilenameFilter() {
+		return folder.listFiles(new FilenameFilter() {
 			public boolean accept(File dir, String name) {
 				return name.toLowerCase().endsWith(".tiff") || name.toLowerCase().endsWith(".tif");
 			}
 		});
-		for (int i = 0; i < files.length; i++) {
-			File file = files[i];
-			LOGGER.info("Converting " + file + " to the XYZ format");
-			String xyzFilePath = file.getParentFile().getAbsolutePath() + File.separator + file.getName().substring(0, file.getName().length() - 4)
-					+ ".xyz";
-			String cmd = "gdal_translate.exe -of XYZ " + file.getAbsolutePath() + " " + xyzFilePath;
-			executeCommand(cmd);
-			LOGGER.info("Loading " + xyzFilePath);
-			this.copyPointCloudFromXYZFile(source, xyzFilePath);
-		}
+	}
+
+	@Override
+	protected PointCloudReader openPointCloud(File file) throws IOException {
+		return new GeoTiffPointCloudReader(file);
 	}
 
 }
@@ -2,7 +2,10 @@ package org.openstreetmap.osmaxil.plugin.loader;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
 
+import org.openstreetmap.osmaxil.util.PointCloudReader;
+import org.openstreetmap.osmaxil.util.XyzReader;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Service;
@@ -12,18 +15,25 @@ import org.springframework.stereotype.Service;
 @Scope("prototype")
 public class ElevationDbLoaderForXYZ extends AbstractElevationDbLoader {
 
-	protected void loadData(String source) {
+	@Override
+	protected long loadFile(String tableName, File xyzFile) {
+		LOGGER.info("Loading file " + xyzFile);
+		return this.copyPointCloudFromXYZFile(tableName, xyzFile.getAbsolutePath());
+	}
+
+	@Override
+	protected File[] getSourceFiles() {
 		File xyzFolder = new File(this.folderPath);
-		File[] xyzFiles = xyzFolder.listFiles(new FilenameFilter() {
+		return xyzFolder.listFiles(new FilenameFilter() {
 			public boolean accept(File dir, String name) {
 				return name.toLowerCase().endsWith(".xyz");
 			}
 		});
-		for (int i = 0; i < xyzFiles.length; i++) {
-			File xyzFile = xyzFiles[i];
-			LOGGER.info("Loading file " + xyzFile);
-			this.copyPointCloudFromXYZFile(source, xyzFile.getAbsolutePath());
-		}
+	}
+
+	@Override
+	protected PointCloudReader openPointCloud(File file) throws IOException {
+		return new XyzReader(file, this.separator);
 	}
 
 }
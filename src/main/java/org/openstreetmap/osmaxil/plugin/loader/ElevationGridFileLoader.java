@@ -0,0 +1,182 @@
+package org.openstreetmap.osmaxil.plugin.loader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.openstreetmap.osmaxil.Application;
+import org.openstreetmap.osmaxil.dao.ElevationGridFile;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Service;
+
+/**
+ * Build a grid file (see {@link ElevationGridFile}) from the XYZ files of a folder.
+ */
+@Service("ElevationGridFileLoader")
+@Lazy
+@Scope("prototype")
+public class ElevationGridFileLoader {
+
+	@Value("${loader.folderPath}")
+	protected String folderPath;
+
+	@Value("${loader.separator}")
+	protected String separator;
+
+	@Value("${loader.srid}")
+	protected String srid;
+
+	@Value("${loader.grid.cellSize:10}")
+	protected double cellSize;
+
+	static protected final Logger LOGGER = Logger.getLogger(Application.class);
+
+	public void load(ElevationGridFile grid, String filePath) throws IOException {
+		if (new File(filePath).exists()) {
+			LOGGER.info("A grid file named " + filePath + " already exists, skip loading...");
+			return;
+		}
+		if (Integer.parseInt(this.srid) != grid.getSrid()) {
+			throw new IOException("SRID of the XYZ files (" + this.srid + ") must be the same than the SRID of the grid (" + grid.getSrid() + ")");
+		}
+		File tmpFile = new File(filePath + ".tmp");
+		try {
+			LOGGER.info("Create the grid file from scratch.");
+			this.writeGridFile(filePath, grid.getSrid(), tmpFile);
+		} finally {
+			tmpFile.delete();
+		}
+		grid.init(filePath, grid.getSrid());
+	}
+
+	/**
+	 * Build the grid file in 3 passes: points of the XYZ files are first copied into a temporary binary file (and their envelope is computed), then
+	 * the points of each cell are counted in order to build the index, and finally each point is written at its place.
+	 */
+	protected void writeGridFile(String filePath, int gridSrid, File tmpFile) throws IOException {
+		// Pass 1: parse the XYZ files
+		double xMin = Double.MAX_VALUE, yMin = Double.MAX_VALUE, xMax = -Double.MAX_VALUE, yMax = -Double.MAX_VALUE;
+		long pointCount = 0;
+		Pattern splitter = Pattern.compile(Pattern.quote(this.separator) + "+");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 20))) {
+			for (File xyzFile : this.getXYZFiles()) {
+				LOGGER.info("Reading file " + xyzFile);
+				try (BufferedReader reader = new BufferedReader(new FileReader(xyzFile), 1 << 20)) {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						String[] values = splitter.split(line.trim());
+						if (values.length < 3) {
+							continue;
+						}
+						double x = Double.parseDouble(values[0]);
+						double y = Double.parseDouble(values[1]);
+						out.writeDouble(x);
+						out.writeDouble(y);
+						out.writeFloat(Float.parseFloat(values[2]));
+						xMin = Math.min(xMin, x);
+						yMin = Math.min(yMin, y);
+						xMax = Math.max(xMax, x);
+						yMax = Math.max(yMax, y);
+						pointCount++;
+					}
+				}
+			}
+		}
+		if (pointCount == 0) {
+			throw new IOException("No point has been found in " + this.folderPath);
+		}
+		int columnCount = (int) Math.floor((xMax - xMin) / this.cellSize) + 1;
+		int rowCount = (int) Math.floor((yMax - yMin) / this.cellSize) + 1;
+		if (ElevationGridFile.getIndexSize(columnCount, rowCount) > Integer.MAX_VALUE) {
+			throw new IOException("Too many cells (" + columnCount + "x" + rowCount + "), the cell size must be increased");
+		}
+		LOGGER.info("Grid will have " + columnCount + "x" + rowCount + " cells and " + pointCount + " points");
+		// Pass 2: count the points of each cell and compute the index
+		long[] cellStarts = new long[columnCount * rowCount + 1];
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tmpFile), 1 << 20))) {
+			for (long i = 0; i < pointCount; i++) {
+				double x = in.readDouble();
+				double y = in.readDouble();
+				in.readFloat();
+				cellStarts[this.getCell(x, y, xMin, yMin, columnCount) + 1]++;
+			}
+		}
+		for (int i = 1; i < cellStarts.length; i++) {
+			cellStarts[i] += cellStarts[i - 1];
+		}
+		// Pass 3: write the header, the index and the points
+		try (RandomAccessFile file = new RandomAccessFile(filePath, "rw"); FileChannel channel = file.getChannel()) {
+			long pointsPosition = ElevationGridFile.getPointsPosition(columnCount, rowCount);
+			file.setLength(pointsPosition + pointCount * ElevationGridFile.POINT_SIZE);
+			MappedByteBuffer header = channel.map(MapMode.READ_WRITE, 0, ElevationGridFile.HEADER_SIZE);
+			header.putInt(0, ElevationGridFile.MAGIC);
+			header.putInt(4, ElevationGridFile.VERSION);
+			header.putInt(8, gridSrid);
+			header.putInt(12, columnCount);
+			header.putInt(16, rowCount);
+			header.putDouble(20, xMin);
+			header.putDouble(28, yMin);
+			header.putDouble(36, this.cellSize);
+			header.putLong(44, pointCount);
+			MappedByteBuffer index = channel.map(MapMode.READ_WRITE, ElevationGridFile.HEADER_SIZE,
+					ElevationGridFile.getIndexSize(columnCount, rowCount));
+			for (int i = 0; i < cellStarts.length; i++) {
+				index.putLong(8 * i, cellStarts[i]);
+			}
+			MappedByteBuffer[] segments = ElevationGridFile.mapSegments(channel, MapMode.READ_WRITE, pointsPosition, pointCount);
+			// Reuse the index as the cursors of the cells
+			long[] cursors = cellStarts;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tmpFile), 1 << 20))) {
+				for (long i = 0; i < pointCount; i++) {
+					double x = in.readDouble();
+					double y = in.readDouble();
+					float z = in.readFloat();
+					long p = cursors[this.getCell(x, y, xMin, yMin, columnCount)]++;
+					MappedByteBuffer segment = segments[(int) (p / ElevationGridFile.POINTS_BY_SEGMENT)];
+					int offset = (int) (p % ElevationGridFile.POINTS_BY_SEGMENT) * ElevationGridFile.POINT_SIZE;
+					segment.putFloat(offset, (float) (x - xMin));
+					segment.putFloat(offset + 4, (float) (y - yMin));
+					segment.putFloat(offset + 8, z);
+				}
+			}
+			for (MappedByteBuffer segment : segments) {
+				segment.force();
+			}
+			header.force();
+			index.force();
+		}
+		LOGGER.info("Grid file " + filePath + " has been created");
+	}
+
+	private int getCell(double x, double y, double xMin, double yMin, int columnCount) {
+		int column = (int) Math.floor((x - xMin) / this.cellSize);
+		int row = (int) Math.floor((y - yMin) / this.cellSize);
+		return row * columnCount + column;
+	}
+
+	private File[] getXYZFiles() {
+		File xyzFolder = new File(this.folderPath);
+		return xyzFolder.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.toLowerCase().endsWith(".xyz");
+			}
+		});
+	}
+
+}
@@ -0,0 +1,295 @@
+package org.openstreetmap.osmaxil.plugin.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.openstreetmap.osmaxil.util.PointCloudReader;
+import org.openstreetmap.osmaxil.util.Quantization;
+
+/**
+ * Input stream which encodes on the fly the points of a reader for a COPY FROM STDIN statement, so a point cloud can be sent to the database without
+ * any intermediate file.
+ *
+ * Two formats are available:
+ * <ul>
+ * <li>text: x, y and z separated by tabs</li>
+ * <li>binary: x, y and z as numeric plus the geometry as EWKB, so the server has neither text to parse nor geometry to build</li>
+ * <li>quantized binary: same as binary but x, y and z are quantized as int4 (see {@link Quantization}) and the geometry is a 2D point</li>
+ * </ul>
+ */
+public class PointCloudCopyStream extends InputStream {
+
+	static public final int BATCH_SIZE = 65536;
+
+	// In text format a point is 3 values of 20 characters at most
+	static private final int MAX_TEXT_POINT_SIZE = 3 * 21;
+
+	// In binary format a point is a field count, 3 numeric values (with their length) and a geometry (with its length)
+	static private final int MAX_BINARY_POINT_SIZE = 2 + 3 * (4 + 8 + 2 * 8) + 4 + 33;
+
+	static private final byte[] BINARY_SIGNATURE = { 'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0 };
+
+	// EWKB type of a point with Z and SRID
+	static private final int EWKB_POINT_Z_WITH_SRID = 1 | 0x80000000 | 0x20000000;
+
+	// EWKB type of a point with SRID (z is only in its column when the coordinates are quantized)
+	static private final int EWKB_POINT_WITH_SRID = 1 | 0x20000000;
+
+	private PointCloudReader reader;
+
+	private boolean binary;
+
+	private int srid;
+
+	private Quantization quantization;
+
+	private double[] x = new double[BATCH_SIZE], y = new double[BATCH_SIZE], z = new double[BATCH_SIZE];
+
+	private byte[] buffer;
+
+	// Digits in base 10000 of the integer part of a numeric value
+	private short[] digits = new short[6];
+
+	private int position, limit;
+
+	private boolean started, finished;
+
+	private long counterForPoints;
+
+	/**
+	 * Create a stream in text format.
+	 */
+	public PointCloudCopyStream(PointCloudReader reader) {
+		this.reader = reader;
+		this.buffer = new byte[BATCH_SIZE * MAX_TEXT_POINT_SIZE];
+	}
+
+	/**
+	 * Create a stream in binary format, the geometries are built with the specified SRID (the coordinates must be already in that SRID).
+	 */
+	public PointCloudCopyStream(PointCloudReader reader, int srid) {
+		this.reader = reader;
+		this.binary = true;
+		this.srid = srid;
+		this.buffer = new byte[BATCH_SIZE * MAX_BINARY_POINT_SIZE + BINARY_SIGNATURE.length + 8];
+	}
+
+	/**
+	 * Create a stream in quantized binary format, the coordinates are quantized with the specified quantization (a quantized point is smaller than
+	 * a binary point so the buffer is the same).
+	 */
+	public PointCloudCopyStream(PointCloudReader reader, int srid, Quantization quantization) {
+		this(reader, srid);
+		this.quantization = quantization;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!this.fill()) {
+			return -1;
+		}
+		return this.buffer[this.position++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!this.fill()) {
+			return -1;
+		}
+		int count = Math.min(len, this.limit - this.position);
+		System.arraycopy(this.buffer, this.position, b, off, count);
+		this.position += count;
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.reader.close();
+	}
+
+	public long getCounterForPoints() {
+		return counterForPoints;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Private methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Encode the next batch of points if the buffer has been fully read, returns false at the end of the stream.
+	 */
+	private boolean fill() throws IOException {
+		while (this.position >= this.limit) {
+			if (this.finished) {
+				return false;
+			}
+			this.position = 0;
+			this.limit = 0;
+			if (this.binary && !this.started) {
+				// Header: signature, flags and length of the header extension
+				System.arraycopy(BINARY_SIGNATURE, 0, this.buffer, 0, BINARY_SIGNATURE.length);
+				this.limit = BINARY_SIGNATURE.length;
+				this.putInt(0);
+				this.putInt(0);
+			}
+			this.started = true;
+			int count = this.reader.read(this.x, this.y, this.z);
+			if (count < 0) {
+				this.finished = true;
+				if (this.binary) {
+					// Trailer
+					this.putShort(-1);
+				}
+				continue;
+			}
+			for (int i = 0; i < count; i++) {
+				if (this.quantization != null) {
+					this.appendQuantized(this.x[i], this.y[i], this.z[i]);
+				} else if (this.binary) {
+					this.appendBinary(this.x[i], this.y[i], this.z[i]);
+				} else {
+					this.appendText(this.x[i]);
+					this.buffer[this.limit++] = '\t';
+					this.appendText(this.y[i]);
+					this.buffer[this.limit++] = '\t';
+					this.appendText(this.z[i]);
+					this.buffer[this.limit++] = '\n';
+				}
+			}
+			this.counterForPoints += count;
+		}
+		return true;
+	}
+
+	/**
+	 * Append a value with 3 decimals (which is the precision of the columns of the point cloud tables), without the cost of a String.
+	 */
+	private void appendText(double value) {
+		long thousandths = Math.round(value * 1000);
+		if (thousandths < 0) {
+			this.buffer[this.limit++] = '-';
+			thousandths = -thousandths;
+		}
+		long integerPart = thousandths / 1000;
+		int start = this.limit;
+		do {
+			this.buffer[this.limit++] = (byte) ('0' + integerPart % 10);
+			integerPart /= 10;
+		} while (integerPart > 0);
+		// Digits have been written from the lowest one
+		for (int i = start, j = this.limit - 1; i < j; i++, j--) {
+			byte tmp = this.buffer[i];
+			this.buffer[i] = this.buffer[j];
+			this.buffer[j] = tmp;
+		}
+		int decimals = (int) (thousandths % 1000);
+		this.buffer[this.limit++] = '.';
+		this.buffer[this.limit++] = (byte) ('0' + decimals / 100);
+		this.buffer[this.limit++] = (byte) ('0' + decimals / 10 % 10);
+		this.buffer[this.limit++] = (byte) ('0' + decimals % 10);
+	}
+
+	/**
+	 * Append a tuple (x, y, z, geom) in the binary format of COPY.
+	 */
+	private void appendBinary(double x, double y, double z) {
+		this.putShort(4);
+		this.appendNumeric(x);
+		this.appendNumeric(y);
+		this.appendNumeric(z);
+		this.putInt(33);
+		// EWKB is written in big endian (like the rest of the binary format)
+		this.buffer[this.limit++] = 0;
+		this.putInt(EWKB_POINT_Z_WITH_SRID);
+		this.putInt(this.srid);
+		this.putLong(Double.doubleToLongBits(x));
+		this.putLong(Double.doubleToLongBits(y));
+		this.putLong(Double.doubleToLongBits(z));
+	}
+
+	/**
+	 * Append a tuple (x, y, z, geom) in the binary format of COPY with quantized coordinates. The geometry is built from the dequantized coordinates
+	 * so it's exactly the point which is stored in the columns.
+	 */
+	private void appendQuantized(double x, double y, double z) throws IOException {
+		long qx = this.quantization.quantizeX(x), qy = this.quantization.quantizeY(y), qz = this.quantization.quantizeZ(z);
+		if (!Quantization.isInRange(qx) || !Quantization.isInRange(qy) || !Quantization.isInRange(qz)) {
+			throw new IOException("Point (" + x + ", " + y + ", " + z + ") cannot be quantized as int4, check the offsets and the precision");
+		}
+		this.putShort(4);
+		this.putInt(4);
+		this.putInt((int) qx);
+		this.putInt(4);
+		this.putInt((int) qy);
+		this.putInt(4);
+		this.putInt((int) qz);
+		this.putInt(25);
+		this.buffer[this.limit++] = 0;
+		this.putInt(EWKB_POINT_WITH_SRID);
+		this.putInt(this.srid);
+		this.putLong(Double.doubleToLongBits(this.quantization.dequantizeX(qx)));
+		this.putLong(Double.doubleToLongBits(this.quantization.dequantizeY(qy)));
+	}
+
+	/**
+	 * Append a numeric value with 3 decimals. In binary format a numeric is made of its number of digits, its weight, its sign, its display scale and
+	 * its digits in base 10000 (most significant first, the weight is the power of 10000 of the first one).
+	 */
+	private void appendNumeric(double value) {
+		long thousandths = Math.round(value * 1000);
+		boolean negative = thousandths < 0;
+		thousandths = Math.abs(thousandths);
+		long integerPart = thousandths / 1000;
+		int fractionalDigit = (int) (thousandths % 1000) * 10;
+		// Compute the digits in base 10000 of the integer part (lowest first)
+		int integerDigitCount = 0;
+		while (integerPart > 0) {
+			this.digits[integerDigitCount++] = (short) (integerPart % 10000);
+			integerPart /= 10000;
+		}
+		// Leading and trailing zero digits are not written
+		int weight = integerDigitCount - 1;
+		int first = integerDigitCount - 1, last = 0;
+		while (last < integerDigitCount && this.digits[last] == 0 && fractionalDigit == 0) {
+			last++;
+		}
+		int digitCount = (first >= last ? first - last + 1 : 0) + (fractionalDigit != 0 ? 1 : 0);
+		if (digitCount == 0) {
+			weight = 0;
+		} else if (integerDigitCount == 0) {
+			weight = -1;
+		}
+		this.putInt(8 + 2 * digitCount);
+		this.putShort(digitCount);
+		this.putShort(weight);
+		this.putShort(negative && digitCount > 0 ? 0x4000 : 0);
+		this.putShort(3);
+		for (int i = first; i >= last; i--) {
+			this.putShort(this.digits[i]);
+		}
+		if (fractionalDigit != 0) {
+			this.putShort(fractionalDigit);
+		}
+	}
+
+	private void putShort(int value) {
+		this.buffer[this.limit++] = (byte) (value >>> 8);
+		this.buffer[this.limit++] = (byte) value;
+	}
+
+	private void putInt(int value) {
+		this.buffer[this.limit++] = (byte) (value >>> 24);
+		this.buffer[this.limit++] = (byte) (value >>> 16);
+		this.buffer[this.limit++] = (byte) (value >>> 8);
+		this.buffer[this.limit++] = (byte) value;
+	}
+
+	private void putLong(long value) {
+		this.putInt((int) (value >>> 32));
+		this.putInt((int) value);
+	}
+
+}
@@ -1,10 +1,13 @@
 package org.openstreetmap.osmaxil.plugin.matcher;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.openstreetmap.osmaxil.Application;
 import org.openstreetmap.osmaxil.dao.OsmPostgisDB;
+import org.openstreetmap.osmaxil.dao.OsmSnapshot;
 import org.openstreetmap.osmaxil.model.AbstractImport;
 import org.openstreetmap.osmaxil.model.misc.MatchingElementId;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -15,6 +18,12 @@ public abstract class AbstractImportMatcher<IMPORT extends AbstractImport> {
 	@Autowired
 	protected OsmPostgisDB osmPostgis;
 
+	/**
+	 * Elements can be found in a snapshot of the OSM database instead of querying it for each import (if the snapshot is enabled).
+	 */
+	@Autowired
+	protected OsmSnapshot osmSnapshot;
+
 	@Value("${matcher.useSurface}")
 	protected boolean useSurface;
 
@@ -22,6 +31,18 @@ public abstract class AbstractImportMatcher<IMPORT extends AbstractImport> {
 
 	abstract public List<MatchingElementId> findMatchingElements(IMPORT imp, int srid);
 
+	/**
+	 * Same as above but for several imports at once, returns the matching elements by import ID (imports without matching element can be missing).
+	 * By default imports are matched one by one, matchers should override it in order to match all the imports with a few queries.
+	 */
+	public Map<Long, List<MatchingElementId>> findMatchingElements(List<IMPORT> imports, int srid) {
+		Map<Long, List<MatchingElementId>> result = new HashMap<>();
+		for (IMPORT imp : imports) {
+			result.put(imp.getId(), this.findMatchingElements(imp, srid));
+		}
+		return result;
+	}
+
 	public abstract float computeMatchingImportScore(IMPORT imp);
 
 }
@@ -1,7 +1,9 @@
 package org.openstreetmap.osmaxil.plugin.matcher;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.openstreetmap.osmaxil.flow.AbstractUpdaterFlow;
 import org.openstreetmap.osmaxil.model.BuildingElement;
@@ -10,13 +12,20 @@ import org.openstreetmap.osmaxil.model.misc.MatchingElementId;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+
 @Component
 @Lazy
 public class BuildingImportMatcher extends AbstractImportMatcher<BuildingImport> {
 
+	private GeometryFactory geometryFactory = new GeometryFactory();
+
 	@Override
 	public List<MatchingElementId> findMatchingElements(BuildingImport imp, int srid) {
-		List<MatchingElementId> result = new ArrayList<MatchingElementId>();
 		Long[] ids = new Long[0];
 		// Find in PostGIS all buildings matching (ie. containing) the import
 		BuildingImport building = (BuildingImport) imp;
@@ -27,28 +36,46 @@ public class BuildingImportMatcher extends AbstractImportMatcher<BuildingImport>
 		} else {
 			LOGGER.error("Unable to find building because there's no coordinates neither geometry");
 		}
-		// Parsing the IDs to check if they refers to normal elements (ie. ways) or relations
-		StringBuffer sb = new StringBuffer("OSM IDs of matching buildings : [ ");
-		for (int i = 0; i < ids.length; i++) {
-			MatchingElementId relevantElement = new MatchingElementId();
-			// If ID is positive it means it's a normal element (ie. a way)
-			if (ids[i] > 0) {
-				relevantElement.setOsmId(ids[i]);
-				relevantElement.setRelationId(-1);
-			}
-			// If ID is negative it means it's a multipolygon relations => need to find its relevant outer member
-			else {
-				LOGGER.debug("A multipolygon relation has been found (" + ids[i] + "), looking for its relevant outer member");
-				long relationId = -ids[i];
-				String membersString = osmPostgis.getRelationMembers(relationId);
-				// TODO Take in account all outer members and not the first one only
-				relevantElement.setOsmId(BuildingElement.getOuterOrInnerMemberIds(relationId, membersString, true).get(0));
-				relevantElement.setRelationId(relationId);
+		return this.createMatchingElementIds(ids);
+	}
+
+	/**
+	 * Buildings of the imports are found with two queries by chunk of imports: one for the imports with a geometry (buildings which intersect it)
+	 * and one for the imports with coordinates only (buildings which contain them).
+	 */
+	@Override
+	public Map<Long, List<MatchingElementId>> findMatchingElements(List<BuildingImport> imports, int srid) {
+		Map<Long, List<MatchingElementId>> result = new HashMap<>();
+		List<BuildingImport> importsWithGeometry = new ArrayList<>();
+		List<Geometry> geometries = new ArrayList<>();
+		List<BuildingImport> importsWithCoordinates = new ArrayList<>();
+		List<Geometry> points = new ArrayList<>();
+		WKTReader reader = new WKTReader(this.geometryFactory);
+		for (BuildingImport building : imports) {
+			if (building.getGeometryAsWKT() != null) {
+				try {
+					geometries.add(reader.read(building.getGeometryAsWKT()));
+					importsWithGeometry.add(building);
+				} catch (ParseException e) {
+					LOGGER.error("Unable to parse geometry of the import " + building.getId() + ": " + e.getMessage());
+				}
+			} else if (building.getLatitude() != null && building.getLongitude() != null) {
+				points.add(this.geometryFactory.createPoint(new Coordinate(building.getLongitude(), building.getLatitude())));
+				importsWithCoordinates.add(building);
+			} else {
+				LOGGER.error("Unable to find building of the import " + building.getId() + " because there's no coordinates neither geometry");
 			}
-			result.add(relevantElement);
-			sb.append(ids[i] + " ");
 		}
-		LOGGER.info(sb.toString() + "]");
+		LOGGER.info("Looking for the buildings of " + importsWithGeometry.size() + " imports with geometry and " + importsWithCoordinates.size()
+				+ " imports with coordinates");
+		if (this.osmSnapshot.isUsable(srid)) {
+			this.addMatchingElementIds(importsWithGeometry, this.osmSnapshot.findBuildingIdsByGeometries(geometries, srid, false), result);
+			this.addMatchingElementIds(importsWithCoordinates, this.osmSnapshot.findBuildingIdsByGeometries(points, srid, true), result);
+		} else {
+			this.addMatchingElementIds(importsWithGeometry, this.osmPostgis.findBuildingIdsByGeometries(geometries, srid, false), result);
+			this.addMatchingElementIds(importsWithCoordinates, this.osmPostgis.findBuildingIdsByGeometries(points, srid, true), result);
+		}
+		LOGGER.info(result.size() + " of " + imports.size() + " imports have matching buildings");
 		return result;
 	}
 
@@ -113,6 +140,40 @@ public class BuildingImportMatcher extends AbstractImportMatcher<BuildingImport>
 	// Private methods
 	///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
+	private void addMatchingElementIds(List<BuildingImport> imports, Map<Integer, List<Long>> idsByIndex, Map<Long, List<MatchingElementId>> result) {
+		for (Map.Entry<Integer, List<Long>> entry : idsByIndex.entrySet()) {
+			BuildingImport building = imports.get(entry.getKey());
+			result.put(building.getId(), this.createMatchingElementIds(entry.getValue().toArray(new Long[entry.getValue().size()])));
+		}
+	}
+
+	private List<MatchingElementId> createMatchingElementIds(Long[] ids) {
+		List<MatchingElementId> result = new ArrayList<MatchingElementId>();
+		// Parsing the IDs to check if they refers to normal elements (ie. ways) or relations
+		StringBuffer sb = new StringBuffer("OSM IDs of matching buildings : [ ");
+		for (int i = 0; i < ids.length; i++) {
+			MatchingElementId relevantElement = new MatchingElementId();
+			// If ID is positive it means it's a normal element (ie. a way)
+			if (ids[i] > 0) {
+				relevantElement.setOsmId(ids[i]);
+				relevantElement.setRelationId(-1);
+			}
+			// If ID is negative it means it's a multipolygon relations => need to find its relevant outer member
+			else {
+				LOGGER.debug("A multipolygon relation has been found (" + ids[i] + "), looking for its relevant outer member");
+				long relationId = -ids[i];
+				String membersString = osmPostgis.getRelationMembers(relationId);
+				// TODO Take in account all outer members and not the first one only
+				relevantElement.setOsmId(BuildingElement.getOuterOrInnerMemberIds(relationId, membersString, true).get(0));
+				relevantElement.setRelationId(relationId);
+			}
+			result.add(relevantElement);
+			sb.append(ids[i] + " ");
+		}
+		LOGGER.info(sb.toString() + "]");
+		return result;
+	}
+
 	private int computeBuildingArea(BuildingElement element) {
 		// If the related element belongs to a relation, consider it instead of the element itself (osm2pgsql doesn't store relation members)
 		long elementId = element.getOsmId();
@@ -127,26 +188,27 @@ public class BuildingImportMatcher extends AbstractImportMatcher<BuildingImport>
 	}
 
 	private Long[] findBuildingIDsByGeometry(String geometry, int srid) {
-		String geom = "ST_GeomFromText('" + geometry + "', " + srid + ")";
-		// Transform geometry if it's needed
-		if (srid != this.osmPostgis.getSrid()) {
-			geom = "ST_Transform(" + geom + ", " + this.osmPostgis.getSrid() + ")";
+		try {
+			// Readers are not thread safe
+			Geometry geom = new WKTReader(this.geometryFactory).read(geometry);
+			if (this.osmSnapshot.isUsable(srid)) {
+				List<Long> ids = this.osmSnapshot.findBuildingIds(geom, srid, false);
+				return ids.toArray(new Long[ids.size()]);
+			}
+			return this.osmPostgis.findBuildingIdsByGeometry(geom, srid);
+		} catch (ParseException e) {
+			LOGGER.error("Unable to parse geometry of the import: " + e.getMessage());
+			return new Long[0];
 		}
-		String query = "select osm_id, 1 from planet_osm_polygon where building <> '' and  ST_Intersects(way, " + geom + ");";
-		LOGGER.debug("Looking in PostGIS for buildings containing geometry: " + query);
-		return this.osmPostgis.findElementIdsByQuery(query);
 	}
 
 	private Long[] findBuildingIDsByLatLon(double lon, double lat, int srid) {
-		String geom = "ST_GeomFromText('POINT(" + lon + " " + lat + ")', " + srid + ")";
-		// Transform geometry if it's needed
-		if (srid != this.osmPostgis.getSrid()) {
-			geom = "ST_Transform(" + geom + ", " + this.osmPostgis.getSrid() + ")";
+		Geometry point = this.geometryFactory.createPoint(new Coordinate(lon, lat));
+		if (this.osmSnapshot.isUsable(srid)) {
+			List<Long> ids = this.osmSnapshot.findBuildingIds(point, srid, true);
+			return ids.toArray(new Long[ids.size()]);
 		}
-		// List<Long> result = new ArrayList<Long>();
-		String query = "select osm_id, 1 from planet_osm_polygon where building <> '' and  ST_Contains(way, " + geom + ");";
-		LOGGER.debug("Looking in PostGIS for buildings containing coords: " + query);
-		return this.osmPostgis.findElementIdsByQuery(query);
+		return this.osmPostgis.findBuildingIdsContainingGeometry(point, srid);
 	}
 
 	///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
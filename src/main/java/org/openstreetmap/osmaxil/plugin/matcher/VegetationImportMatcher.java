@@ -1,7 +1,10 @@
 package org.openstreetmap.osmaxil.plugin.matcher;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.openstreetmap.osmaxil.dao.OsmPostgisDB;
 import org.openstreetmap.osmaxil.model.VegetationImport;
@@ -11,9 +14,8 @@ import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.Point;
-import com.vividsolutions.jts.io.WKTWriter;
 
 @Component("VegetationImportMatcher")
 @Lazy
@@ -30,35 +32,38 @@ public class VegetationImportMatcher extends AbstractImportMatcher<VegetationImp
 
 	private GeometryFactory gf = new GeometryFactory();
 
-	private WKTWriter ww = new WKTWriter();
-
 	@Override
 	public List<MatchingElementId> findMatchingElements(VegetationImport tree, int srid) {
-		List<MatchingElementId> results = new ArrayList<>();
-		String query = "SELECT osm_id, ST_Distance(way, ";
-		Point point = gf.createPoint(new Coordinate(tree.getLongitude(), tree.getLatitude()));
-		String wkt = ww.write(point);
-		String treeGeometry = "ST_GeomFromText('" + wkt + "', " + this.osmPostgis.getSrid() + ")";
-		// Transform coordinates of the tree if it's needed
-		if (srid != this.osmPostgis.getSrid()) {
-			treeGeometry = "ST_Transform(ST_GeomFromText('" + wkt + "', " + srid + "), " + this.osmPostgis.getSrid() + ")";
+		return this.findMatchingElements(Collections.singletonList(tree), srid).get(tree.getId());
+	}
+
+	/**
+	 * Existing trees are found by a KNN search inside the matching area of each imported tree, with one query by chunk of imported trees. If only
+	 * the closest tree is matched the search is limited to one tree, so the other ones are not even fetched. Returns a list for each imported tree
+	 * (empty if it has no matching tree), matching trees are sorted by distance.
+	 */
+	@Override
+	public Map<Long, List<MatchingElementId>> findMatchingElements(List<VegetationImport> trees, int srid) {
+		Map<Long, List<MatchingElementId>> results = new HashMap<>();
+		List<Geometry> points = new ArrayList<>();
+		for (VegetationImport tree : trees) {
+			points.add(gf.createPoint(new Coordinate(tree.getLongitude(), tree.getLatitude())));
+			results.put(tree.getId(), new ArrayList<MatchingElementId>());
+		}
+		// Perform the PostGIS query or look in the snapshot (coordinates of the trees are transformed if it's needed)
+		Map<Integer, List<OsmPostgisDB.IdWithDouble>> oldTreeIdsWithScoreByIndex;
+		if (this.osmSnapshot.isUsable(srid)) {
+			oldTreeIdsWithScoreByIndex = this.osmSnapshot.findTreeIdsWithDistanceByGeometries(points, srid, this.matchingAreaRadius,
+					this.matchClosestOnly ? 1 : 0);
+		} else {
+			oldTreeIdsWithScoreByIndex = this.osmPostgis.findTreeIdsWithDistanceByGeometries(points, srid, this.matchingAreaRadius,
+					this.matchClosestOnly ? 1 : 0);
 		}
-		query += treeGeometry + ") AS score ";
-		query += "FROM planet_osm_point n WHERE n.natural = 'tree' AND way && ";
-		String boxGeometry = "St_Buffer(ST_Transform(ST_GeomFromText('" + wkt + "', " + srid + "), " + this.osmPostgis.getSrid() + "), "
-				+ this.matchingAreaRadius + ") ";
-		query += boxGeometry;
-		query += "ORDER BY score;";
-		// Perform the PostGIS query
-		OsmPostgisDB.IdWithDouble[] oldTreeIdsWithScore = this.osmPostgis.findElementIdsWithDoubleByQuery(query);
 		// Manage matching trees
-		if (oldTreeIdsWithScore.length > 0) {
-			if (matchClosestOnly) {
-				results.add(createMatchingElementId(oldTreeIdsWithScore[0]));
-			} else {
-				for (int i = 0; i < oldTreeIdsWithScore.length; i++) {
-					results.add(createMatchingElementId(oldTreeIdsWithScore[i]));
-				}
+		for (Map.Entry<Integer, List<OsmPostgisDB.IdWithDouble>> entry : oldTreeIdsWithScoreByIndex.entrySet()) {
+			List<MatchingElementId> matchingElementIds = results.get(trees.get(entry.getKey()).getId());
+			for (OsmPostgisDB.IdWithDouble oldTreeIdWithScore : entry.getValue()) {
+				matchingElementIds.add(createMatchingElementId(oldTreeIdWithScore));
 			}
 		}
 		return results;
@@ -0,0 +1,73 @@
+package org.openstreetmap.osmaxil.util;
+
+import java.util.Arrays;
+
+/**
+ * Cumulative distribution of a set of elevations: values are sorted once, then the number of values above any threshold is found by a binary search
+ * (instead of a scan of all the values for each threshold).
+ *
+ * Comparisons are done on the float values exactly like a plain scan would do them (NaN values are never counted).
+ */
+public class ElevationHistogram {
+
+	private float[] values;
+
+	// Number of values which are not NaN (they are at the beginning of the sorted array)
+	private int count;
+
+	private int total;
+
+	public ElevationHistogram(float[] values) {
+		this(values, values.length);
+	}
+
+	/**
+	 * Build the histogram of the first values of the specified array (the array is not modified).
+	 */
+	public ElevationHistogram(float[] values, int length) {
+		this.values = Arrays.copyOf(values, length);
+		this.total = length;
+		// NaN values are sorted after all the other values
+		Arrays.sort(this.values);
+		this.count = length;
+		while (this.count > 0 && Float.isNaN(this.values[this.count - 1])) {
+			this.count--;
+		}
+	}
+
+	/**
+	 * Returns the number of values which are greater than or equal to the threshold.
+	 */
+	public int countValuesAbove(float threshold) {
+		// No value is greater than or equal to NaN
+		if (Float.isNaN(threshold)) {
+			return 0;
+		}
+		// Find the first value which is not less than the threshold
+		int low = 0, high = this.count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (this.values[middle] < threshold) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return this.count - low;
+	}
+
+	/**
+	 * Returns the highest value, or negative infinity if there's no value (or only NaN values).
+	 */
+	public float getMaxValue() {
+		return this.count == 0 ? Float.NEGATIVE_INFINITY : this.values[this.count - 1];
+	}
+
+	/**
+	 * Returns the total number of values (including NaN values).
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+}
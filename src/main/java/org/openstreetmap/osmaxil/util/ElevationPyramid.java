@@ -0,0 +1,195 @@
+package org.openstreetmap.osmaxil.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Coarse summary of an elevation data source: the minimum and maximum elevations and the number of points of each cell of a grid, plus the same
+ * summary for coarser grids (each cell of a level covers 2x2 cells of the previous level).
+ *
+ * It allows to bound the elevations of any area from a handful of cells without reading the points of the data source. Bounds are conservative:
+ * all the cells which intersect the area are used, so the real values of the area are always inside them.
+ */
+public class ElevationPyramid {
+
+	private double xMin, yMin;
+
+	private double cellSize;
+
+	private List<int[]> sizes = new ArrayList<>();
+
+	private List<float[]> minValues = new ArrayList<>();
+
+	private List<float[]> maxValues = new ArrayList<>();
+
+	private List<long[]> counts = new ArrayList<>();
+
+	// Max number of cells used by a query (the level is chosen in consequence)
+	static private final int MAX_CELLS_BY_QUERY = 16;
+
+	// Max number of cells of the finest level
+	static private final long MAX_CELLS = 1 << 24;
+
+	/**
+	 * Create a pyramid which covers the specified envelope, the cell size is increased if the finest level would have too much cells.
+	 */
+	public ElevationPyramid(double xMin, double yMin, double xMax, double yMax, double cellSize) {
+		this.xMin = xMin;
+		this.yMin = yMin;
+		this.cellSize = cellSize;
+		while (this.getCellCount(xMin, xMax) * this.getCellCount(yMin, yMax) > MAX_CELLS) {
+			this.cellSize *= 2;
+		}
+		this.addLevel((int) this.getCellCount(xMin, xMax), (int) this.getCellCount(yMin, yMax));
+	}
+
+	/**
+	 * Add a point to the finest level (points outside the grid are ignored).
+	 */
+	public void add(double x, double y, float z) {
+		int column = (int) Math.floor((x - this.xMin) / this.cellSize);
+		int row = (int) Math.floor((y - this.yMin) / this.cellSize);
+		this.addCell(column, row, z, z, 1);
+	}
+
+	/**
+	 * Add the summary of several points to a cell of the finest level (cells outside the grid are ignored).
+	 */
+	public void addCell(int column, int row, float min, float max, long count) {
+		int[] size = this.sizes.get(0);
+		if (column < 0 || row < 0 || column >= size[0] || row >= size[1] || Float.isNaN(min) || Float.isNaN(max)) {
+			return;
+		}
+		int cell = row * size[0] + column;
+		this.minValues.get(0)[cell] = Math.min(this.minValues.get(0)[cell], min);
+		this.maxValues.get(0)[cell] = Math.max(this.maxValues.get(0)[cell], max);
+		this.counts.get(0)[cell] += count;
+	}
+
+	/**
+	 * Compute the coarser levels once all the points have been added.
+	 */
+	public void build() {
+		while (this.sizes.size() > 1) {
+			this.sizes.remove(1);
+			this.minValues.remove(1);
+			this.maxValues.remove(1);
+			this.counts.remove(1);
+		}
+		int[] size = this.sizes.get(0);
+		while (size[0] > 1 || size[1] > 1) {
+			int level = this.sizes.size() - 1;
+			this.addLevel((size[0] + 1) / 2, (size[1] + 1) / 2);
+			int[] coarserSize = this.sizes.get(level + 1);
+			for (int row = 0; row < size[1]; row++) {
+				for (int column = 0; column < size[0]; column++) {
+					int cell = row * size[0] + column;
+					int coarserCell = (row / 2) * coarserSize[0] + column / 2;
+					this.minValues.get(level + 1)[coarserCell] = Math.min(this.minValues.get(level + 1)[coarserCell], this.minValues.get(level)[cell]);
+					this.maxValues.get(level + 1)[coarserCell] = Math.max(this.maxValues.get(level + 1)[coarserCell], this.maxValues.get(level)[cell]);
+					this.counts.get(level + 1)[coarserCell] += this.counts.get(level)[cell];
+				}
+			}
+			size = coarserSize;
+		}
+	}
+
+	/**
+	 * Bound the elevations of the points inside the envelope: the minimum and the maximum are stored in the range and the number of points is
+	 * returned. The minimum is a lower bound of the real minimum, the maximum and the number of points are upper bounds of the real ones. The range
+	 * is not modified if there's no point.
+	 */
+	public long query(double minX, double minY, double maxX, double maxY, float[] range) {
+		int[] cells = this.getQueryCells(minX, minY, maxX, maxY);
+		int level = cells[4];
+		int[] size = this.sizes.get(level);
+		float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+		long count = 0;
+		for (int row = cells[1]; row <= cells[3]; row++) {
+			for (int column = cells[0]; column <= cells[2]; column++) {
+				int cell = row * size[0] + column;
+				if (this.counts.get(level)[cell] > 0) {
+					min = Math.min(min, this.minValues.get(level)[cell]);
+					max = Math.max(max, this.maxValues.get(level)[cell]);
+					count += this.counts.get(level)[cell];
+				}
+			}
+		}
+		if (count > 0) {
+			range[0] = min;
+			range[1] = max;
+		}
+		return count;
+	}
+
+	/**
+	 * Estimate the number of points inside an area of the envelope (whose size is specified), points are supposed to be evenly spread in the cells
+	 * which are used by a query of the envelope.
+	 */
+	public double estimateCount(double minX, double minY, double maxX, double maxY, double area) {
+		int[] cells = this.getQueryCells(minX, minY, maxX, maxY);
+		if (cells[0] > cells[2] || cells[1] > cells[3]) {
+			return 0;
+		}
+		int[] size = this.sizes.get(cells[4]);
+		long count = 0;
+		for (int row = cells[1]; row <= cells[3]; row++) {
+			for (int column = cells[0]; column <= cells[2]; column++) {
+				count += this.counts.get(cells[4])[row * size[0] + column];
+			}
+		}
+		double levelCellSize = this.cellSize * (1L << cells[4]);
+		double cellsArea = (cells[2] - cells[0] + 1) * (cells[3] - cells[1] + 1) * levelCellSize * levelCellSize;
+		return count * area / cellsArea;
+	}
+
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	public int getLevelCount() {
+		return this.sizes.size();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Private methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns the cells used by a query of the envelope (first column, first row, last column and last row, all clipped to the grid) and their
+	 * level, which is the finest level where the envelope covers only a few cells.
+	 */
+	private int[] getQueryCells(double minX, double minY, double maxX, double maxY) {
+		int column1 = (int) Math.floor((minX - this.xMin) / this.cellSize);
+		int row1 = (int) Math.floor((minY - this.yMin) / this.cellSize);
+		int column2 = (int) Math.floor((maxX - this.xMin) / this.cellSize);
+		int row2 = (int) Math.floor((maxY - this.yMin) / this.cellSize);
+		int level = 0;
+		while (level < this.sizes.size() - 1 && ((long) column2 - column1 + 1) * ((long) row2 - row1 + 1) > MAX_CELLS_BY_QUERY) {
+			level++;
+			column1 >>= 1;
+			row1 >>= 1;
+			column2 >>= 1;
+			row2 >>= 1;
+		}
+		int[] size = this.sizes.get(level);
+		return new int[] { Math.max(0, column1), Math.max(0, row1), Math.min(size[0] - 1, column2), Math.min(size[1] - 1, row2), level };
+	}
+
+	private long getCellCount(double min, double max) {
+		return (long) Math.floor((max - min) / this.cellSize) + 1;
+	}
+
+	private void addLevel(int columns, int rows) {
+		this.sizes.add(new int[] { columns, rows });
+		float[] min = new float[columns * rows];
+		float[] max = new float[columns * rows];
+		Arrays.fill(min, Float.POSITIVE_INFINITY);
+		Arrays.fill(max, Float.NEGATIVE_INFINITY);
+		this.minValues.add(min);
+		this.maxValues.add(max);
+		this.counts.add(new long[columns * rows]);
+	}
+
+}
@@ -0,0 +1,165 @@
+package org.openstreetmap.osmaxil.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streaming reader of the pixels of a GeoTIFF file as a point cloud: each pixel which has a value (ie. which is not nodata) is a point located at
+ * the center of the pixel (like the XYZ output of gdal_translate).
+ *
+ * The raster is decoded strip by strip by a dedicated thread, so the decoding of the next strips is overlapped with the processing of the points
+ * by the caller (typically a COPY to the database). Only a few batches are queued so the memory stays bounded whatever the size of the file.
+ */
+public class GeoTiffPointCloudReader implements PointCloudReader {
+
+	// Max number of decoded batches waiting to be read
+	static private final int QUEUE_SIZE = 4;
+
+	private GeoTiffReader reader;
+
+	private BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+	private Thread decoder;
+
+	private volatile Exception decodingError;
+
+	private Batch currentBatch;
+
+	private int position;
+
+	private boolean finished;
+
+	/**
+	 * Points of a strip of the raster.
+	 */
+	private static class Batch {
+
+		double[] x, y, z;
+
+		int size;
+
+		Batch(int capacity) {
+			this.x = new double[capacity];
+			this.y = new double[capacity];
+			this.z = new double[capacity];
+		}
+
+	}
+
+	// Empty batch which marks the end of the raster
+	static private final Batch END = new Batch(0);
+
+	public GeoTiffPointCloudReader(File file) throws IOException {
+		this.reader = new GeoTiffReader(file.getAbsolutePath());
+		this.decoder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				decode();
+			}
+		}, "GeoTIFF decoder of " + file.getName());
+		this.decoder.setDaemon(true);
+		this.decoder.start();
+	}
+
+	@Override
+	public int read(double[] x, double[] y, double[] z) throws IOException {
+		if (this.finished) {
+			return -1;
+		}
+		int count = 0;
+		while (count < x.length) {
+			if (this.currentBatch == null || this.position == this.currentBatch.size) {
+				if (count > 0 && this.queue.isEmpty()) {
+					// Return what has been read instead of waiting for the decoder
+					break;
+				}
+				this.currentBatch = this.takeBatch();
+				this.position = 0;
+				if (this.currentBatch == END) {
+					this.finished = true;
+					break;
+				}
+				continue;
+			}
+			int size = Math.min(x.length - count, this.currentBatch.size - this.position);
+			System.arraycopy(this.currentBatch.x, this.position, x, count, size);
+			System.arraycopy(this.currentBatch.y, this.position, y, count, size);
+			System.arraycopy(this.currentBatch.z, this.position, z, count, size);
+			this.position += size;
+			count += size;
+		}
+		return (count == 0 && this.finished) ? -1 : count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.decoder.interrupt();
+		try {
+			this.decoder.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while stopping the decoder of " + this.reader.getFilePath());
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Private methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	private Batch takeBatch() throws IOException {
+		Batch batch;
+		try {
+			batch = this.queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading " + this.reader.getFilePath());
+		}
+		if (batch == END && this.decodingError != null) {
+			throw new IOException("Unable to decode " + this.reader.getFilePath() + ": " + this.decodingError.getMessage(), this.decodingError);
+		}
+		return batch;
+	}
+
+	/**
+	 * Decode the raster strip by strip (a strip has the height of a block so each block is decoded once) and queue the points of each strip.
+	 */
+	private void decode() {
+		int width = this.reader.getWidth();
+		int stripHeight = this.reader.getBlockHeight();
+		Double noDataValue = this.reader.getNoDataValue();
+		float[] strip = new float[width * stripHeight];
+		try {
+			for (int row = 0; row < this.reader.getHeight(); row += stripHeight) {
+				int height = Math.min(stripHeight, this.reader.getHeight() - row);
+				this.reader.readRaster(0, row, width, height, strip);
+				Batch batch = new Batch(width * height);
+				for (int i = 0; i < width * height; i++) {
+					float value = strip[i];
+					if (Float.isNaN(value) || (noDataValue != null && value == noDataValue.floatValue())) {
+						continue;
+					}
+					batch.x[batch.size] = this.reader.getXUpperLeft() + (i % width + 0.5) * this.reader.getXPixelSize();
+					batch.y[batch.size] = this.reader.getYUpperLeft() - (row + i / width + 0.5) * this.reader.getYPixelSize();
+					batch.z[batch.size] = value;
+					batch.size++;
+				}
+				if (batch.size > 0) {
+					this.queue.put(batch);
+				}
+			}
+		} catch (InterruptedException e) {
+			// Reader has been closed before the end of the raster
+			return;
+		} catch (RuntimeException e) {
+			this.decodingError = e;
+		}
+		try {
+			this.queue.put(END);
+		} catch (InterruptedException e) {
+			// Reader has been closed, nobody is waiting for the end
+		}
+	}
+
+}
@@ -0,0 +1,610 @@
+package org.openstreetmap.osmaxil.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+import org.openstreetmap.osmaxil.Application;
+
+/**
+ * Pure Java reader of the GeoTIFF files which are used as DTM/DSM, the file is memory-mapped and its blocks (strips or tiles) are decoded on demand.
+ *
+ * Supported variants are:
+ * <ul>
+ * <li>strip or tiled layout</li>
+ * <li>no compression, LZW or DEFLATE (with or without horizontal/floating point predictor)</li>
+ * <li>float32, int16 or uint16 samples (only the first sample of each pixel is read)</li>
+ * <li>georeferencing by ModelPixelScale + ModelTiepoint or by ModelTransformation (without rotation)</li>
+ * </ul>
+ * BigTIFF files are not supported.
+ *
+ * Once it has been opened the reader is immutable so it can be used by several threads at once.
+ */
+public class GeoTiffReader {
+
+	// TIFF tags
+	static private final int TAG_IMAGE_WIDTH = 256;
+	static private final int TAG_IMAGE_LENGTH = 257;
+	static private final int TAG_BITS_PER_SAMPLE = 258;
+	static private final int TAG_COMPRESSION = 259;
+	static private final int TAG_STRIP_OFFSETS = 273;
+	static private final int TAG_SAMPLES_PER_PIXEL = 277;
+	static private final int TAG_ROWS_PER_STRIP = 278;
+	static private final int TAG_STRIP_BYTE_COUNTS = 279;
+	static private final int TAG_PLANAR_CONFIGURATION = 284;
+	static private final int TAG_PREDICTOR = 317;
+	static private final int TAG_TILE_WIDTH = 322;
+	static private final int TAG_TILE_LENGTH = 323;
+	static private final int TAG_TILE_OFFSETS = 324;
+	static private final int TAG_TILE_BYTE_COUNTS = 325;
+	static private final int TAG_SAMPLE_FORMAT = 339;
+	static private final int TAG_MODEL_PIXEL_SCALE = 33550;
+	static private final int TAG_MODEL_TIEPOINT = 33922;
+	static private final int TAG_MODEL_TRANSFORMATION = 34264;
+	static private final int TAG_GEO_KEY_DIRECTORY = 34735;
+	static private final int TAG_GDAL_NODATA = 42113;
+
+	// TIFF field types
+	static private final int TYPE_BYTE = 1;
+	static private final int TYPE_ASCII = 2;
+	static private final int TYPE_SHORT = 3;
+	static private final int TYPE_LONG = 4;
+	static private final int TYPE_DOUBLE = 12;
+
+	static private final int COMPRESSION_NONE = 1;
+	static private final int COMPRESSION_LZW = 5;
+	static private final int COMPRESSION_DEFLATE = 8;
+	static private final int COMPRESSION_OLD_DEFLATE = 32946;
+
+	static private final int PREDICTOR_NONE = 1;
+	static private final int PREDICTOR_HORIZONTAL = 2;
+	static private final int PREDICTOR_FLOATING_POINT = 3;
+
+	static private final int SAMPLE_FORMAT_UINT = 1;
+	static private final int SAMPLE_FORMAT_INT = 2;
+	static private final int SAMPLE_FORMAT_FLOAT = 3;
+
+	static private final int GEO_KEY_RASTER_TYPE = 1025;
+	static private final int RASTER_PIXEL_IS_POINT = 2;
+
+	// File is mapped by segments because a single mapping cannot exceed 2GB
+	static private final int SEGMENT_SIZE = 1 << 30;
+
+	static private final Logger LOGGER = Logger.getLogger(Application.class);
+
+	private String filePath;
+
+	private MappedByteBuffer[] segments;
+
+	private ByteOrder order;
+
+	private int width, height;
+
+	private int blockWidth, blockHeight;
+
+	private boolean tiled;
+
+	private int blocksAcross, blocksDown;
+
+	private long[] blockOffsets, blockByteCounts;
+
+	private int compression, predictor;
+
+	private int samplesPerPixel, bytesPerSample, sampleFormat;
+
+	private double xUpperLeft, yUpperLeft;
+
+	private double xPixelSize, yPixelSize;
+
+	private Double noDataValue;
+
+	public GeoTiffReader(String filePath) throws IOException {
+		this.filePath = filePath;
+		try (RandomAccessFile file = new RandomAccessFile(filePath, "r"); FileChannel channel = file.getChannel()) {
+			long size = channel.size();
+			this.segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+			for (int i = 0; i < this.segments.length; i++) {
+				long position = (long) i * SEGMENT_SIZE;
+				this.segments[i] = channel.map(MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, size - position));
+			}
+		}
+		this.readHeader();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Public methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Read a window of the raster into the specified array (row by row), the window must be inside the raster. Each block which intersects the window
+	 * is decoded once.
+	 */
+	public void readRaster(int x, int y, int width, int height, float[] data) {
+		if (x < 0 || y < 0 || x + width > this.width || y + height > this.height) {
+			throw new IllegalArgumentException("Window (" + x + ", " + y + ", " + width + ", " + height + ") is outside of the raster");
+		}
+		for (int yBlock = y / this.blockHeight; yBlock <= (y + height - 1) / this.blockHeight; yBlock++) {
+			for (int xBlock = x / this.blockWidth; xBlock <= (x + width - 1) / this.blockWidth; xBlock++) {
+				float[] block = this.readBlock(xBlock, yBlock);
+				int x1 = Math.max(x, xBlock * this.blockWidth);
+				int x2 = Math.min(x + width, (xBlock + 1) * this.blockWidth);
+				int y1 = Math.max(y, yBlock * this.blockHeight);
+				int y2 = Math.min(y + height, (yBlock + 1) * this.blockHeight);
+				for (int row = y1; row < y2; row++) {
+					System.arraycopy(block, (row - yBlock * this.blockHeight) * this.blockWidth + x1 - xBlock * this.blockWidth, data,
+							(row - y) * width + x1 - x, x2 - x1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decode a block (strip or tile) of the raster. The returned array has always the full size of a block (the rows and columns which are outside
+	 * of the raster are left to 0).
+	 */
+	public float[] readBlock(int xBlock, int yBlock) {
+		int index = yBlock * this.blocksAcross + xBlock;
+		// Last strip can have less rows than the others
+		int rows = this.tiled ? this.blockHeight : Math.min(this.blockHeight, this.height - yBlock * this.blockHeight);
+		int rowSize = this.blockWidth * this.samplesPerPixel * this.bytesPerSample;
+		byte[] raw = this.readBytes(this.blockOffsets[index], (int) this.blockByteCounts[index]);
+		byte[] bytes;
+		switch (this.compression) {
+		case COMPRESSION_NONE:
+			bytes = raw;
+			break;
+		case COMPRESSION_LZW:
+			bytes = decodeLZW(raw, rowSize * rows);
+			break;
+		default:
+			bytes = decodeDeflate(raw, rowSize * rows);
+		}
+		if (this.predictor == PREDICTOR_HORIZONTAL) {
+			this.undoHorizontalPredictor(bytes, rows, rowSize);
+		} else if (this.predictor == PREDICTOR_FLOATING_POINT) {
+			bytes = this.undoFloatingPointPredictor(bytes, rows, rowSize);
+		}
+		// Floating point predictor reorders the bytes as big endian
+		ByteBuffer buffer = ByteBuffer.wrap(bytes).order(this.predictor == PREDICTOR_FLOATING_POINT ? ByteOrder.BIG_ENDIAN : this.order);
+		float[] block = new float[this.blockWidth * this.blockHeight];
+		int pixelSize = this.samplesPerPixel * this.bytesPerSample;
+		int count = Math.min(this.blockWidth * rows, bytes.length / pixelSize);
+		for (int i = 0; i < count; i++) {
+			int position = i * pixelSize;
+			if (this.sampleFormat == SAMPLE_FORMAT_FLOAT) {
+				block[i] = buffer.getFloat(position);
+			} else if (this.sampleFormat == SAMPLE_FORMAT_INT) {
+				block[i] = buffer.getShort(position);
+			} else {
+				block[i] = buffer.getShort(position) & 0xFFFF;
+			}
+		}
+		return block;
+	}
+
+	public String getFilePath() {
+		return filePath;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getBlockWidth() {
+		return blockWidth;
+	}
+
+	public int getBlockHeight() {
+		return blockHeight;
+	}
+
+	public int getBlocksAcross() {
+		return blocksAcross;
+	}
+
+	public int getBlocksDown() {
+		return blocksDown;
+	}
+
+	public double getXUpperLeft() {
+		return xUpperLeft;
+	}
+
+	public double getYUpperLeft() {
+		return yUpperLeft;
+	}
+
+	public double getXPixelSize() {
+		return xPixelSize;
+	}
+
+	public double getYPixelSize() {
+		return yPixelSize;
+	}
+
+	public Double getNoDataValue() {
+		return noDataValue;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Private methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	private void readHeader() throws IOException {
+		byte[] header = this.readBytes(0, 8);
+		if (header[0] == 'I' && header[1] == 'I') {
+			this.order = ByteOrder.LITTLE_ENDIAN;
+		} else if (header[0] == 'M' && header[1] == 'M') {
+			this.order = ByteOrder.BIG_ENDIAN;
+		} else {
+			throw new IOException("File " + this.filePath + " is not a TIFF file");
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(header).order(this.order);
+		if (buffer.getShort(2) != 42) {
+			throw new IOException("File " + this.filePath + " is not a classic TIFF file (BigTIFF is not supported)");
+		}
+		// Read the entries of the first IFD
+		long ifdOffset = buffer.getInt(4) & 0xFFFFFFFFL;
+		int entryCount = ByteBuffer.wrap(this.readBytes(ifdOffset, 2)).order(this.order).getShort(0) & 0xFFFF;
+		ByteBuffer entries = ByteBuffer.wrap(this.readBytes(ifdOffset + 2, 12 * entryCount)).order(this.order);
+		long[] stripOffsets = null, stripByteCounts = null, tileOffsets = null, tileByteCounts = null;
+		double[] pixelScale = null, tiepoint = null, transformation = null;
+		int rowsPerStrip = Integer.MAX_VALUE, planarConfiguration = 1, rasterType = 0;
+		this.compression = COMPRESSION_NONE;
+		this.predictor = PREDICTOR_NONE;
+		this.samplesPerPixel = 1;
+		this.bytesPerSample = 1;
+		this.sampleFormat = SAMPLE_FORMAT_UINT;
+		for (int i = 0; i < entryCount; i++) {
+			int position = 12 * i;
+			int tag = entries.getShort(position) & 0xFFFF;
+			switch (tag) {
+			case TAG_IMAGE_WIDTH:
+				this.width = (int) this.readValues(entries, position)[0];
+				break;
+			case TAG_IMAGE_LENGTH:
+				this.height = (int) this.readValues(entries, position)[0];
+				break;
+			case TAG_BITS_PER_SAMPLE:
+				this.bytesPerSample = (int) this.readValues(entries, position)[0] / 8;
+				break;
+			case TAG_COMPRESSION:
+				this.compression = (int) this.readValues(entries, position)[0];
+				break;
+			case TAG_STRIP_OFFSETS:
+				stripOffsets = this.readValues(entries, position);
+				break;
+			case TAG_SAMPLES_PER_PIXEL:
+				this.samplesPerPixel = (int) this.readValues(entries, position)[0];
+				break;
+			case TAG_ROWS_PER_STRIP:
+				rowsPerStrip = (int) Math.min(Integer.MAX_VALUE, this.readValues(entries, position)[0]);
+				break;
+			case TAG_STRIP_BYTE_COUNTS:
+				stripByteCounts = this.readValues(entries, position);
+				break;
+			case TAG_PLANAR_CONFIGURATION:
+				planarConfiguration = (int) this.readValues(entries, position)[0];
+				break;
+			case TAG_PREDICTOR:
+				this.predictor = (int) this.readValues(entries, position)[0];
+				break;
+			case TAG_TILE_WIDTH:
+				this.blockWidth = (int) this.readValues(entries, position)[0];
+				this.tiled = true;
+				break;
+			case TAG_TILE_LENGTH:
+				this.blockHeight = (int) this.readValues(entries, position)[0];
+				break;
+			case TAG_TILE_OFFSETS:
+				tileOffsets = this.readValues(entries, position);
+				break;
+			case TAG_TILE_BYTE_COUNTS:
+				tileByteCounts = this.readValues(entries, position);
+				break;
+			case TAG_SAMPLE_FORMAT:
+				this.sampleFormat = (int) this.readValues(entries, position)[0];
+				break;
+			case TAG_MODEL_PIXEL_SCALE:
+				pixelScale = this.readDoubles(entries, position);
+				break;
+			case TAG_MODEL_TIEPOINT:
+				tiepoint = this.readDoubles(entries, position);
+				break;
+			case TAG_MODEL_TRANSFORMATION:
+				transformation = this.readDoubles(entries, position);
+				break;
+			case TAG_GEO_KEY_DIRECTORY:
+				long[] keys = this.readValues(entries, position);
+				for (int k = 4; k + 3 < keys.length; k += 4) {
+					if (keys[k] == GEO_KEY_RASTER_TYPE && keys[k + 1] == 0) {
+						rasterType = (int) keys[k + 3];
+					}
+				}
+				break;
+			case TAG_GDAL_NODATA:
+				String noData = this.readString(entries, position).trim();
+				if (!noData.isEmpty()) {
+					try {
+						this.noDataValue = Double.parseDouble(noData);
+					} catch (NumberFormatException e) {
+						LOGGER.warn("Unable to parse no data value \"" + noData + "\"");
+					}
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		// Check the variant is supported
+		if (this.compression != COMPRESSION_NONE && this.compression != COMPRESSION_LZW && this.compression != COMPRESSION_DEFLATE
+				&& this.compression != COMPRESSION_OLD_DEFLATE) {
+			throw new IOException("Compression " + this.compression + " is not supported");
+		}
+		if (this.predictor != PREDICTOR_NONE && this.predictor != PREDICTOR_HORIZONTAL && this.predictor != PREDICTOR_FLOATING_POINT) {
+			throw new IOException("Predictor " + this.predictor + " is not supported");
+		}
+		boolean float32 = this.sampleFormat == SAMPLE_FORMAT_FLOAT && this.bytesPerSample == 4;
+		boolean int16 = (this.sampleFormat == SAMPLE_FORMAT_INT || this.sampleFormat == SAMPLE_FORMAT_UINT) && this.bytesPerSample == 2;
+		if (!float32 && !int16) {
+			throw new IOException("Sample format " + this.sampleFormat + " on " + (8 * this.bytesPerSample) + " bits is not supported");
+		}
+		if (planarConfiguration != 1 && this.samplesPerPixel > 1) {
+			throw new IOException("Planar configuration " + planarConfiguration + " is not supported");
+		}
+		// Compute the layout of the blocks
+		if (this.tiled) {
+			this.blockOffsets = tileOffsets;
+			this.blockByteCounts = tileByteCounts;
+		} else {
+			this.blockWidth = this.width;
+			this.blockHeight = Math.min(rowsPerStrip, this.height);
+			this.blockOffsets = stripOffsets;
+			this.blockByteCounts = stripByteCounts;
+		}
+		this.blocksAcross = (this.width + this.blockWidth - 1) / this.blockWidth;
+		this.blocksDown = (this.height + this.blockHeight - 1) / this.blockHeight;
+		if (this.blockOffsets == null || this.blockByteCounts == null || this.blockOffsets.length < this.blocksAcross * this.blocksDown) {
+			throw new IOException("Offsets of the " + (this.tiled ? "tiles" : "strips") + " are missing");
+		}
+		// Compute the geotransform
+		if (transformation != null && transformation.length >= 16) {
+			this.xPixelSize = transformation[0];
+			this.yPixelSize = Math.abs(transformation[5]);
+			this.xUpperLeft = transformation[3];
+			this.yUpperLeft = transformation[7];
+		} else if (pixelScale != null && tiepoint != null && tiepoint.length >= 6) {
+			this.xPixelSize = pixelScale[0];
+			this.yPixelSize = pixelScale[1];
+			this.xUpperLeft = tiepoint[3] - tiepoint[0] * this.xPixelSize;
+			this.yUpperLeft = tiepoint[4] + tiepoint[1] * this.yPixelSize;
+		} else {
+			throw new IOException("File " + this.filePath + " has no georeferencing tags");
+		}
+		// Like GDAL, coordinates of the rasters whose values are related to the center of the pixels are shifted to the corner of the first pixel
+		if (rasterType == RASTER_PIXEL_IS_POINT) {
+			this.xUpperLeft -= this.xPixelSize / 2;
+			this.yUpperLeft += this.yPixelSize / 2;
+		}
+	}
+
+	private long[] readValues(ByteBuffer entries, int position) {
+		int type = entries.getShort(position + 2) & 0xFFFF;
+		int count = entries.getInt(position + 4);
+		int size = (type == TYPE_SHORT ? 2 : (type == TYPE_LONG ? 4 : 1));
+		ByteBuffer values = this.getEntryValues(entries, position, count * size);
+		long[] result = new long[count];
+		for (int i = 0; i < count; i++) {
+			if (type == TYPE_SHORT) {
+				result[i] = values.getShort(2 * i) & 0xFFFF;
+			} else if (type == TYPE_LONG) {
+				result[i] = values.getInt(4 * i) & 0xFFFFFFFFL;
+			} else {
+				result[i] = values.get(i) & 0xFF;
+			}
+		}
+		return result;
+	}
+
+	private double[] readDoubles(ByteBuffer entries, int position) throws IOException {
+		int type = entries.getShort(position + 2) & 0xFFFF;
+		if (type != TYPE_DOUBLE) {
+			throw new IOException("Unexpected type " + type + " for a geotiff tag");
+		}
+		int count = entries.getInt(position + 4);
+		ByteBuffer values = this.getEntryValues(entries, position, count * 8);
+		double[] result = new double[count];
+		for (int i = 0; i < count; i++) {
+			result[i] = values.getDouble(8 * i);
+		}
+		return result;
+	}
+
+	private String readString(ByteBuffer entries, int position) {
+		int type = entries.getShort(position + 2) & 0xFFFF;
+		if (type != TYPE_ASCII && type != TYPE_BYTE) {
+			return "";
+		}
+		int count = entries.getInt(position + 4);
+		ByteBuffer values = this.getEntryValues(entries, position, count);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count && values.get(i) != 0; i++) {
+			sb.append((char) values.get(i));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Values of an IFD entry are stored in the entry itself if they fit in 4 bytes, elsewhere the entry contains their offset.
+	 */
+	private ByteBuffer getEntryValues(ByteBuffer entries, int position, int size) {
+		if (size <= 4) {
+			byte[] bytes = new byte[4];
+			for (int i = 0; i < 4; i++) {
+				bytes[i] = entries.get(position + 8 + i);
+			}
+			return ByteBuffer.wrap(bytes).order(this.order);
+		}
+		return ByteBuffer.wrap(this.readBytes(entries.getInt(position + 8) & 0xFFFFFFFFL, size)).order(this.order);
+	}
+
+	/**
+	 * Copy bytes of the file (which can be across 2 segments), duplicates of the buffers are used so it's thread safe.
+	 */
+	private byte[] readBytes(long position, int length) {
+		byte[] bytes = new byte[length];
+		int done = 0;
+		while (done < length) {
+			long current = position + done;
+			ByteBuffer segment = this.segments[(int) (current / SEGMENT_SIZE)].duplicate();
+			segment.position((int) (current % SEGMENT_SIZE));
+			int size = Math.min(length - done, segment.remaining());
+			segment.get(bytes, done, size);
+			done += size;
+		}
+		return bytes;
+	}
+
+	private void undoHorizontalPredictor(byte[] bytes, int rows, int rowSize) {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes).order(this.order);
+		int stride = this.samplesPerPixel * this.bytesPerSample;
+		for (int row = 0; row < rows; row++) {
+			int start = row * rowSize;
+			for (int i = start + stride; i + this.bytesPerSample <= start + rowSize && i + this.bytesPerSample <= bytes.length; i += this.bytesPerSample) {
+				if (this.bytesPerSample == 2) {
+					buffer.putShort(i, (short) (buffer.getShort(i) + buffer.getShort(i - stride)));
+				} else {
+					buffer.putInt(i, buffer.getInt(i) + buffer.getInt(i - stride));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Floating point predictor stores the bytes of each row by planes (most significant bytes first) and computes the differences between bytes.
+	 */
+	private byte[] undoFloatingPointPredictor(byte[] bytes, int rows, int rowSize) {
+		byte[] result = new byte[bytes.length];
+		int samples = rowSize / this.bytesPerSample;
+		for (int row = 0; row < rows && (row + 1) * rowSize <= bytes.length; row++) {
+			int start = row * rowSize;
+			for (int i = start + this.samplesPerPixel; i < start + rowSize; i++) {
+				bytes[i] += bytes[i - this.samplesPerPixel];
+			}
+			for (int sample = 0; sample < samples; sample++) {
+				for (int b = 0; b < this.bytesPerSample; b++) {
+					result[start + sample * this.bytesPerSample + b] = bytes[start + b * samples + sample];
+				}
+			}
+		}
+		return result;
+	}
+
+	private static byte[] decodeDeflate(byte[] raw, int expectedSize) {
+		byte[] result = new byte[expectedSize];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(raw);
+			int done = 0;
+			while (done < expectedSize && !inflater.finished()) {
+				int count = inflater.inflate(result, done, expectedSize - done);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				done += count;
+			}
+		} catch (DataFormatException e) {
+			LOGGER.error("Unable to inflate a block: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return result;
+	}
+
+	/**
+	 * LZW decoding as specified by TIFF 6.0 (codes are written MSB first and their width is increased one code earlier than in the classic LZW).
+	 */
+	private static byte[] decodeLZW(byte[] raw, int expectedSize) {
+		final int clearCode = 256, endCode = 257;
+		byte[] result = new byte[expectedSize];
+		int[] prefixes = new int[4096];
+		byte[] suffixes = new byte[4096];
+		byte[] firsts = new byte[4096];
+		int[] lengths = new int[4096];
+		for (int i = 0; i < 256; i++) {
+			suffixes[i] = (byte) i;
+			firsts[i] = (byte) i;
+			lengths[i] = 1;
+		}
+		int done = 0, next = 258, codeWidth = 9, previous = -1;
+		int bitBuffer = 0, bitCount = 0, position = 0;
+		while (done < expectedSize) {
+			// Read next code
+			while (bitCount < codeWidth && position < raw.length) {
+				bitBuffer = (bitBuffer << 8) | (raw[position++] & 0xFF);
+				bitCount += 8;
+			}
+			if (bitCount < codeWidth) {
+				break;
+			}
+			int code = (bitBuffer >>> (bitCount - codeWidth)) & ((1 << codeWidth) - 1);
+			bitCount -= codeWidth;
+			if (code == endCode) {
+				break;
+			}
+			if (code == clearCode) {
+				next = 258;
+				codeWidth = 9;
+				previous = -1;
+				continue;
+			}
+			if (previous == -1) {
+				if (code >= 256) {
+					break;
+				}
+				result[done++] = (byte) code;
+				previous = code;
+				continue;
+			}
+			if (code > next) {
+				// Corrupted data
+				break;
+			}
+			// Add a new entry to the table (when the code is not known yet, it's the entry which is being added)
+			if (next < 4096) {
+				prefixes[next] = previous;
+				suffixes[next] = code < next ? firsts[code] : firsts[previous];
+				firsts[next] = firsts[previous];
+				lengths[next] = lengths[previous] + 1;
+				next++;
+				if (next >= (1 << codeWidth) - 1 && codeWidth < 12) {
+					codeWidth++;
+				}
+			}
+			// Write the string of the code (from its end)
+			int length = lengths[code];
+			int c = code;
+			for (int i = length - 1; i >= 0; i--) {
+				if (done + i < expectedSize) {
+					result[done + i] = suffixes[c];
+				}
+				c = prefixes[c];
+			}
+			done += length;
+			previous = code;
+		}
+		return result;
+	}
+
+}
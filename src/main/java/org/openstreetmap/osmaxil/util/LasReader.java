@@ -0,0 +1,230 @@
+package org.openstreetmap.osmaxil.util;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming reader of the LAS files (versions 1.0 to 1.4, point data record formats 0 to 10).
+ *
+ * Point records are read sequentially by large batches, so the reader also works on a pipe (for example the standard output of laszip for LAZ
+ * files). Coordinates are computed with the scale factors and offsets of the header. Points can be filtered by their classification and by their
+ * return number.
+ */
+public class LasReader implements PointCloudReader {
+
+	static private final int MIN_HEADER_SIZE = 227;
+
+	private DataInputStream in;
+
+	private int versionMajor, versionMinor;
+
+	private int pointFormat;
+
+	private int pointRecordLength;
+
+	private long pointCount;
+
+	private double xScale, yScale, zScale;
+
+	private double xOffset, yOffset, zOffset;
+
+	private double xMin, yMin, zMin, xMax, yMax, zMax;
+
+	private boolean[] acceptedClassifications;
+
+	private boolean firstReturnsOnly;
+
+	private long counterForReadPoints;
+
+	private long counterForKeptPoints;
+
+	private byte[] records;
+
+	public LasReader(InputStream in) throws IOException {
+		this.in = new DataInputStream(in);
+		this.readHeader();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Public methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public int read(double[] x, double[] y, double[] z) throws IOException {
+		if (this.counterForReadPoints >= this.pointCount) {
+			return -1;
+		}
+		int batchSize = (int) Math.min(x.length, this.pointCount - this.counterForReadPoints);
+		if (this.records == null || this.records.length < batchSize * this.pointRecordLength) {
+			this.records = new byte[batchSize * this.pointRecordLength];
+		}
+		try {
+			this.in.readFully(this.records, 0, batchSize * this.pointRecordLength);
+		} catch (EOFException e) {
+			throw new IOException("LAS stream is shorter than expected (" + this.counterForReadPoints + " points read on " + this.pointCount + ")");
+		}
+		this.counterForReadPoints += batchSize;
+		ByteBuffer buffer = ByteBuffer.wrap(this.records).order(ByteOrder.LITTLE_ENDIAN);
+		boolean extended = this.pointFormat >= 6;
+		int count = 0;
+		for (int i = 0; i < batchSize; i++) {
+			int position = i * this.pointRecordLength;
+			int flags = buffer.get(position + 14) & 0xFF;
+			int returnNumber = extended ? flags & 0x0F : flags & 0x07;
+			if (this.firstReturnsOnly && returnNumber > 1) {
+				continue;
+			}
+			if (this.acceptedClassifications != null) {
+				int classification = extended ? buffer.get(position + 16) & 0xFF : buffer.get(position + 15) & 0x1F;
+				if (!this.acceptedClassifications[classification]) {
+					continue;
+				}
+			}
+			x[count] = buffer.getInt(position) * this.xScale + this.xOffset;
+			y[count] = buffer.getInt(position + 4) * this.yScale + this.yOffset;
+			z[count] = buffer.getInt(position + 8) * this.zScale + this.zOffset;
+			count++;
+		}
+		this.counterForKeptPoints += count;
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.in.close();
+	}
+
+	/**
+	 * Keep only the points whose classification is one of the specified ones (for example 2 for ground points), null means all points are kept.
+	 */
+	public void setAcceptedClassifications(int[] classifications) {
+		if (classifications == null) {
+			this.acceptedClassifications = null;
+			return;
+		}
+		this.acceptedClassifications = new boolean[256];
+		for (int classification : classifications) {
+			this.acceptedClassifications[classification] = true;
+		}
+	}
+
+	/**
+	 * Keep only the first return of each pulse (useful for surface models).
+	 */
+	public void setFirstReturnsOnly(boolean firstReturnsOnly) {
+		this.firstReturnsOnly = firstReturnsOnly;
+	}
+
+	public String getVersion() {
+		return this.versionMajor + "." + this.versionMinor;
+	}
+
+	public int getPointFormat() {
+		return pointFormat;
+	}
+
+	public long getPointCount() {
+		return pointCount;
+	}
+
+	public long getCounterForReadPoints() {
+		return counterForReadPoints;
+	}
+
+	public long getCounterForKeptPoints() {
+		return counterForKeptPoints;
+	}
+
+	public double getXMin() {
+		return xMin;
+	}
+
+	public double getYMin() {
+		return yMin;
+	}
+
+	public double getZMin() {
+		return zMin;
+	}
+
+	public double getXMax() {
+		return xMax;
+	}
+
+	public double getYMax() {
+		return yMax;
+	}
+
+	public double getZMax() {
+		return zMax;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Private methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	private void readHeader() throws IOException {
+		byte[] bytes = new byte[MIN_HEADER_SIZE];
+		this.in.readFully(bytes);
+		if (bytes[0] != 'L' || bytes[1] != 'A' || bytes[2] != 'S' || bytes[3] != 'F') {
+			throw new IOException("Stream is not a LAS file");
+		}
+		ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		this.versionMajor = header.get(24);
+		this.versionMinor = header.get(25);
+		int headerSize = header.getShort(94) & 0xFFFF;
+		long pointDataOffset = header.getInt(96) & 0xFFFFFFFFL;
+		int rawPointFormat = header.get(104) & 0xFF;
+		// The 2 high bits of the point format are set in LAZ files
+		if ((rawPointFormat & 0xC0) != 0) {
+			throw new IOException("Points are compressed (LAZ), they need to be decompressed first");
+		}
+		this.pointFormat = rawPointFormat;
+		if (this.pointFormat > 10) {
+			throw new IOException("Point data record format " + this.pointFormat + " is not supported");
+		}
+		this.pointRecordLength = header.getShort(105) & 0xFFFF;
+		this.pointCount = header.getInt(107) & 0xFFFFFFFFL;
+		this.xScale = header.getDouble(131);
+		this.yScale = header.getDouble(139);
+		this.zScale = header.getDouble(147);
+		this.xOffset = header.getDouble(155);
+		this.yOffset = header.getDouble(163);
+		this.zOffset = header.getDouble(171);
+		this.xMax = header.getDouble(179);
+		this.xMin = header.getDouble(187);
+		this.yMax = header.getDouble(195);
+		this.yMin = header.getDouble(203);
+		this.zMax = header.getDouble(211);
+		this.zMin = header.getDouble(219);
+		// Read the end of the header (LAS 1.3 and 1.4 have larger headers)
+		if (headerSize > MIN_HEADER_SIZE) {
+			byte[] extension = new byte[headerSize - MIN_HEADER_SIZE];
+			this.in.readFully(extension);
+			// LAS 1.4 stores a 64 bits point count (legacy one is 0 for the new point formats)
+			if (this.versionMinor >= 4 && extension.length >= 255 - MIN_HEADER_SIZE) {
+				long count = ByteBuffer.wrap(extension).order(ByteOrder.LITTLE_ENDIAN).getLong(247 - MIN_HEADER_SIZE);
+				if (count > 0) {
+					this.pointCount = count;
+				}
+			}
+		}
+		// Skip the variable length records
+		long toSkip = pointDataOffset - Math.max(headerSize, MIN_HEADER_SIZE);
+		while (toSkip > 0) {
+			long skipped = this.in.skip(toSkip);
+			if (skipped <= 0) {
+				if (this.in.read() < 0) {
+					throw new IOException("LAS stream ends before its point data");
+				}
+				skipped = 1;
+			}
+			toSkip -= skipped;
+		}
+	}
+
+}
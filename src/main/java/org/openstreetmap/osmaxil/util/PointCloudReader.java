@@ -0,0 +1,17 @@
+package org.openstreetmap.osmaxil.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Streaming reader of a point cloud, points are read by batches into arrays of coordinates.
+ */
+public interface PointCloudReader extends Closeable {
+
+	/**
+	 * Read the next batch of points into the specified arrays (which must have the same length) and returns the number of points which have been
+	 * read, or -1 if there's no more point. A batch can be empty (if all its points have been filtered) without being the last one.
+	 */
+	public int read(double[] x, double[] y, double[] z) throws IOException;
+
+}
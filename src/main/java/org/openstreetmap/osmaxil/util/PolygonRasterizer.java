@@ -0,0 +1,131 @@
+package org.openstreetmap.osmaxil.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * Flattened view of the rings of a (multi)polygon which allows fast point-in-polygon tests on millions of points.
+ *
+ * All the rings (outer and inner) are stored as a plain list of edges and the even-odd rule is used, so holes are handled without any special case.
+ */
+public class PolygonRasterizer {
+
+	private double[] x1, y1, x2, y2;
+
+	private int edgeCount;
+
+	private Envelope envelope;
+
+	public PolygonRasterizer(Geometry geometry) {
+		int size = 0;
+		for (Coordinate[] ring : getRings(geometry)) {
+			size += ring.length;
+		}
+		this.x1 = new double[size];
+		this.y1 = new double[size];
+		this.x2 = new double[size];
+		this.y2 = new double[size];
+		for (Coordinate[] ring : getRings(geometry)) {
+			for (int i = 0; i < ring.length - 1; i++) {
+				// Horizontal edges never cross a horizontal ray so they can be ignored
+				if (ring[i].y == ring[i + 1].y) {
+					continue;
+				}
+				this.x1[this.edgeCount] = ring[i].x;
+				this.y1[this.edgeCount] = ring[i].y;
+				this.x2[this.edgeCount] = ring[i + 1].x;
+				this.y2[this.edgeCount] = ring[i + 1].y;
+				this.edgeCount++;
+			}
+		}
+		this.envelope = geometry.getEnvelopeInternal();
+	}
+
+	/**
+	 * Build a rasterizer from a WKT geometry shrunk by the specified radius, returns null if nothing remains after the shrinking.
+	 */
+	public static PolygonRasterizer fromWKT(String wkt, float shrinkRadius) throws ParseException {
+		Geometry geometry = new WKTReader().read(wkt);
+		if (shrinkRadius != 0) {
+			geometry = geometry.buffer(-shrinkRadius);
+		}
+		if (geometry.isEmpty()) {
+			return null;
+		}
+		return new PolygonRasterizer(geometry);
+	}
+
+	/**
+	 * Returns true if the point is inside the polygon (crossing number algorithm).
+	 */
+	public boolean contains(double x, double y) {
+		if (!this.envelope.contains(x, y)) {
+			return false;
+		}
+		boolean inside = false;
+		for (int i = 0; i < this.edgeCount; i++) {
+			if ((this.y1[i] > y) != (this.y2[i] > y)) {
+				double xCross = this.x1[i] + (y - this.y1[i]) * (this.x2[i] - this.x1[i]) / (this.y2[i] - this.y1[i]);
+				if (x < xCross) {
+					inside = !inside;
+				}
+			}
+		}
+		return inside;
+	}
+
+	/**
+	 * Compute the abscissas where an horizontal scanline crosses the rings of the polygon, they are stored sorted in the specified array (which must
+	 * be at least as large as the number of edges). Consecutive pairs of crossings delimit the spans of the scanline which are inside the polygon.
+	 */
+	public int getCrossings(double y, double[] crossings) {
+		int count = 0;
+		for (int i = 0; i < this.edgeCount; i++) {
+			if ((this.y1[i] > y) != (this.y2[i] > y)) {
+				crossings[count++] = this.x1[i] + (y - this.y1[i]) * (this.x2[i] - this.x1[i]) / (this.y2[i] - this.y1[i]);
+			}
+		}
+		Arrays.sort(crossings, 0, count);
+		return count;
+	}
+
+	public int getEdgeCount() {
+		return edgeCount;
+	}
+
+	public Envelope getEnvelope() {
+		return envelope;
+	}
+
+	public boolean isEmpty() {
+		return this.edgeCount == 0;
+	}
+
+	// =========================================================================
+	// Private methods
+	// =========================================================================
+
+	private static List<Coordinate[]> getRings(Geometry geometry) {
+		List<Coordinate[]> rings = new ArrayList<>();
+		for (int i = 0; i < geometry.getNumGeometries(); i++) {
+			Geometry part = geometry.getGeometryN(i);
+			if (part instanceof Polygon) {
+				Polygon polygon = (Polygon) part;
+				rings.add(polygon.getExteriorRing().getCoordinates());
+				for (int j = 0; j < polygon.getNumInteriorRing(); j++) {
+					rings.add(polygon.getInteriorRingN(j).getCoordinates());
+				}
+			}
+		}
+		return rings;
+	}
+
+}
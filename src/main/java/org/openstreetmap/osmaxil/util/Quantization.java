@@ -0,0 +1,87 @@
+package org.openstreetmap.osmaxil.util;
+
+/**
+ * Quantization of the coordinates of points into integers: a value is stored as round((value - offset) / scale), so a scale of 0.01 keeps the
+ * coordinates to the centimeter.
+ */
+public class Quantization {
+
+	private double xOffset, yOffset, zOffset;
+
+	private double xyScale, zScale;
+
+	public Quantization(double xOffset, double yOffset, double zOffset, double xyScale, double zScale) {
+		this.xOffset = xOffset;
+		this.yOffset = yOffset;
+		this.zOffset = zOffset;
+		this.xyScale = xyScale;
+		this.zScale = zScale;
+	}
+
+	/**
+	 * Returns the quantized values, they have to be checked with {@link #isInRange(long)} before being stored as integers.
+	 */
+	public long quantizeX(double x) {
+		return Math.round((x - this.xOffset) / this.xyScale);
+	}
+
+	public long quantizeY(double y) {
+		return Math.round((y - this.yOffset) / this.xyScale);
+	}
+
+	public long quantizeZ(double z) {
+		return Math.round((z - this.zOffset) / this.zScale);
+	}
+
+	public double dequantizeX(long x) {
+		return this.xOffset + x * this.xyScale;
+	}
+
+	public double dequantizeY(long y) {
+		return this.yOffset + y * this.xyScale;
+	}
+
+	public double dequantizeZ(long z) {
+		return this.zOffset + z * this.zScale;
+	}
+
+	/**
+	 * Returns the SQL expression of the real value of a quantized column ("x", "y" or "z").
+	 */
+	public String getColumnExpression(String column) {
+		if ("x".equals(column)) {
+			return "(" + this.xOffset + " + x * " + this.xyScale + ")";
+		} else if ("y".equals(column)) {
+			return "(" + this.yOffset + " + y * " + this.xyScale + ")";
+		}
+		return "(" + this.zOffset + " + z * " + this.zScale + ")";
+	}
+
+	/**
+	 * Returns true if the quantized value can be stored as a 32 bits integer.
+	 */
+	public static boolean isInRange(long value) {
+		return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+	}
+
+	public double getXOffset() {
+		return xOffset;
+	}
+
+	public double getYOffset() {
+		return yOffset;
+	}
+
+	public double getZOffset() {
+		return zOffset;
+	}
+
+	public double getXYScale() {
+		return xyScale;
+	}
+
+	public double getZScale() {
+		return zScale;
+	}
+
+}
@@ -0,0 +1,98 @@
+package org.openstreetmap.osmaxil.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sort of objects along a space filling curve of their coordinates, so objects which are close in the list are also close in space (which is
+ * much more friendly with the caches of the data sources than a random order).
+ *
+ * Coordinates are quantized on a grid of 2^15 x 2^15 cells which covers their envelope. Objects without coordinates (NaN) are put at the end.
+ */
+public class SpatialOrdering {
+
+	public enum Curve {
+		NONE, HILBERT, ZORDER
+	};
+
+	static private final int ORDER = 15;
+
+	static private final int SIZE = 1 << ORDER;
+
+	/**
+	 * Returns a new list with the same items sorted along the specified curve (the list is returned as is if the curve is NONE).
+	 */
+	public static <T> List<T> sort(List<T> items, double[] x, double[] y, Curve curve) {
+		if (curve == Curve.NONE || items.size() < 2) {
+			return items;
+		}
+		// Compute the envelope of the coordinates
+		double xMin = Double.MAX_VALUE, yMin = Double.MAX_VALUE, xMax = -Double.MAX_VALUE, yMax = -Double.MAX_VALUE;
+		for (int i = 0; i < items.size(); i++) {
+			if (!Double.isNaN(x[i]) && !Double.isNaN(y[i])) {
+				xMin = Math.min(xMin, x[i]);
+				xMax = Math.max(xMax, x[i]);
+				yMin = Math.min(yMin, y[i]);
+				yMax = Math.max(yMax, y[i]);
+			}
+		}
+		double xScale = (xMax > xMin ? (SIZE - 1) / (xMax - xMin) : 0);
+		double yScale = (yMax > yMin ? (SIZE - 1) / (yMax - yMin) : 0);
+		// Each key is made of the index on the curve (high bits) and of the item index (low bits)
+		long[] keys = new long[items.size()];
+		for (int i = 0; i < items.size(); i++) {
+			long index;
+			if (Double.isNaN(x[i]) || Double.isNaN(y[i])) {
+				index = (long) SIZE * SIZE;
+			} else {
+				int column = (int) Math.round((x[i] - xMin) * xScale);
+				int row = (int) Math.round((y[i] - yMin) * yScale);
+				index = (curve == Curve.HILBERT ? getHilbertIndex(column, row) : getZOrderIndex(column, row));
+			}
+			keys[i] = (index << 32) | i;
+		}
+		Arrays.sort(keys);
+		List<T> result = new ArrayList<>(items.size());
+		for (long key : keys) {
+			result.add(items.get((int) key));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the distance along the Hilbert curve of the cell (x, y).
+	 */
+	public static long getHilbertIndex(int x, int y) {
+		long index = 0;
+		for (int s = SIZE / 2; s > 0; s /= 2) {
+			int rx = (x & s) > 0 ? 1 : 0;
+			int ry = (y & s) > 0 ? 1 : 0;
+			index += (long) s * s * ((3 * rx) ^ ry);
+			// Rotate the quadrant so the curve is continuous
+			if (ry == 0) {
+				if (rx == 1) {
+					x = SIZE - 1 - x;
+					y = SIZE - 1 - y;
+				}
+				int tmp = x;
+				x = y;
+				y = tmp;
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the distance along the Z-order (Morton) curve of the cell (x, y), ie. the bits of x and y interleaved.
+	 */
+	public static long getZOrderIndex(int x, int y) {
+		long index = 0;
+		for (int bit = 0; bit < ORDER; bit++) {
+			index |= (long) ((x >>> bit) & 1) << (2 * bit);
+			index |= (long) ((y >>> bit) & 1) << (2 * bit + 1);
+		}
+		return index;
+	}
+
+}
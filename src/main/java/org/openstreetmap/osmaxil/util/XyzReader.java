@@ -0,0 +1,46 @@
+package org.openstreetmap.osmaxil.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+/**
+ * Streaming reader of the XYZ files (one point by line, with coordinates and elevation separated by one or several separators).
+ */
+public class XyzReader implements PointCloudReader {
+
+	private BufferedReader reader;
+
+	private Pattern splitter;
+
+	public XyzReader(File file, String separator) throws IOException {
+		this.reader = new BufferedReader(new FileReader(file), 1 << 20);
+		this.splitter = Pattern.compile(Pattern.quote(separator) + "+");
+	}
+
+	@Override
+	public int read(double[] x, double[] y, double[] z) throws IOException {
+		int count = 0;
+		String line = null;
+		while (count < x.length && (line = this.reader.readLine()) != null) {
+			String[] values = this.splitter.split(line.trim());
+			// Skip empty or invalid lines
+			if (values.length < 3) {
+				continue;
+			}
+			x[count] = Double.parseDouble(values[0]);
+			y[count] = Double.parseDouble(values[1]);
+			z[count] = Double.parseDouble(values[2]);
+			count++;
+		}
+		return (count == 0 && line == null) ? -1 : count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.reader.close();
+	}
+
+}
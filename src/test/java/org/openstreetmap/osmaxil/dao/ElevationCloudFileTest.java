@@ -0,0 +1,248 @@
+package org.openstreetmap.osmaxil.dao;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openstreetmap.osmaxil.model.ElevationImport;
+import org.openstreetmap.osmaxil.model.misc.ElevationPointBuffer;
+import org.openstreetmap.osmaxil.plugin.loader.ElevationCloudFileWriter;
+import org.openstreetmap.osmaxil.util.PointCloudReader;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * Write a cloud file with {@link ElevationCloudFileWriter}, then check the points which are found by {@link ElevationCloudFile} against a scan of
+ * all the points.
+ */
+public class ElevationCloudFileTest {
+
+	static private final int SRID = 2154;
+
+	static private final double PRECISION = 0.01;
+
+	static private final double X0 = 652000, Y0 = 6862000, Z0 = 30;
+
+	// Points are on the grid of the precision so they are not moved by the quantization
+	private double[] x, y, z;
+
+	private String filePath;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void writeCloudFile() throws IOException {
+		Random random = new Random(7);
+		int count = 3300;
+		this.x = new double[count];
+		this.y = new double[count];
+		this.z = new double[count];
+		for (int i = 0; i < count; i++) {
+			if (i == 0) {
+				// Lowest coordinates
+				this.x[i] = X0;
+				this.y[i] = Y0;
+			} else if (i <= 300) {
+				// Too many points at the same location to be split into several chunks
+				this.x[i] = X0 + 5000 * PRECISION;
+				this.y[i] = Y0 + 5000 * PRECISION;
+			} else {
+				this.x[i] = X0 + random.nextInt(20000) * PRECISION;
+				this.y[i] = Y0 + random.nextInt(15000) * PRECISION;
+			}
+			this.z[i] = Z0 + (i == 0 ? 0 : 1 + random.nextInt(5000)) * PRECISION;
+		}
+		this.filePath = new File(this.folder.getRoot(), "test.cloud").getPath();
+		try (ElevationCloudFileWriter writer = new ElevationCloudFileWriter(this.folder.newFile(), PRECISION, 100)) {
+			// Points are added by 2 readers
+			assertEquals(1000, writer.addPoints(new ArrayReader(0, 1000)));
+			assertEquals(count - 1000, writer.addPoints(new ArrayReader(1000, count)));
+			writer.write(this.filePath, SRID);
+		}
+	}
+
+	@Test
+	public void testAllPoints() throws Exception {
+		ElevationCloudFile cloud = new ElevationCloudFile(this.filePath, SRID);
+		assertTrue(cloud.isLoaded());
+		// Every chunk is read with a geometry which covers the whole cloud
+		String wkt = "POLYGON((651999 6861999, 652201 6861999, 652201 6862151, 651999 6862151, 651999 6861999))";
+		this.checkGeometry(cloud, wkt, null);
+	}
+
+	@Test
+	public void testPointsInsideGeometry() throws Exception {
+		ElevationCloudFile cloud = new ElevationCloudFile(this.filePath, SRID);
+		// Vertices are between the points so no point is on the boundaries
+		String including = "POLYGON((652020.005 6862010.005, 652150.005 6862030.005, 652120.005 6862140.005, 652030.005 6862100.005, "
+				+ "652020.005 6862010.005))";
+		String excluding = "POLYGON((652060.005 6862050.005, 652090.005 6862050.005, 652090.005 6862080.005, 652060.005 6862080.005, "
+				+ "652060.005 6862050.005))";
+		this.checkGeometry(cloud, including, null);
+		this.checkGeometry(cloud, including, excluding);
+	}
+
+	@Test
+	public void testDecimatedPoints() throws Exception {
+		ElevationCloudFile cloud = new ElevationCloudFile(this.filePath, SRID);
+		String wkt = "POLYGON((651999 6861999, 652201 6861999, 652201 6862151, 651999 6862151, 651999 6861999))";
+		ElevationPointBuffer points = new ElevationPointBuffer();
+		points.setSampleSize(50);
+		points.setExpectedCount(this.x.length);
+		assertEquals(33, points.getDecimationStep());
+		cloud.findAllElevationsByGeometry(wkt, null, 1, 0, SRID, points);
+		// Only one point out of the step has been read (100 points, then 50 of them are kept by the reservoir) and the number of points is
+		// estimated from them
+		assertTrue(points.isSampled());
+		assertEquals(50, points.getSize());
+		assertEquals(this.x.length, points.getCounterForPoints());
+		float[] all = new float[this.z.length];
+		for (int i = 0; i < this.z.length; i++) {
+			all[i] = (float) this.z[i];
+		}
+		Arrays.sort(all);
+		for (int i = 0; i < points.getSize(); i++) {
+			assertTrue(Arrays.binarySearch(all, points.getZ(i)) >= 0);
+		}
+	}
+
+	@Test
+	public void testClosestPoints() throws Exception {
+		ElevationCloudFile cloud = new ElevationCloudFile(this.filePath, SRID);
+		Random random = new Random(11);
+		int count = 200;
+		float[] qx = new float[count], qy = new float[count], result = new float[count];
+		for (int i = 0; i < count; i++) {
+			// Some coordinates are outside of the cloud
+			qx[i] = (float) (X0 - 20 + random.nextDouble() * 240);
+			qy[i] = (float) (Y0 - 20 + random.nextDouble() * 190);
+		}
+		cloud.findElevationsByCoordinates(qx, qy, count, 1, SRID, result);
+		for (int i = 0; i < count; i++) {
+			this.checkClosestPoint(qx[i], qy[i], result[i]);
+			ElevationImport point = cloud.findElevationByCoordinates(qx[i], qy[i], 1, SRID);
+			assertNotNull(point);
+			assertEquals(result[i], point.z, 0);
+		}
+	}
+
+	@Test
+	public void testOtherSrid() throws Exception {
+		ElevationCloudFile cloud = new ElevationCloudFile(this.filePath, SRID);
+		assertNull(cloud.findElevationByCoordinates((float) X0, (float) Y0, 1, 4326));
+		float[] result = new float[1];
+		cloud.findElevationsByCoordinates(new float[] { (float) X0 }, new float[] { (float) Y0 }, 1, 1, 4326, result);
+		assertTrue(Float.isNaN(result[0]));
+	}
+
+	@Test
+	public void testMissingFile() throws Exception {
+		ElevationCloudFile cloud = new ElevationCloudFile(new File(this.folder.getRoot(), "missing.cloud").getPath(), SRID);
+		assertFalse(cloud.isLoaded());
+		assertNull(cloud.findElevationByCoordinates((float) X0, (float) Y0, 1, SRID));
+	}
+
+	@Test(expected = IOException.class)
+	public void testWriteWithoutPoints() throws Exception {
+		try (ElevationCloudFileWriter writer = new ElevationCloudFileWriter(this.folder.newFile(), PRECISION, 100)) {
+			writer.write(new File(this.folder.getRoot(), "empty.cloud").getPath(), SRID);
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Private methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Compare the elevations of the points found by the cloud file with the elevations of the points which are found by a scan.
+	 */
+	private void checkGeometry(ElevationCloudFile cloud, String includingWKT, String excludingWKT) throws Exception {
+		WKTReader reader = new WKTReader();
+		Geometry including = reader.read(includingWKT);
+		Geometry excluding = excludingWKT != null ? reader.read(excludingWKT) : null;
+		GeometryFactory factory = new GeometryFactory();
+		float[] expected = new float[this.x.length];
+		int count = 0;
+		for (int i = 0; i < this.x.length; i++) {
+			Geometry point = factory.createPoint(new Coordinate(this.x[i], this.y[i]));
+			if (including.contains(point) && (excluding == null || !excluding.contains(point))) {
+				expected[count++] = (float) this.z[i];
+			}
+		}
+		ElevationPointBuffer points = new ElevationPointBuffer();
+		cloud.findAllElevationsByGeometry(includingWKT, excludingWKT, 1, 0, SRID, points);
+		float[] actual = Arrays.copyOf(points.getZValues(), points.getSize());
+		Arrays.sort(actual);
+		expected = Arrays.copyOf(expected, count);
+		Arrays.sort(expected);
+		assertTrue("Geometry must contain some points", count > 0);
+		assertArrayEquals(expected, actual, 1e-4f);
+	}
+
+	/**
+	 * Check the elevation is the elevation of one of the closest points (there are several points at the same location).
+	 */
+	private void checkClosestPoint(float qx, float qy, float elevation) {
+		double closestDistance = Double.MAX_VALUE;
+		for (int i = 0; i < this.x.length; i++) {
+			closestDistance = Math.min(closestDistance, (this.x[i] - qx) * (this.x[i] - qx) + (this.y[i] - qy) * (this.y[i] - qy));
+		}
+		for (int i = 0; i < this.x.length; i++) {
+			double distance = (this.x[i] - qx) * (this.x[i] - qx) + (this.y[i] - qy) * (this.y[i] - qy);
+			if (distance <= closestDistance + 1e-6 && Math.abs(this.z[i] - elevation) < 1e-4) {
+				return;
+			}
+		}
+		throw new AssertionError("Elevation " + elevation + " at (" + qx + ", " + qy + ") is not the elevation of a closest point");
+	}
+
+	/**
+	 * Reader of a range of the points of the test, by small batches.
+	 */
+	private class ArrayReader implements PointCloudReader {
+
+		private int next, end;
+
+		ArrayReader(int start, int end) {
+			this.next = start;
+			this.end = end;
+		}
+
+		@Override
+		public int read(double[] x, double[] y, double[] z) {
+			if (this.next >= this.end) {
+				return -1;
+			}
+			int count = Math.min(Math.min(x.length, 128), this.end - this.next);
+			for (int i = 0; i < count; i++) {
+				x[i] = ElevationCloudFileTest.this.x[this.next + i];
+				y[i] = ElevationCloudFileTest.this.y[this.next + i];
+				z[i] = ElevationCloudFileTest.this.z[this.next + i];
+			}
+			this.next += count;
+			return count;
+		}
+
+		@Override
+		public void close() {
+		}
+
+	}
+
+}
@@ -0,0 +1,83 @@
+package org.openstreetmap.osmaxil.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compare the counts of the histogram with the counts of a plain scan of the values (which is how they were computed before).
+ */
+public class ElevationHistogramTest {
+
+	@Test
+	public void testSameCountsAsScan() {
+		Random random = new Random(42);
+		float[] values = new float[1000];
+		for (int i = 0; i < values.length; i++) {
+			// Rounded values so there are a lot of duplicates
+			values[i] = Math.round(random.nextFloat() * 2000 - 100) / 4f;
+		}
+		values[10] = Float.NaN;
+		values[20] = Float.NaN;
+		values[30] = Float.POSITIVE_INFINITY;
+		values[40] = Float.NEGATIVE_INFINITY;
+		values[50] = 0f;
+		values[60] = -0f;
+		float[] copy = values.clone();
+		ElevationHistogram histogram = new ElevationHistogram(values);
+		assertArrayEquals("Values must not be modified", copy, values, 0);
+		assertEquals(values.length, histogram.getTotal());
+		assertEquals(Float.POSITIVE_INFINITY, histogram.getMaxValue(), 0);
+		for (float value : values) {
+			checkCount(histogram, values, values.length, value);
+			checkCount(histogram, values, values.length, Math.nextUp(value));
+			checkCount(histogram, values, values.length, Math.nextAfter(value, Double.NEGATIVE_INFINITY));
+		}
+		float[] thresholds = { Float.NaN, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, 0f, -0f, -Float.MAX_VALUE, Float.MAX_VALUE, 12.3f };
+		for (float threshold : thresholds) {
+			checkCount(histogram, values, values.length, threshold);
+		}
+	}
+
+	@Test
+	public void testLength() {
+		float[] values = { 5, 1, 3, 100, 200 };
+		ElevationHistogram histogram = new ElevationHistogram(values, 3);
+		assertEquals(3, histogram.getTotal());
+		assertEquals(5, histogram.getMaxValue(), 0);
+		for (float threshold = 0; threshold <= 201; threshold += 0.5f) {
+			checkCount(histogram, values, 3, threshold);
+		}
+	}
+
+	@Test
+	public void testWithoutValues() {
+		ElevationHistogram histogram = new ElevationHistogram(new float[] { Float.NaN, Float.NaN });
+		assertEquals(2, histogram.getTotal());
+		assertEquals(Float.NEGATIVE_INFINITY, histogram.getMaxValue(), 0);
+		assertEquals(0, histogram.countValuesAbove(Float.NEGATIVE_INFINITY));
+		histogram = new ElevationHistogram(new float[0]);
+		assertEquals(0, histogram.getTotal());
+		assertEquals(Float.NEGATIVE_INFINITY, histogram.getMaxValue(), 0);
+		assertEquals(0, histogram.countValuesAbove(0));
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Private methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	private static void checkCount(ElevationHistogram histogram, float[] values, int length, float threshold) {
+		int expected = 0;
+		for (float value : Arrays.copyOf(values, length)) {
+			if (value >= threshold) {
+				expected++;
+			}
+		}
+		assertEquals("Count above " + threshold, expected, histogram.countValuesAbove(threshold));
+	}
+
+}
@@ -0,0 +1,186 @@
+package org.openstreetmap.osmaxil.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+import org.junit.Test;
+
+/**
+ * Decode the GeoTIFF fixtures of src/test/resources (one by layout and compression, see misc/create-test-geotiffs.py) and compare their values and
+ * their georeferencing with the ESRI ASCII grids which have been exported with them.
+ */
+public class GeoTiffReaderTest {
+
+	@Test
+	public void testStripsWithoutCompression() throws Exception {
+		GeoTiffReader reader = this.checkFixture("StripNone");
+		assertEquals(5, reader.getBlockHeight());
+		assertEquals(5, reader.getBlocksDown());
+		assertEquals(-9999.0, reader.getNoDataValue(), 0);
+	}
+
+	@Test
+	public void testStripsWithLzw() throws Exception {
+		// Values are random so the LZW table is full (and cleared) several times in the strip
+		GeoTiffReader reader = this.checkFixture("StripLzw");
+		assertEquals(1, reader.getBlocksDown());
+		assertNull(reader.getNoDataValue());
+	}
+
+	@Test
+	public void testStripsWithLzwAndHorizontalPredictor() throws Exception {
+		this.checkFixture("StripLzwHorizontal");
+	}
+
+	@Test
+	public void testStripsWithDeflateAndFloatingPointPredictor() throws Exception {
+		this.checkFixture("StripDeflateFloatingPoint");
+	}
+
+	@Test
+	public void testTilesWithDeflateAndFloatingPointPredictor() throws Exception {
+		GeoTiffReader reader = this.checkFixture("TiledDeflateFloatingPoint");
+		assertEquals(16, reader.getBlockWidth());
+		assertEquals(3, reader.getBlocksAcross());
+		assertEquals(2, reader.getBlocksDown());
+	}
+
+	@Test
+	public void testTilesWithLzwAndHorizontalPredictor() throws Exception {
+		this.checkFixture("TiledLzwHorizontal");
+	}
+
+	@Test
+	public void testTilesWithoutCompression() throws Exception {
+		this.checkFixture("TiledNone");
+	}
+
+	@Test
+	public void testPixelIsPoint() throws Exception {
+		// Tiepoint of the file is the center of the first pixel (770000.5, 6279999.5)
+		GeoTiffReader reader = new GeoTiffReader(getFixturePath("StripLzw.tif"));
+		assertEquals(770000.0, reader.getXUpperLeft(), 0);
+		assertEquals(6280000.0, reader.getYUpperLeft(), 0);
+		// Same with a model transformation (its origin is 770001, 6279999)
+		reader = new GeoTiffReader(getFixturePath("TiledLzwHorizontal.tif"));
+		assertEquals(770000.0, reader.getXUpperLeft(), 0);
+		assertEquals(6280000.0, reader.getYUpperLeft(), 0);
+	}
+
+	@Test
+	public void testWindowAcrossBlocks() throws Exception {
+		GeoTiffReader reader = new GeoTiffReader(getFixturePath("TiledDeflateFloatingPoint.tif"));
+		ReferenceGrid grid = new ReferenceGrid(getFixturePath("TiledDeflateFloatingPoint.asc"));
+		// The window covers the 6 tiles (partially)
+		int x = 10, y = 7, width = 25, height = 15;
+		float[] data = new float[width * height];
+		reader.readRaster(x, y, width, height, data);
+		for (int row = 0; row < height; row++) {
+			for (int column = 0; column < width; column++) {
+				assertEquals(grid.values[(y + row) * grid.width + x + column], data[row * width + column], 0);
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWindowOutsideRaster() throws Exception {
+		GeoTiffReader reader = new GeoTiffReader(getFixturePath("StripNone.tif"));
+		reader.readRaster(30, 20, 10, 10, new float[100]);
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotTiffFile() throws Exception {
+		new GeoTiffReader(getFixturePath("StripNone.asc"));
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Private methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Check the size, the georeferencing and all the values of a fixture against its ASCII grid.
+	 */
+	private GeoTiffReader checkFixture(String name) throws Exception {
+		GeoTiffReader reader = new GeoTiffReader(getFixturePath(name + ".tif"));
+		ReferenceGrid grid = new ReferenceGrid(getFixturePath(name + ".asc"));
+		assertEquals(grid.width, reader.getWidth());
+		assertEquals(grid.height, reader.getHeight());
+		assertEquals(grid.xCorner, reader.getXUpperLeft(), 1e-9);
+		assertEquals(grid.yCorner + grid.height * grid.cellSize, reader.getYUpperLeft(), 1e-9);
+		assertEquals(grid.cellSize, reader.getXPixelSize(), 1e-12);
+		assertEquals(grid.cellSize, reader.getYPixelSize(), 1e-12);
+		assertEquals(grid.noDataValue, reader.getNoDataValue());
+		float[] data = new float[reader.getWidth() * reader.getHeight()];
+		reader.readRaster(0, 0, reader.getWidth(), reader.getHeight(), data);
+		assertArrayEquals(grid.values, data, 0);
+		return reader;
+	}
+
+	private static String getFixturePath(String name) throws URISyntaxException {
+		return new File(GeoTiffReaderTest.class.getResource("/TestGeoTiff-" + name).toURI()).getPath();
+	}
+
+	/**
+	 * Content of an ESRI ASCII grid (header and values of the rows from top to bottom).
+	 */
+	private static class ReferenceGrid {
+
+		int width, height;
+
+		double xCorner, yCorner, cellSize;
+
+		Double noDataValue;
+
+		float[] values;
+
+		ReferenceGrid(String filePath) throws IOException {
+			try (BufferedReader in = new BufferedReader(new FileReader(filePath))) {
+				String line;
+				int count = 0;
+				while ((line = in.readLine()) != null) {
+					String[] tokens = line.trim().split("\\s+");
+					if (tokens[0].isEmpty()) {
+						continue;
+					}
+					switch (tokens[0].toLowerCase()) {
+					case "ncols":
+						this.width = Integer.parseInt(tokens[1]);
+						break;
+					case "nrows":
+						this.height = Integer.parseInt(tokens[1]);
+						break;
+					case "xllcorner":
+						this.xCorner = Double.parseDouble(tokens[1]);
+						break;
+					case "yllcorner":
+						this.yCorner = Double.parseDouble(tokens[1]);
+						break;
+					case "cellsize":
+						this.cellSize = Double.parseDouble(tokens[1]);
+						break;
+					case "nodata_value":
+						this.noDataValue = Double.parseDouble(tokens[1]);
+						break;
+					default:
+						if (this.values == null) {
+							this.values = new float[this.width * this.height];
+						}
+						for (String token : tokens) {
+							this.values[count++] = Float.parseFloat(token);
+						}
+					}
+				}
+				assertEquals("Values of " + filePath, this.width * this.height, count);
+			}
+		}
+
+	}
+
+}
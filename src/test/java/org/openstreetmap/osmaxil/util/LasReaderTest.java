@@ -0,0 +1,189 @@
+package org.openstreetmap.osmaxil.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Read LAS streams which are built by the test (header, variable length records and point records as described by the LAS specifications).
+ */
+public class LasReaderTest {
+
+	// Raw points: X, Y, Z, return number, classification
+	static private final int[][] POINTS = { { 0, 0, 3512, 1, 2 }, { 1250, -75, 3600, 2, 5 }, { 99999, 200000, -1500, 1, 6 }, { -40, 10, 0, 3, 2 },
+			{ 5, 6, 7, 1, 5 } };
+
+	static private final double SCALE = 0.01;
+
+	static private final double X_OFFSET = 650000, Y_OFFSET = 6860000, Z_OFFSET = 10;
+
+	@Test
+	public void testLas12() throws Exception {
+		LasReader reader = new LasReader(new ByteArrayInputStream(createLas(2, 1, 28, 227, 54, POINTS)));
+		assertEquals("1.2", reader.getVersion());
+		assertEquals(1, reader.getPointFormat());
+		assertEquals(POINTS.length, reader.getPointCount());
+		assertEquals(X_OFFSET - 0.4, reader.getXMin(), 1e-9);
+		assertEquals(X_OFFSET + 999.99, reader.getXMax(), 1e-9);
+		checkPoints(reader, 100, 0, 1, 2, 3, 4);
+	}
+
+	@Test
+	public void testLas14() throws Exception {
+		// Legacy point count is 0 for the point format 6, the count is only in the extended header
+		LasReader reader = new LasReader(new ByteArrayInputStream(createLas(4, 6, 30, 375, 0, POINTS)));
+		assertEquals("1.4", reader.getVersion());
+		assertEquals(6, reader.getPointFormat());
+		assertEquals(POINTS.length, reader.getPointCount());
+		checkPoints(reader, 100, 0, 1, 2, 3, 4);
+	}
+
+	@Test
+	public void testSmallBatches() throws Exception {
+		LasReader reader = new LasReader(new ByteArrayInputStream(createLas(2, 3, 34, 227, 0, POINTS)));
+		checkPoints(reader, 2, 0, 1, 2, 3, 4);
+	}
+
+	@Test
+	public void testFilters() throws Exception {
+		for (int minor : new int[] { 2, 4 }) {
+			byte[] las = minor == 2 ? createLas(2, 1, 28, 227, 0, POINTS) : createLas(4, 7, 36, 375, 0, POINTS);
+			LasReader reader = new LasReader(new ByteArrayInputStream(las));
+			reader.setAcceptedClassifications(new int[] { 2 });
+			checkPoints(reader, 100, 0, 3);
+			reader = new LasReader(new ByteArrayInputStream(las));
+			reader.setFirstReturnsOnly(true);
+			checkPoints(reader, 100, 0, 2, 4);
+			reader = new LasReader(new ByteArrayInputStream(las));
+			reader.setAcceptedClassifications(new int[] { 2, 5 });
+			reader.setFirstReturnsOnly(true);
+			checkPoints(reader, 100, 0, 4);
+			assertEquals(POINTS.length, reader.getCounterForReadPoints());
+			assertEquals(2, reader.getCounterForKeptPoints());
+		}
+	}
+
+	@Test
+	public void testStreamWithoutSkip() throws Exception {
+		// Like a pipe which cannot skip the variable length records
+		InputStream in = new ByteArrayInputStream(createLas(2, 1, 28, 227, 54, POINTS)) {
+			@Override
+			public synchronized long skip(long n) {
+				return 0;
+			}
+		};
+		checkPoints(new LasReader(in), 100, 0, 1, 2, 3, 4);
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncatedStream() throws Exception {
+		byte[] las = createLas(2, 1, 28, 227, 0, POINTS);
+		LasReader reader = new LasReader(new ByteArrayInputStream(Arrays.copyOf(las, las.length - 10)));
+		reader.read(new double[100], new double[100], new double[100]);
+	}
+
+	@Test(expected = IOException.class)
+	public void testCompressedPoints() throws Exception {
+		byte[] las = createLas(2, 1, 28, 227, 0, POINTS);
+		las[104] |= 0x80;
+		new LasReader(new ByteArrayInputStream(las));
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotLasStream() throws Exception {
+		byte[] las = createLas(2, 1, 28, 227, 0, POINTS);
+		las[3] = 'X';
+		new LasReader(new ByteArrayInputStream(las));
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+	// Private methods
+	////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Read all the points by batches of the specified size and check they are the expected points (in the same order).
+	 */
+	private static void checkPoints(LasReader reader, int batchSize, int... expectedPoints) throws IOException {
+		double[] x = new double[batchSize], y = new double[batchSize], z = new double[batchSize];
+		int done = 0, count;
+		while ((count = reader.read(x, y, z)) >= 0) {
+			for (int i = 0; i < count; i++) {
+				int[] point = POINTS[expectedPoints[done++]];
+				assertEquals(X_OFFSET + point[0] * SCALE, x[i], 1e-9);
+				assertEquals(Y_OFFSET + point[1] * SCALE, y[i], 1e-9);
+				assertEquals(Z_OFFSET + point[2] * SCALE, z[i], 1e-9);
+			}
+		}
+		assertEquals(expectedPoints.length, done);
+		reader.close();
+	}
+
+	/**
+	 * Build a LAS stream with the specified version (1.x), point format and sizes (extra bytes of the records are left to 0).
+	 */
+	private static byte[] createLas(int minorVersion, int pointFormat, int recordLength, int headerSize, int vlrSize, int[][] points) {
+		ByteBuffer buffer = ByteBuffer.allocate(headerSize + vlrSize + points.length * recordLength).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(new byte[] { 'L', 'A', 'S', 'F' });
+		buffer.put(24, (byte) 1);
+		buffer.put(25, (byte) minorVersion);
+		buffer.putShort(94, (short) headerSize);
+		buffer.putInt(96, headerSize + vlrSize);
+		buffer.putInt(100, vlrSize > 0 ? 1 : 0);
+		buffer.put(104, (byte) pointFormat);
+		buffer.putShort(105, (short) recordLength);
+		buffer.putInt(107, pointFormat >= 6 ? 0 : points.length);
+		buffer.putDouble(131, SCALE);
+		buffer.putDouble(139, SCALE);
+		buffer.putDouble(147, SCALE);
+		buffer.putDouble(155, X_OFFSET);
+		buffer.putDouble(163, Y_OFFSET);
+		buffer.putDouble(171, Z_OFFSET);
+		int[] min = { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE };
+		int[] max = { Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE };
+		for (int[] point : points) {
+			for (int i = 0; i < 3; i++) {
+				min[i] = Math.min(min[i], point[i]);
+				max[i] = Math.max(max[i], point[i]);
+			}
+		}
+		double[] offsets = { X_OFFSET, Y_OFFSET, Z_OFFSET };
+		for (int i = 0; i < 3; i++) {
+			buffer.putDouble(179 + 16 * i, offsets[i] + max[i] * SCALE);
+			buffer.putDouble(187 + 16 * i, offsets[i] + min[i] * SCALE);
+		}
+		if (minorVersion >= 4) {
+			buffer.putLong(247, points.length);
+		}
+		// Content of the variable length record doesn't matter
+		for (int i = 0; i < vlrSize; i++) {
+			buffer.put(headerSize + i, (byte) 0xAB);
+		}
+		for (int p = 0; p < points.length; p++) {
+			int position = headerSize + vlrSize + p * recordLength;
+			int[] point = points[p];
+			buffer.putInt(position, point[0]);
+			buffer.putInt(position + 4, point[1]);
+			buffer.putInt(position + 8, point[2]);
+			buffer.putShort(position + 12, (short) 1000);
+			if (pointFormat >= 6) {
+				// Return number and number of returns on 4 bits each, then the flags and the classification on a whole byte
+				buffer.put(position + 14, (byte) (point[3] | (3 << 4)));
+				buffer.put(position + 15, (byte) 0xFF);
+				buffer.put(position + 16, (byte) point[4]);
+			} else {
+				// Return number and number of returns on 3 bits each, then the classification on 5 bits (with the synthetic/key point/withheld flags)
+				buffer.put(position + 14, (byte) (point[3] | (3 << 3)));
+				buffer.put(position + 15, (byte) (point[4] | 0xE0));
+			}
+		}
+		return buffer.array();
+	}
+
+}